@@ -0,0 +1,598 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SerialLink} that delivers everything, in order, in both directions, over a raw link
+ * that may drop writes and notifications, for an Arduino sketch speaking the same protocol.
+ *
+ * It is selective repeat ARQ: up to {@link #WINDOW} segments are in flight at once, written
+ * without response to keep most of the raw throughput. The receiver buffers segments that
+ * arrive out of order and acknowledges cumulatively (the next segment it needs) and selectively
+ * (a bitmap of the ones after that it already holds), so only what was actually lost is resent:
+ * after a retransmission timeout derived from the measured round trip time (RFC 6298), or
+ * sooner once three acknowledgements have reported segments sent after it but not it. Resends are
+ * counted by the {@link LinkMonitor}, if given one.
+ *
+ * Wire format:
+ * <pre>
+ * DATA   C6 seq(1) len(1) payload(len &lt;= 16) xor(1)
+ * ACK    C7 next(1) sack(4) xor(1)     bit i of sack: segment next + 1 + i received
+ * RESET  C8 nonce(1) xor(1)            phone -> Arduino, echoed back once both sides are reset
+ * </pre>
+ * Sequence numbers are modulo 256 and xor covers everything after the magic byte. Bytes outside
+ * frames, e.g. ordinary serial output, are ignored. Nothing is sent until the Arduino has
+ * echoed the RESET that the link opens with.
+ */
+public class ArqLink implements SerialLink, SerialLink.Listener {
+    private final static String TAG = ArqLink.class.getSimpleName();
+
+    public static final int MAX_SEGMENT_SIZE = SerialLink.MAX_PAYLOAD_SIZE - 4;
+    /** Segments in flight; at most half the sequence space, as selective repeat requires. */
+    public static final int WINDOW = 32;
+
+    private static final byte MAGIC_DATA = (byte) 0xC6;
+    private static final byte MAGIC_ACK = (byte) 0xC7;
+    private static final byte MAGIC_RESET = (byte) 0xC8;
+    private static final int ACK_SIZE = 7;
+    private static final int RESET_SIZE = 3;
+
+    private static final int MAX_WRITES_IN_FLIGHT = 4;
+    private static final int MAX_QUEUED_SEGMENTS = 4096;
+    private static final long MIN_RTO_MILLIS = 60;
+    private static final long MAX_RTO_MILLIS = 4000;
+    private static final int MAX_TIMEOUTS = 10;
+    private static final int FAST_RETRANSMIT_ACKS = 3;
+    // Acknowledging every other in-order segment, or after this long, halves the ack traffic.
+    private static final long ACK_DELAY_MILLIS = 20;
+
+    private static class Segment {
+        final byte[] mPayload;
+        final SendCallback mCallback; // on the last segment of a send only
+        int mSeq;
+        long mSentNanos;
+        boolean mRetransmitted;
+        boolean mSampled;
+        boolean mSacked;
+        boolean mRetransmitPending;
+        int mSackedAfter; // acks reporting segments sent after this one but not it
+
+        Segment(byte[] payload, SendCallback callback) {
+            mPayload = payload;
+            mCallback = callback;
+        }
+    }
+
+    private final SerialLink mLink;
+    private final LinkMonitor mMonitor;
+    // All protocol state is only touched on this thread.
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private volatile Listener mListener;
+    private volatile boolean mClosed;
+
+    // Sending.
+    private final byte mNonce = (byte) new Random().nextInt();
+    private boolean mSynchronised;
+    private int mResetAttempts;
+    private final ArrayDeque<Segment> mQueued = new ArrayDeque<Segment>();
+    private final ArrayDeque<Segment> mRetransmits = new ArrayDeque<Segment>();
+    private final Segment[] mInFlight = new Segment[WINDOW]; // by seq % WINDOW
+    private int mBase; // oldest segment not yet cumulatively acknowledged
+    private int mNextSeq;
+    private int mWritesInFlight;
+    private long mSrttNanos;
+    private long mRttVarNanos;
+    private long mRtoMillis = 500;
+    private int mConsecutiveTimeouts;
+    private ScheduledFuture<?> mTimer;
+    private long mSegmentsSent;
+    private long mRetransmitCount;
+
+    // Receiving.
+    private int mExpected;
+    private final byte[][] mReorder = new byte[WINDOW][]; // by seq % WINDOW
+    private int mUnacked; // in-order segments received since the last ack
+    private ScheduledFuture<?> mAckTimer;
+    private final byte[] mFrame = new byte[SerialLink.MAX_PAYLOAD_SIZE];
+    private int mFrameLength;
+
+    /**
+     * Opens the protocol over a link. This link owns the raw one from here on and closes it
+     * when closed.
+     *
+     * @param monitor Told of every resend. May be null.
+     */
+    public ArqLink(SerialLink link, LinkMonitor monitor) {
+        mLink = link;
+        mMonitor = monitor;
+        link.setListener(this);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                sendReset();
+            }
+        });
+    }
+
+    /**
+     * Received data is delivered in order, on the link's own thread.
+     */
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues data for reliable delivery, split into segments of {@link #MAX_SEGMENT_SIZE}
+     * bytes, so it may be of any length.
+     *
+     * @param writeType Ignored: segments are always written without response.
+     * @param callback Notified once the Arduino has acknowledged all of the data, or with false
+     *                 if the link fails or is closed first. May be null.
+     * @return false if the link is closed.
+     */
+    @Override
+    public boolean send(byte[] data, int writeType, final SendCallback callback) {
+        if (mClosed)
+            return false;
+        final byte[] copy = data.clone();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(copy, callback);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return mLink.requestConnectionPriority(priority);
+    }
+
+    /**
+     * Stops the protocol and closes the raw link. Data not yet acknowledged is abandoned and
+     * its callbacks told so.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mListener = null;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        });
+    }
+
+    public long getSegmentsSent() {
+        return mSegmentsSent;
+    }
+
+    public long getRetransmitCount() {
+        return mRetransmitCount;
+    }
+
+    // Called on the raw link's thread.
+    @Override
+    public void onReceive(final byte[] data) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                parse(data);
+            }
+        });
+    }
+
+    // Events arriving after the link has been closed are dropped.
+    private void post(Runnable runnable) {
+        try {
+            mExecutor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "post(): link already closed");
+        }
+    }
+
+    private void enqueue(byte[] data, SendCallback callback) {
+        int segments = (data.length + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE;
+        if (mClosed || mQueued.size() + segments > MAX_QUEUED_SEGMENTS) {
+            Log.w(TAG, "enqueue(): unable to queue " + data.length + " bytes");
+            if (callback != null)
+                callback.onSendComplete(false);
+            return;
+        }
+        if (segments == 0) {
+            if (callback != null)
+                callback.onSendComplete(true);
+            return;
+        }
+        for (int offset = 0; offset < data.length; offset += MAX_SEGMENT_SIZE) {
+            int length = Math.min(MAX_SEGMENT_SIZE, data.length - offset);
+            byte[] payload = new byte[length];
+            System.arraycopy(data, offset, payload, 0, length);
+            mQueued.add(new Segment(payload, offset + length == data.length ? callback : null));
+        }
+        pump();
+    }
+
+    private void sendReset() {
+        if (mClosed || mSynchronised)
+            return;
+        if (++mResetAttempts > MAX_TIMEOUTS) {
+            fail("Arduino did not answer the reset");
+            return;
+        }
+        mLink.send(new byte[] { MAGIC_RESET, mNonce, mNonce }, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, null);
+        armTimer(mRtoMillis);
+    }
+
+    // Resends first, then new segments while the window allows, a few writes at a time so
+    // resends don't wait behind a long queue of writes.
+    private void pump() {
+        if (mClosed || !mSynchronised)
+            return;
+        while (mWritesInFlight < MAX_WRITES_IN_FLIGHT) {
+            Segment segment = mRetransmits.poll();
+            if (segment != null) {
+                segment.mRetransmitPending = false;
+                if (segment.mSeq < mBase || segment.mSacked)
+                    continue; // acknowledged while waiting
+                segment.mRetransmitted = true;
+                segment.mSackedAfter = 0;
+                mRetransmitCount++;
+                if (mMonitor != null)
+                    mMonitor.onRetry();
+                transmit(segment);
+                continue;
+            }
+            if (mNextSeq - mBase >= WINDOW || mQueued.isEmpty())
+                break;
+            segment = mQueued.poll();
+            segment.mSeq = mNextSeq++;
+            mInFlight[segment.mSeq % WINDOW] = segment;
+            transmit(segment);
+        }
+        if (mTimer == null && mBase != mNextSeq)
+            armTimer(mRtoMillis);
+    }
+
+    private void transmit(Segment segment) {
+        int length = segment.mPayload.length;
+        byte[] frame = new byte[4 + length];
+        frame[0] = MAGIC_DATA;
+        frame[1] = (byte) segment.mSeq;
+        frame[2] = (byte) length;
+        System.arraycopy(segment.mPayload, 0, frame, 3, length);
+        frame[3 + length] = xor(frame, 1, 3 + length);
+        segment.mSentNanos = System.nanoTime();
+        mSegmentsSent++;
+        mWritesInFlight++;
+        boolean queued = mLink.send(frame, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, new SendCallback() {
+            @Override
+            public void onSendComplete(boolean success) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mWritesInFlight--;
+                        pump();
+                    }
+                });
+            }
+        });
+        if (!queued)
+            mWritesInFlight--; // the timer resends it
+    }
+
+    private void scheduleRetransmit(Segment segment) {
+        if (segment.mRetransmitPending)
+            return;
+        segment.mRetransmitPending = true;
+        mRetransmits.add(segment);
+    }
+
+    private void onAck(int nextWire, int sack) {
+        if (!mSynchronised)
+            return;
+        int advance = (nextWire - mBase) & 0xFF;
+        if (advance > mNextSeq - mBase)
+            return; // stale, or from before the reset
+        long now = System.nanoTime();
+        int next = mBase + advance;
+        for (int seq = mBase; seq < next; seq++) {
+            Segment segment = mInFlight[seq % WINDOW];
+            mInFlight[seq % WINDOW] = null;
+            sample(segment, now);
+            if (segment.mCallback != null)
+                segment.mCallback.onSendComplete(true);
+        }
+        if (next > mBase) {
+            mBase = next;
+            mConsecutiveTimeouts = 0;
+        }
+
+        int highestSacked = -1;
+        long newestSackedNanos = 0;
+        for (int i = 0; i < WINDOW - 1; i++) {
+            int seq = next + 1 + i;
+            if (seq >= mNextSeq)
+                break;
+            if ((sack & (1 << i)) == 0)
+                continue;
+            Segment segment = mInFlight[seq % WINDOW];
+            segment.mSacked = true;
+            sample(segment, now);
+            highestSacked = seq;
+            newestSackedNanos = Math.max(newestSackedNanos, segment.mSentNanos);
+        }
+        // A hole is taken as lost once segments sent after it (or after its last resend) keep
+        // being reported received.
+        for (int seq = next; seq < highestSacked; seq++) {
+            Segment segment = mInFlight[seq % WINDOW];
+            if (!segment.mSacked && segment.mSentNanos < newestSackedNanos
+                    && ++segment.mSackedAfter == FAST_RETRANSMIT_ACKS)
+                scheduleRetransmit(segment);
+        }
+
+        if (mBase == mNextSeq)
+            cancelTimer();
+        pump();
+    }
+
+    // Karn's algorithm: only segments sent once give a usable round trip time.
+    private void sample(Segment segment, long now) {
+        if (segment.mSampled || segment.mRetransmitted)
+            return;
+        segment.mSampled = true;
+        long rttNanos = now - segment.mSentNanos;
+        if (mSrttNanos == 0) {
+            mSrttNanos = rttNanos;
+            mRttVarNanos = rttNanos / 2;
+        } else {
+            // RFC 6298 smoothing.
+            mRttVarNanos = (3 * mRttVarNanos + Math.abs(mSrttNanos - rttNanos)) / 4;
+            mSrttNanos = (7 * mSrttNanos + rttNanos) / 8;
+        }
+        long rto = (mSrttNanos + 4 * mRttVarNanos) / 1000000;
+        mRtoMillis = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, rto));
+    }
+
+    private void armTimer(long delayMillis) {
+        cancelTimer();
+        mTimer = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mTimer = null;
+                onTimeout();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimer() {
+        if (mTimer != null) {
+            mTimer.cancel(false);
+            mTimer = null;
+        }
+    }
+
+    // Resends every segment whose timeout has passed, and sleeps until the next one is due.
+    private void onTimeout() {
+        if (mClosed)
+            return;
+        if (!mSynchronised) {
+            sendReset();
+            return;
+        }
+        long now = System.nanoTime();
+        long rtoNanos = mRtoMillis * 1000000;
+        long nextDue = Long.MAX_VALUE;
+        boolean expired = false;
+        for (int seq = mBase; seq < mNextSeq; seq++) {
+            Segment segment = mInFlight[seq % WINDOW];
+            if (segment.mSacked || segment.mRetransmitPending)
+                continue;
+            long due = segment.mSentNanos + rtoNanos;
+            if (due <= now) {
+                scheduleRetransmit(segment);
+                expired = true;
+            } else {
+                nextDue = Math.min(nextDue, due);
+            }
+        }
+        if (expired) {
+            if (++mConsecutiveTimeouts > MAX_TIMEOUTS) {
+                fail("No acknowledgements from the Arduino");
+                return;
+            }
+            mRtoMillis = Math.min(MAX_RTO_MILLIS, mRtoMillis * 2);
+        }
+        pump();
+        if (mBase != mNextSeq)
+            armTimer(nextDue == Long.MAX_VALUE ? mRtoMillis : Math.max(1, (nextDue - now) / 1000000));
+    }
+
+    private void onData(int seqWire, byte[] payload) {
+        int ahead = (seqWire - mExpected) & 0xFF;
+        if (ahead >= WINDOW) {
+            sendAck(); // an old segment again: our ack for it was lost
+            return;
+        }
+        int seq = mExpected + ahead;
+        if (mReorder[seq % WINDOW] == null)
+            mReorder[seq % WINDOW] = payload;
+        int delivered = 0;
+        while (mReorder[mExpected % WINDOW] != null) {
+            byte[] data = mReorder[mExpected % WINDOW];
+            mReorder[mExpected % WINDOW] = null;
+            mExpected++;
+            delivered++;
+            Listener listener = mListener;
+            if (listener != null)
+                listener.onReceive(data);
+        }
+        // Out of order, or filling a gap: the sender needs to hear about it now.
+        if (delivered != 1 || ++mUnacked >= 2) {
+            sendAck();
+        } else if (mAckTimer == null) {
+            mAckTimer = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mAckTimer = null;
+                    sendAck();
+                }
+            }, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendAck() {
+        if (mAckTimer != null) {
+            mAckTimer.cancel(false);
+            mAckTimer = null;
+        }
+        mUnacked = 0;
+        if (mClosed)
+            return;
+        int sack = 0;
+        for (int i = 0; i < WINDOW - 1; i++) {
+            if (mReorder[(mExpected + 1 + i) % WINDOW] != null)
+                sack |= 1 << i;
+        }
+        byte[] frame = new byte[] { MAGIC_ACK, (byte) mExpected,
+                (byte) (sack >> 24), (byte) (sack >> 16), (byte) (sack >> 8), (byte) sack, 0 };
+        frame[ACK_SIZE - 1] = xor(frame, 1, ACK_SIZE - 1);
+        mLink.send(frame, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, null);
+    }
+
+    private void onReset(byte nonce) {
+        if (mSynchronised || nonce != mNonce)
+            return;
+        Log.i(TAG, "onReset(): Arduino is ready");
+        mSynchronised = true;
+        mExpected = 0;
+        cancelTimer();
+        pump();
+    }
+
+    // Frames may be split or run together by the UART bridge, so bytes are gathered until a
+    // whole frame is in hand; on a bad checksum parsing restarts at the next magic byte.
+    private void parse(byte[] data) {
+        for (byte b : data) {
+            if (mFrameLength == 0 && b != MAGIC_DATA && b != MAGIC_ACK && b != MAGIC_RESET)
+                continue;
+            mFrame[mFrameLength++] = b;
+            for (;;) {
+                int size = frameSize();
+                if (size == 0)
+                    break; // need more bytes
+                if (size > 0 && mFrameLength < size)
+                    break;
+                if (size > 0 && mFrame[size - 1] == xor(mFrame, 1, size - 1)) {
+                    handleFrame(size);
+                    discard(size);
+                } else {
+                    discard(1);
+                }
+                if (mFrameLength == 0)
+                    break;
+            }
+        }
+    }
+
+    // The size of the frame being gathered, 0 if not known yet, or -1 if it can't be a frame.
+    private int frameSize() {
+        switch (mFrame[0]) {
+            case MAGIC_DATA:
+                if (mFrameLength < 3)
+                    return 0;
+                int length = mFrame[2] & 0xFF;
+                return length == 0 || length > MAX_SEGMENT_SIZE ? -1 : 4 + length;
+            case MAGIC_ACK:
+                return ACK_SIZE;
+            case MAGIC_RESET:
+                return RESET_SIZE;
+            default:
+                return -1;
+        }
+    }
+
+    private void handleFrame(int size) {
+        if (mClosed)
+            return;
+        switch (mFrame[0]) {
+            case MAGIC_DATA:
+                byte[] payload = new byte[size - 4];
+                System.arraycopy(mFrame, 3, payload, 0, payload.length);
+                onData(mFrame[1] & 0xFF, payload);
+                break;
+            case MAGIC_ACK:
+                int sack = ((mFrame[2] & 0xFF) << 24) | ((mFrame[3] & 0xFF) << 16) | ((mFrame[4] & 0xFF) << 8) | (mFrame[5] & 0xFF);
+                onAck(mFrame[1] & 0xFF, sack);
+                break;
+            case MAGIC_RESET:
+                onReset(mFrame[1]);
+                break;
+        }
+    }
+
+    // Drops the first count bytes gathered, then any up to the next magic byte.
+    private void discard(int count) {
+        int next = count;
+        while (next < mFrameLength && mFrame[next] != MAGIC_DATA && mFrame[next] != MAGIC_ACK && mFrame[next] != MAGIC_RESET)
+            next++;
+        System.arraycopy(mFrame, next, mFrame, 0, mFrameLength - next);
+        mFrameLength -= next;
+    }
+
+    private static byte xor(byte[] frame, int from, int to) {
+        byte xor = 0;
+        for (int i = from; i < to; i++)
+            xor ^= frame[i];
+        return xor;
+    }
+
+    private void fail(String message) {
+        Log.w(TAG, "fail(): " + message);
+        mClosed = true;
+        mListener = null;
+        shutdown();
+    }
+
+    private void shutdown() {
+        cancelTimer();
+        if (mAckTimer != null) {
+            mAckTimer.cancel(false);
+            mAckTimer = null;
+        }
+        for (int seq = mBase; seq < mNextSeq; seq++) {
+            Segment segment = mInFlight[seq % WINDOW];
+            mInFlight[seq % WINDOW] = null;
+            if (segment.mCallback != null)
+                segment.mCallback.onSendComplete(false);
+        }
+        mBase = mNextSeq;
+        Segment segment;
+        while ((segment = mQueued.poll()) != null) {
+            if (segment.mCallback != null)
+                segment.mCallback.onSendComplete(false);
+        }
+        mRetransmits.clear();
+        mLink.setListener(null);
+        mLink.close();
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ARQ: %d segments sent, %d resent, srtt %.1f ms, rto %d ms",
+                mSegmentsSent, mRetransmitCount, mSrttNanos / 1e6, mRtoMillis);
+    }
+}
@@ -0,0 +1,331 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the fastest UART rate at which the Bluno's BLE-to-serial bridge and the Arduino behind it
+ * exchange data without errors, for an Arduino running the echo sketch.
+ *
+ * Candidate rates are tried fastest first: each is set with {@code AT+CURRUART} on the command
+ * link, then {@link #FRAMES_PER_RATE} checksummed frames are sent on the serial link and must all
+ * come back intact. The first rate that passes is chosen; if none does, the rate in use before
+ * tuning is restored. The chosen rate is remembered per device (see {@link #getTunedRate}) so
+ * later connections can set it without tuning again, until an {@link ErrorWatch} sees the serial
+ * stream go bad and {@link #markNeedsRetune marks} the device for retuning.
+ *
+ * Frame layout: {@code MAGIC, rate index, seq, payload (15 bytes), CRC-16/CCITT (2 bytes)}, where
+ * the payload is derived from rate index and sequence number.
+ *
+ * Only the bridge's rate is changed: the Arduino's own UART rate is fixed by its sketch, and
+ * the echo sketch in the README runs at 115200. With that sketch every other rate fails, so
+ * tuning can only confirm 115200 (or find nothing); to tune for real, the sketch must follow the
+ * bridge, e.g. by trying each candidate rate with {@code Serial.begin()} until frames arrive
+ * intact.
+ */
+public class BaudRateTuner implements SerialLink.Listener {
+    private final static String TAG = BaudRateTuner.class.getSimpleName();
+
+    public interface Listener {
+        void onRateTested(RateResult result);
+        /**
+         * @param rate The chosen rate, or -1 if no rate passed (or tuning was cancelled).
+         */
+        void onFinished(int rate, List<RateResult> results);
+    }
+
+    public static final int[] DEFAULT_RATES = { 115200, 57600, 38400, 19200, 9600 };
+    public static final int FRAMES_PER_RATE = 16;
+
+    private static final byte MAGIC = (byte) 0xBD;
+    private static final int FRAME_SIZE = SerialLink.MAX_PAYLOAD_SIZE;
+    private static final long SEND_TIMEOUT_MILLIS = 5000;
+    // Time for the bridge to reconfigure its UART after AT+CURRUART.
+    private static final long SETTLE_MILLIS = 300;
+    private static final long ECHO_TIMEOUT_MILLIS = 2000;
+
+    private static final String PREFERENCES = "baud_rates";
+    private static final String RETUNE_SUFFIX = ".retune";
+
+    /**
+     * How one candidate rate fared.
+     */
+    public static class RateResult {
+        public final int rate;
+        public int sent;
+        public int intact;
+        public int corrupt;
+
+        RateResult(int rate) {
+            this.rate = rate;
+        }
+
+        public boolean isErrorFree() {
+            return sent == FRAMES_PER_RATE && intact == sent && corrupt == 0;
+        }
+
+        @Override
+        public String toString() {
+            return rate + " baud: " + intact + "/" + sent + " echoed intact, " + corrupt + " corrupt";
+        }
+    }
+
+    private final SerialLink mCommandLink;
+    private final SerialLink mSerialLink;
+    private final int[] mRates;
+    private final int mFallbackRate;
+    private volatile boolean mCancelled;
+    private Thread mThread;
+
+    // State of the rate under test, shared with onReceive(). Guarded by this.
+    private RateResult mCurrent;
+    private int mRateIndex;
+    private final boolean[] mSeen = new boolean[FRAMES_PER_RATE];
+    private final byte[] mReassembly = new byte[FRAME_SIZE];
+    private int mReassemblyLength;
+
+    /**
+     * @param commandLink Link to the Bluno's AT command characteristic.
+     * @param serialLink Link to the serial port, with the Arduino echoing what it receives.
+     * @param fallbackRate Rate to restore if no candidate passes.
+     */
+    public BaudRateTuner(SerialLink commandLink, SerialLink serialLink, int[] rates, int fallbackRate) {
+        mCommandLink = commandLink;
+        mSerialLink = serialLink;
+        mRates = rates.clone();
+        mFallbackRate = fallbackRate;
+    }
+
+    /**
+     * Tunes on a background thread, reporting to the listener from that thread. The tuner owns
+     * both links from here on and closes them when done.
+     */
+    public synchronized void start(final Listener listener) {
+        if (mThread != null)
+            throw new IllegalStateException("Tuning already started");
+        mSerialLink.setListener(this);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<RateResult> results = new ArrayList<RateResult>();
+                int chosen = -1;
+                try {
+                    chosen = tune(results, listener);
+                } catch (InterruptedException e) {
+                    Log.i(TAG, "run(): interrupted");
+                }
+                try {
+                    if (chosen < 0 && !setRate(mFallbackRate))
+                        Log.w(TAG, "run(): unable to restore " + mFallbackRate + " baud");
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "run(): interrupted restoring " + mFallbackRate + " baud");
+                }
+                mSerialLink.close();
+                mCommandLink.close();
+                listener.onFinished(chosen, results);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public void cancel() {
+        mCancelled = true;
+        Thread thread = mThread;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private int tune(List<RateResult> results, Listener listener) throws InterruptedException {
+        for (int i = 0; i < mRates.length && !mCancelled; i++) {
+            RateResult result = new RateResult(mRates[i]);
+            if (setRate(mRates[i])) {
+                Thread.sleep(SETTLE_MILLIS);
+                echoTest(i, result);
+            }
+            Log.i(TAG, "tune(): " + result);
+            results.add(result);
+            listener.onRateTested(result);
+            if (result.isErrorFree() && !mCancelled)
+                return result.rate;
+        }
+        return -1;
+    }
+
+    private boolean setRate(int rate) throws InterruptedException {
+        return sendAndWait(mCommandLink, ("AT+CURRUART=" + rate + "\r\n").getBytes());
+    }
+
+    private void echoTest(int rateIndex, RateResult result) throws InterruptedException {
+        synchronized (this) {
+            mCurrent = result;
+            mRateIndex = rateIndex;
+            mReassemblyLength = 0;
+            for (int i = 0; i < FRAMES_PER_RATE; i++)
+                mSeen[i] = false;
+        }
+        byte[] frame = new byte[FRAME_SIZE];
+        for (int seq = 0; seq < FRAMES_PER_RATE && !mCancelled; seq++) {
+            encodeFrame(frame, rateIndex, seq);
+            if (sendAndWait(mSerialLink, frame))
+                result.sent++;
+        }
+        long deadline = System.currentTimeMillis() + ECHO_TIMEOUT_MILLIS;
+        synchronized (this) {
+            long remaining;
+            while (result.intact < result.sent && (remaining = deadline - System.currentTimeMillis()) > 0)
+                wait(remaining);
+            mCurrent = null;
+        }
+    }
+
+    private static boolean sendAndWait(SerialLink link, byte[] data) throws InterruptedException {
+        final Semaphore done = new Semaphore(0);
+        final boolean[] ok = new boolean[1];
+        boolean queued = link.send(data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, new SerialLink.SendCallback() {
+            @Override
+            public void onSendComplete(boolean success) {
+                ok[0] = success;
+                done.release();
+            }
+        });
+        return queued && done.tryAcquire(SEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && ok[0];
+    }
+
+    private static void encodeFrame(byte[] frame, int rateIndex, int seq) {
+        frame[0] = MAGIC;
+        frame[1] = (byte) rateIndex;
+        frame[2] = (byte) seq;
+        // Varied bit patterns, including the all-ones and alternating bytes that a rate mismatch
+        // mangles first.
+        for (int i = 3; i < FRAME_SIZE - 2; i++)
+            frame[i] = (byte) ((seq * 37 + i * 0x55) ^ (i % 3 == 0 ? 0xFF : 0xAA));
+        int crc = crc16(frame, FRAME_SIZE - 2);
+        frame[FRAME_SIZE - 2] = (byte) (crc >> 8);
+        frame[FRAME_SIZE - 1] = (byte) crc;
+    }
+
+    static int crc16(byte[] data, int length) {
+        int crc = 0xFFFF;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xFFFF;
+    }
+
+    @Override
+    public synchronized void onReceive(byte[] data) {
+        RateResult result = mCurrent;
+        if (result == null)
+            return;
+        for (byte b : data) {
+            if (mReassemblyLength == 0 && b != MAGIC)
+                continue;
+            mReassembly[mReassemblyLength++] = b;
+            if (mReassemblyLength < FRAME_SIZE)
+                continue;
+            int crc = ((mReassembly[FRAME_SIZE - 2] & 0xFF) << 8) | (mReassembly[FRAME_SIZE - 1] & 0xFF);
+            int seq = mReassembly[2] & 0xFF;
+            if (crc == crc16(mReassembly, FRAME_SIZE - 2) && (mReassembly[1] & 0xFF) == mRateIndex
+                    && seq < FRAMES_PER_RATE) {
+                if (!mSeen[seq]) {
+                    mSeen[seq] = true;
+                    result.intact++;
+                }
+                mReassemblyLength = 0;
+            } else {
+                // Resynchronise on the next magic byte inside what we have buffered.
+                result.corrupt++;
+                int next = 1;
+                while (next < mReassemblyLength && mReassembly[next] != MAGIC)
+                    next++;
+                System.arraycopy(mReassembly, next, mReassembly, 0, mReassemblyLength - next);
+                mReassemblyLength -= next;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return The rate last tuned for the device, or -1 if it has never been tuned.
+     */
+    public static int getTunedRate(Context context, String address) {
+        return preferences(context).getInt(address, -1);
+    }
+
+    public static void saveTunedRate(Context context, String address, int rate) {
+        preferences(context).edit().putInt(address, rate).remove(address + RETUNE_SUFFIX).apply();
+    }
+
+    /**
+     * @return Whether serial errors were seen at the device's tuned rate since it was tuned.
+     */
+    public static boolean needsRetune(Context context, String address) {
+        return preferences(context).getBoolean(address + RETUNE_SUFFIX, false);
+    }
+
+    public static void markNeedsRetune(Context context, String address) {
+        preferences(context).edit().putBoolean(address + RETUNE_SUFFIX, true).apply();
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Watches text received from a sketch that only sends printable ASCII for signs of a UART
+     * rate mismatch: line noise at the wrong rate decodes to control characters and bytes above
+     * 0x7E.
+     */
+    public static class ErrorWatch implements SerialLink.Listener {
+        /** Bytes examined before judging. */
+        public static final int WINDOW = 512;
+        /** Fraction of bad bytes in a window taken to mean errors. */
+        public static final double THRESHOLD = 0.02;
+
+        public interface Listener {
+            void onErrorsDetected(int badBytes, int window);
+        }
+
+        private final Listener mListener;
+        private int mBytes;
+        private int mBad;
+        private boolean mReported;
+
+        public ErrorWatch(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onReceive(byte[] data) {
+            int bad = 0;
+            for (byte b : data) {
+                int c = b & 0xFF;
+                if ((c < 0x20 && c != '\r' && c != '\n' && c != '\t') || c > 0x7E)
+                    bad++;
+            }
+            int window;
+            synchronized (this) {
+                mBytes += data.length;
+                mBad += bad;
+                if (mBytes < WINDOW)
+                    return;
+                bad = mBad;
+                window = mBytes;
+                mBytes = mBad = 0;
+                if (mReported || bad <= THRESHOLD * window)
+                    return;
+                mReported = true;
+            }
+            mListener.onErrorsDetected(bad, window);
+        }
+    }
+}
@@ -29,11 +29,25 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -47,6 +61,30 @@ public class BluetoothLeService extends Service {
     private String mBluetoothDeviceAddress;
     private BluetoothGatt mBluetoothGatt;
     private int mConnectionState = STATE_DISCONNECTED;
+    private BlunoFleet mFleet;
+    private volatile SharedPacketRing mSharedRing; // created when another app first asks for it
+    private boolean mRingClosed; // guarded by this
+    private volatile TriggerEngine mTriggerEngine;
+    private final ExecutorService mPublisherExecutor = Executors.newCachedThreadPool();
+    private final BlunoDataPublisher mDataPublisher = new BlunoDataPublisher(mPublisherExecutor);
+    private final GattOperationQueue mOperationQueue = new GattOperationQueue(Looper.getMainLooper());
+    private final NotificationSubscriptions mSubscriptions = new NotificationSubscriptions(mOperationQueue);
+    private final LinkMonitor mLinkMonitor = createLinkMonitor();
+    private final CharacteristicCache mValueCache = createValueCache();
+    private final CharacteristicPoller mPoller = createPoller();
+    // Arrival timing of notifications, and completion timing of writes, for the current connection.
+    private final JitterAnalyzer mInboundJitter = new JitterAnalyzer();
+    private final JitterAnalyzer mOutboundJitter = new JitterAnalyzer();
+    // Everything done with a received value beyond copying it happens on the pipeline's thread.
+    private final InboundPipeline mInboundPipeline = createInboundPipeline();
+    // Rolling statistics of the numeric fields in the serial output, for the current connection.
+    private final TelemetryAggregator mTelemetry = createTelemetry();
+    // Callers waiting on each read in flight through readCharacteristic(); a request without a
+    // callback has the value displayed.
+    private final Map<BluetoothGattCharacteristic, List<GattOperation>> mReadsInFlight =
+            new HashMap<BluetoothGattCharacteristic, List<GattOperation>>();
+
+    private static final UUID SERIAL_PORT_UUID = UUID.fromString(BlunoGattAttributes.BLUNO_SERIAL_PORT_CHARACTERISTIC);
 
     public static final int STATE_DISCONNECTED = 0;
     public static final int STATE_CONNECTING = 1;
@@ -57,8 +95,17 @@ public class BluetoothLeService extends Service {
     public final static String ACTION_GATT_SERVICES_DISCOVERED = "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE = "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String ACTION_GATT_CHARACTERISTIC_WRITE_COMPLETE =  "com.example.bluetooth.le.ACTION_CHARACTERISTIC_WRITE_OK";
+    public final static String ACTION_LINK_QUALITY = "com.example.bluetooth.le.ACTION_LINK_QUALITY";
+    /** Binds to the {@link IBlunoFeed} interface, for other apps, instead of the {@link LocalBinder}. */
+    public final static String ACTION_BIND_FEED = "net.craigiebabe.android.bluetoothlegatt.BIND_FEED";
     public final static String EXTRA_DATA = "com.example.bluetooth.le.EXTRA_DATA";
     public final static String EXTRA_CHARACTERISTIC_UUID = "com.example.bluetooth.le.EXTRA_CHARACTERISTIC_UUID";
+    /** When the value arrived, in {@code SystemClock.elapsedRealtimeNanos()} time. */
+    public final static String EXTRA_TIMESTAMP_NANOS = "com.example.bluetooth.le.EXTRA_TIMESTAMP_NANOS";
+    /** Name of a {@link LinkMonitor.Quality}. */
+    public final static String EXTRA_LINK_QUALITY = "com.example.bluetooth.le.EXTRA_LINK_QUALITY";
+    /** Link quality score, 0 to 100. */
+    public final static String EXTRA_LINK_SCORE = "com.example.bluetooth.le.EXTRA_LINK_SCORE";
 
     public int getConnectionState() {
     	return mConnectionState;
@@ -73,6 +120,11 @@ public class BluetoothLeService extends Service {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
+                mInboundJitter.reset();
+                mOutboundJitter.reset();
+                mTelemetry.reset();
+                mOperationQueue.setGatt(gatt);
+                mLinkMonitor.start();
                 broadcastUpdate(intentAction);
                 Log.i(TAG, "onConnectionStateChange(): Connected to GATT server.");
                 // Attempts to discover services after successful connection.
@@ -81,7 +133,19 @@ public class BluetoothLeService extends Service {
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "onConnectionStateChange(): Disconnected from GATT server.");
+                mLinkMonitor.stop();
+                mPoller.stop();
+                Log.i(TAG, "onConnectionStateChange(): " + mLinkMonitor);
+                mOperationQueue.setGatt(null);
+                mSubscriptions.setGatt(null);
+                mValueCache.onDisconnected(gatt.getDevice().getAddress());
+                Log.i(TAG, "onConnectionStateChange(): Disconnected from GATT server, " + mValueCache);
+                LatencyHistogram controlLatency = mOperationQueue.getControlLatency();
+                if (controlLatency.getCount() > 0)
+                    Log.i(TAG, "onConnectionStateChange(): control latency p99 " + controlLatency.getPercentile(99)
+                            + " us, worst " + controlLatency.getMax() + " us over " + controlLatency.getCount() + " operations");
+                Log.i(TAG, "onConnectionStateChange(): inbound " + mInboundJitter + "; outbound " + mOutboundJitter
+                        + "; " + mInboundPipeline.getDroppedCount() + " values dropped by the pipeline");
                 broadcastUpdate(intentAction);
             }
         }
@@ -89,6 +153,8 @@ public class BluetoothLeService extends Service {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                mSubscriptions.setGatt(gatt);
+                mPoller.start(gatt.getServices());
                 Log.i(TAG, "onServiceDiscovered(): broadcasting update: " + ACTION_GATT_SERVICES_DISCOVERED);
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
             } else {
@@ -104,9 +170,15 @@ public class BluetoothLeService extends Service {
          */
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            long timestampNanos = SystemClock.elapsedRealtimeNanos();
+            if (status == BluetoothGatt.GATT_SUCCESS)
+                mValueCache.put(gatt.getDevice().getAddress(), characteristic.getUuid(), characteristic.getValue());
+            GattOperation operation = mOperationQueue.onOperationComplete(GattOperation.TYPE_READ, characteristic, status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.i(TAG, "onCharacteristicRead(): broadcasting update: " + ACTION_DATA_AVAILABLE);
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                // Values read with a callback are reported through it, as for writes, so only
+                // the others are displayed.
+                mInboundPipeline.offer(characteristic, characteristic.getValue(), timestampNanos, false,
+                        operation == null || !operation.hasCallback());
             } else {
                 Log.w(TAG, "onCharacteristicRead(): got status: " + status);
             }
@@ -119,10 +191,31 @@ public class BluetoothLeService extends Service {
          */
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.i(TAG, "onCharacteristicChanged(): broadcasting update: " + ACTION_DATA_AVAILABLE);
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            // Stamped first, so the timestamp is as close to the radio event as the app can get.
+            // Nothing else is done here: this thread delivers every callback for the connection.
+            long timestampNanos = SystemClock.elapsedRealtimeNanos();
+            byte[] value = characteristic.getValue();
+            mValueCache.onNotify(gatt.getDevice().getAddress(), characteristic.getUuid(), value);
+            mInboundPipeline.offer(characteristic, value, timestampNanos, true, true);
         }
         
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            GattOperation operation = mOperationQueue.onOperationComplete(GattOperation.TYPE_RELIABLE_WRITE, null, status);
+            Log.i(TAG, "onReliableWriteCompleted(): " + operation + " got status: " + status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            mLinkMonitor.onRssi(rssi, status);
+            mOperationQueue.onOperationComplete(GattOperation.TYPE_READ_RSSI, null, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mOperationQueue.onOperationComplete(GattOperation.TYPE_DESCRIPTOR_WRITE, descriptor.getCharacteristic(), status);
+        }
+
         /**
          * Callback indicating the result of a characteristic write operation. 
 		 * If this callback is invoked while a reliable write transaction is in progress, the value of the 
@@ -135,6 +228,15 @@ public class BluetoothLeService extends Service {
          */
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            GattOperation operation = mOperationQueue.onOperationComplete(GattOperation.TYPE_WRITE, characteristic, status);
+            if (operation != null && operation.getType() == GattOperation.TYPE_RELIABLE_WRITE)
+                return; // one step of a batch, reported when the whole batch completes
+            if (operation != null && status == BluetoothGatt.GATT_SUCCESS)
+                mOutboundJitter.record(operation.getCompletedRealtimeNanos());
+            if (operation != null && operation.hasCallback()) {
+                // Reported through the operation's own callback; don't flood the UI with broadcasts.
+                return;
+            }
         	if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.i(TAG, "onCharacteristicWrite(): successful");				
                 Log.i(TAG, "onCharacteristicWrite(): broadcasting update: " + ACTION_GATT_CHARACTERISTIC_WRITE_COMPLETE);
@@ -153,9 +255,14 @@ public class BluetoothLeService extends Service {
     }
 
     private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
+        broadcastUpdate(action, characteristic, characteristic.getValue(), SystemClock.elapsedRealtimeNanos());
+    }
+
+    private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic,
+                                 final byte[] data, long timestampNanos) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_TIMESTAMP_NANOS, timestampNanos);
 
-        final byte[] data = characteristic.getValue();
         if (data != null && data.length > 0) {
             final StringBuilder stringBuilder = new StringBuilder(data.length);
             for(byte byteChar : data)
@@ -217,11 +324,16 @@ public class BluetoothLeService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
+        if (ACTION_BIND_FEED.equals(intent.getAction()))
+            return mFeedBinder;
         return mBinder;
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
+        // Other apps only share the connection this app's UI made; they don't own it.
+        if (ACTION_BIND_FEED.equals(intent.getAction()))
+            return false;
         // After using a given device, you should make sure that BluetoothGatt.close() is called
         // such that resources are cleaned up properly.  In this particular example, close() is
         // invoked when the UI is disconnected from the Service.
@@ -231,6 +343,250 @@ public class BluetoothLeService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
+    // Called on Binder threads in other apps' name.
+    private final IBlunoFeed.Stub mFeedBinder = new IBlunoFeed.Stub() {
+        @Override
+        public ParcelFileDescriptor getPacketRing() {
+            try {
+                return getSharedRing().share();
+            } catch (IOException e) {
+                Log.e(TAG, "getPacketRing(): unable to share the ring", e);
+                return null;
+            }
+        }
+
+        @Override
+        public int getConnectionState() {
+            return mConnectionState;
+        }
+
+        @Override
+        public String getDeviceAddress() {
+            return mConnectionState == STATE_CONNECTED ? mBluetoothDeviceAddress : null;
+        }
+
+        @Override
+        public boolean sendSerial(byte[] data, int priority) {
+            return sendForFeed(BlunoGattAttributes.BLUNO_SERIAL_PORT_CHARACTERISTIC, data, priority);
+        }
+
+        @Override
+        public boolean sendCommand(byte[] data) {
+            return sendForFeed(BlunoGattAttributes.BLUNO_COMMAND_CHARACTERISTIC, data, GattOperation.PRIORITY_CONTROL);
+        }
+    };
+
+    private synchronized SharedPacketRing getSharedRing() throws IOException {
+        if (mRingClosed)
+            throw new IOException("Service is shutting down");
+        if (mSharedRing == null)
+            mSharedRing = new SharedPacketRing(SharedPacketRing.DEFAULT_SLOT_COUNT);
+        return mSharedRing;
+    }
+
+    private boolean sendForFeed(String uuid, byte[] data, int priority) {
+        if (priority < 0 || priority >= GattOperation.PRIORITY_COUNT)
+            throw new IllegalArgumentException("Bad priority: " + priority);
+        BluetoothGattCharacteristic characteristic = mConnectionState == STATE_CONNECTED ? findCharacteristic(uuid) : null;
+        if (characteristic == null)
+            return false;
+        writeChunked(characteristic, data, priority);
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        final SharedPacketRing ring;
+        synchronized (this) {
+            ring = mSharedRing;
+            mSharedRing = null;
+            mRingClosed = true;
+        }
+        // The pipeline thread writes the ring and publishes, so once it has delivered what is
+        // left it closes the ring (readers keep their mappings) and completes the subscribers.
+        mInboundPipeline.quit(new Runnable() {
+            @Override
+            public void run() {
+                if (ring != null)
+                    ring.close();
+                mDataPublisher.complete();
+                // Lets the subscribers' completions already queued run, then the threads go.
+                mPublisherExecutor.shutdown();
+            }
+        });
+        if (mFleet != null)
+            mFleet.close();
+        super.onDestroy();
+    }
+
+    /**
+     * Returns the stream of values read from, or notified by, the connected device. Unlike the
+     * {@link #ACTION_DATA_AVAILABLE} broadcast, subscribers control the rate at which they receive
+     * packets and choose what happens when they fall behind - see
+     * {@link BlunoDataPublisher#subscribe(org.reactivestreams.Subscriber, UUID, BlunoDataPublisher.OverflowPolicy, int)}.
+     *
+     * @return The publisher, which lives as long as this service.
+     */
+    public BlunoDataPublisher getDataPublisher() {
+        return mDataPublisher;
+    }
+
+    /**
+     * Sets how received values are batched on their way to the data publisher's subscribers.
+     * Longer windows cost latency but save wakeups at high notification rates.
+     *
+     * @param windowMillis Longest a value is held back, e.g. 5 to 50 ms; 0 to only batch values
+     *                     that arrive together.
+     * @param maxPackets Number of values that fill a batch, which is then delivered at once.
+     */
+    public void setBatching(long windowMillis, int maxPackets) {
+        mInboundPipeline.setBatching(windowMillis, maxPackets);
+    }
+
+    /**
+     * Has values from a characteristic delivered to subscribers as soon as they arrive, for
+     * latency sensitive data. The Bluno command characteristic always is, and the serial port is
+     * while a timed link to it is open (see {@link #createSerialLink(int, boolean)}). Each call
+     * must be matched by one to {@link #removeBatchBypass}.
+     */
+    public void addBatchBypass(UUID characteristicUuid) {
+        mInboundPipeline.addBatchBypass(characteristicUuid);
+    }
+
+    public void removeBatchBypass(UUID characteristicUuid) {
+        mInboundPipeline.removeBatchBypass(characteristicUuid);
+    }
+
+    /**
+     * Runs triggers on the data received from the Bluno serial port. They see every packet in
+     * arrival order, on the pipeline thread, without waiting for batching.
+     *
+     * @param engine The triggers, or null to stop.
+     */
+    public void setTriggerEngine(TriggerEngine engine) {
+        mTriggerEngine = engine;
+    }
+
+    /**
+     * Returns the group of Blunos that commands can be sent to all at once. Its members are
+     * connected separately from the device this service is connected to.
+     *
+     * @return The fleet, or null if the service has not been initialized.
+     */
+    public synchronized BlunoFleet getFleet() {
+        if (mFleet == null && mBluetoothAdapter != null)
+            mFleet = new BlunoFleet(this, mBluetoothAdapter);
+        return mFleet;
+    }
+
+    /**
+     * @return The cache of characteristic values, with its hit and miss counts.
+     */
+    public CharacteristicCache getValueCache() {
+        return mValueCache;
+    }
+
+    /**
+     * Reads characteristics that can't notify on their own schedules, at intervals that adapt to
+     * how often they change, within a budget of GATT operations per second. Values read are
+     * delivered like any other, and changes are broadcast with {@link #ACTION_DATA_AVAILABLE}.
+     *
+     * @return The poller, whose characteristics are kept across connections.
+     */
+    public CharacteristicPoller getPoller() {
+        return mPoller;
+    }
+
+    /**
+     * @return The monitor of the current connection's link quality.
+     */
+    public LinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
+
+    private TelemetryAggregator createTelemetry() {
+        TelemetryAggregator telemetry = new TelemetryAggregator(SERIAL_PORT_UUID);
+        telemetry.start(mDataPublisher);
+        return telemetry;
+    }
+
+    // Polled values are displayed when they change, coalesced with everything else displayed.
+    // Every read already reaches subscribers through onCharacteristicRead().
+    private CharacteristicPoller createPoller() {
+        CharacteristicPoller poller = new CharacteristicPoller(mOperationQueue, Looper.getMainLooper());
+        poller.setListener(new CharacteristicPoller.Listener() {
+            @Override
+            public void onValueChanged(BluetoothGattCharacteristic characteristic, byte[] value, long timestampNanos) {
+                mInboundPipeline.display(characteristic, value, timestampNanos);
+            }
+        });
+        return poller;
+    }
+
+    // Link quality changes are broadcast for the UI.
+    private LinkMonitor createLinkMonitor() {
+        LinkMonitor monitor = new LinkMonitor(mOperationQueue, Looper.getMainLooper());
+        monitor.setListener(new LinkMonitor.Listener() {
+            @Override
+            public void onQualityChanged(LinkMonitor.Quality quality, int score) {
+                final Intent intent = new Intent(ACTION_LINK_QUALITY);
+                intent.putExtra(EXTRA_LINK_QUALITY, quality.name());
+                intent.putExtra(EXTRA_LINK_SCORE, score);
+                sendBroadcast(intent);
+            }
+        });
+        return monitor;
+    }
+
+    // Everything but display updates reaches subscribers in batches; the display is coalesced
+    // separately.
+    private InboundPipeline createInboundPipeline() {
+        InboundPipeline pipeline = new InboundPipeline(InboundPipeline.DEFAULT_CAPACITY, new InboundPipeline.Listener() {
+            @Override
+            public void onPacket(BlunoPacket packet, boolean notification) {
+                if (notification)
+                    mInboundJitter.record(packet.getTimestampNanos());
+                TriggerEngine engine = mTriggerEngine;
+                if (engine != null && SERIAL_PORT_UUID.equals(packet.getCharacteristicUuid()))
+                    engine.onReceive(packet.getValue(), packet.getTimestampNanos());
+                SharedPacketRing ring = mSharedRing;
+                if (ring != null) {
+                    try {
+                        ring.write(packet);
+                    } catch (IOException e) {
+                        Log.e(TAG, "onPacket(): unable to write to the shared ring", e);
+                    }
+                }
+            }
+
+            @Override
+            public void onBatch(List<BlunoPacket> batch) {
+                mDataPublisher.publish(batch);
+            }
+
+            @Override
+            public void onDisplay(BluetoothGattCharacteristic characteristic, BlunoPacket packet) {
+                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic, packet.getValue(), packet.getTimestampNanos());
+            }
+        });
+        // Responses to AT commands are waited on, so they skip batching.
+        pipeline.addBatchBypass(UUID.fromString(BlunoGattAttributes.BLUNO_COMMAND_CHARACTERISTIC));
+        return pipeline;
+    }
+
+    // Values that don't change for a given device, or change rarely, are served from the cache.
+    private static CharacteristicCache createValueCache() {
+        CharacteristicCache cache = new CharacteristicCache();
+        cache.setPolicy(UUID.fromString(BlunoGattAttributes.BLUNO_MODEL_NUMBER_CHARACTERISTIC), CharacteristicCache.Policy.IMMUTABLE);
+        cache.setPolicy(UUID.fromString("00002a25-0000-1000-8000-00805f9b34fb"), CharacteristicCache.Policy.IMMUTABLE); // serial number
+        cache.setPolicy(UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb"), CharacteristicCache.Policy.IMMUTABLE); // firmware revision
+        cache.setPolicy(UUID.fromString("00002a27-0000-1000-8000-00805f9b34fb"), CharacteristicCache.Policy.IMMUTABLE); // hardware revision
+        cache.setPolicy(UUID.fromString("00002a28-0000-1000-8000-00805f9b34fb"), CharacteristicCache.Policy.IMMUTABLE); // software revision
+        cache.setPolicy(UUID.fromString("00002a29-0000-1000-8000-00805f9b34fb"), CharacteristicCache.Policy.IMMUTABLE); // manufacturer name
+        cache.setPolicy(UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb"), CharacteristicCache.Policy.ttl(60000)); // device name
+        return cache;
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -321,6 +677,10 @@ public class BluetoothLeService extends Service {
         if (mBluetoothGatt == null) {
             return;
         }
+        mLinkMonitor.stop();
+        mPoller.stop();
+        mOperationQueue.setGatt(null);
+        mSubscriptions.setGatt(null);
         mBluetoothGatt.close();
         mBluetoothGatt = null;
     }
@@ -333,13 +693,77 @@ public class BluetoothLeService extends Service {
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        readCharacteristic(characteristic, null);
+    }
+
+    /**
+     * Reads a characteristic, from the value cache if it holds a fresh value. A read of a
+     * characteristic that is already being read joins the read in flight rather than issuing
+     * another one.
+     *
+     * @param characteristic The characteristic to read from.
+     * @param callback Told when the value is available from {@link GattOperation#getValue()}, or
+     *                 null to have the value broadcast with {@link #ACTION_DATA_AVAILABLE}.
+     */
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, GattOperation.Callback callback) {
+        GattOperation request = GattOperation.read(characteristic, callback);
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "readCharacteristic(): BluetoothAdapter not initialized");
+            request.complete(BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+        byte[] cached = mValueCache.get(mBluetoothDeviceAddress, characteristic.getUuid());
+        if (cached != null) {
+            Log.d(TAG, "readCharacteristic(): cache hit for " + characteristic.getUuid());
+            long timestampNanos = SystemClock.elapsedRealtimeNanos();
+            if (request.hasCallback())
+                request.completeFromCache(cached, timestampNanos);
+            else
+                mInboundPipeline.display(characteristic, cached, timestampNanos);
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        synchronized (mReadsInFlight) {
+            List<GattOperation> waiting = mReadsInFlight.get(characteristic);
+            if (waiting != null) {
+                waiting.add(request);
+                mValueCache.onReadCollapsed();
+                return;
+            }
+            waiting = new ArrayList<GattOperation>();
+            waiting.add(request);
+            mReadsInFlight.put(characteristic, waiting);
+        }
+        enqueue(GattOperation.read(characteristic, mSharedReadCallback));
     }
 
+    // Completes every request that joined a read in flight. Runs on the binder thread straight
+    // after onCharacteristicRead(), so the characteristic still holds the value read. The value
+    // is displayed once for the read, however many requests without a callback joined it.
+    private final GattOperation.Callback mSharedReadCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            BluetoothGattCharacteristic characteristic = operation.getCharacteristic();
+            List<GattOperation> waiting;
+            synchronized (mReadsInFlight) {
+                waiting = mReadsInFlight.remove(characteristic);
+            }
+            if (waiting == null)
+                return;
+            byte[] value = null;
+            if (status == BluetoothGatt.GATT_SUCCESS && characteristic.getValue() != null)
+                value = characteristic.getValue().clone();
+            boolean display = false;
+            for (GattOperation request : waiting) {
+                if (request.hasCallback())
+                    request.completeJoined(operation, value, status);
+                else
+                    display = true;
+            }
+            if (display && value != null)
+                mInboundPipeline.display(characteristic, value, operation.getCompletedRealtimeNanos());
+        }
+    };
+
     /**
      * Request a write on a given {@code BluetoothGattCharacteristic}. The read result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicWrite(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
@@ -352,32 +776,268 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "writeCharacteristic(): BluetoothAdapter not initialized");
             return;
         }
-        Log.i(TAG, "writeCharacteristic(): attempting to write characteristic!");
-        boolean result = mBluetoothGatt.writeCharacteristic(characteristic);
-        if(!result)
-            Log.w(TAG, "writeCharacteristic(): write failed!");
+        Log.i(TAG, "writeCharacteristic(): queueing write of characteristic!");
+        mOperationQueue.enqueue(GattOperation.write(characteristic, null));
+    }
+
+    /**
+     * Queues a write of the given data split into {@link SerialLink#MAX_PAYLOAD_SIZE} byte
+     * writes. The pieces are written back to back as one operation, so a more urgent message
+     * waits for the rest of this one rather than being spliced into the middle of it on the
+     * device; keep messages short for that wait to stay short.
+     *
+     * @param characteristic The characteristic to write to; its write type is used.
+     * @param data The data to write.
+     * @param priority One of the {@code GattOperation.PRIORITY_*} constants.
+     */
+    public void writeChunked(BluetoothGattCharacteristic characteristic, byte[] data, int priority) {
+        enqueue(GattOperation.writeChunked(characteristic, data, SerialLink.MAX_PAYLOAD_SIZE,
+                characteristic.getWriteType(), null).setPriority(priority));
+    }
+
+    /**
+     * Applies a set of writes atomically in one reliable write transaction, rather than as
+     * separate writes that a dropped link could leave half done. The values the device
+     * echoes back are not verified; see {@link ReliableWriteBatch}.
+     *
+     * @param batch The writes; its callback is told whether they were all committed.
+     */
+    public void writeReliably(ReliableWriteBatch batch) {
+        if (batch.size() == 0)
+            throw new IllegalArgumentException("Empty batch");
+        enqueue(batch);
+    }
+
+    /**
+     * @return Enqueue-to-completion latency of control priority operations, in microseconds.
+     */
+    public LatencyHistogram getControlLatency() {
+        return mOperationQueue.getControlLatency();
+    }
+
+    /**
+     * @return Timing of notifications received on the current connection.
+     */
+    public JitterAnalyzer getInboundJitter() {
+        return mInboundJitter;
+    }
+
+    /**
+     * @return Rolling statistics of the {@code name=value} fields the Arduino prints.
+     */
+    public TelemetryAggregator getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * @return Timing of successful write completions on the current connection.
+     */
+    public JitterAnalyzer getOutboundJitter() {
+        return mOutboundJitter;
+    }
+
+    /**
+     * Queues a GATT operation behind any already pending on the connection. Reads and writes
+     * must go through here rather than straight to {@code BluetoothGatt}, which silently drops
+     * requests issued while another one is outstanding.
+     *
+     * @param operation The operation; its callback is told if it fails because there is no connection.
+     */
+    public void enqueue(GattOperation operation) {
+        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+            Log.w(TAG, "enqueue(): BluetoothAdapter not initialized");
+            operation.complete(BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+        mOperationQueue.enqueue(operation);
+    }
+
+    /**
+     * Asks for a different connection interval (Android 5.0 and later).
+     *
+     * @param priority One of the {@code BluetoothGatt.CONNECTION_PRIORITY_*} constants.
+     * @return true if the request was made.
+     */
+    public boolean requestConnectionPriority(int priority) {
+        if (mBluetoothGatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            Log.w(TAG, "requestConnectionPriority(): not connected or not supported");
+            return false;
+        }
+        return mBluetoothGatt.requestConnectionPriority(priority);
+    }
+
+    /**
+     * @param uuid Characteristic UUID, as in {@link BlunoGattAttributes}.
+     * @return The first discovered characteristic with the given UUID, or null.
+     */
+    public BluetoothGattCharacteristic findCharacteristic(String uuid) {
+        List<BluetoothGattService> services = getSupportedGattServices();
+        if (services == null)
+            return null;
+        UUID wanted = UUID.fromString(uuid);
+        for (BluetoothGattService service : services) {
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(wanted);
+            if (characteristic != null)
+                return characteristic;
+        }
+        return null;
+    }
+
+    /**
+     * @return A link to the Bluno serial port of the connected device, or null if services have
+     *         not been discovered or the device is not a Bluno.
+     */
+    public SerialLink createSerialLink() {
+        return createSerialLink(GattOperation.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * @param priority Priority of the link's writes, one of the {@code GattOperation.PRIORITY_*} constants.
+     * @return A link to the Bluno serial port of the connected device, or null if services have
+     *         not been discovered or the device is not a Bluno.
+     */
+    public SerialLink createSerialLink(int priority) {
+        return createSerialLink(priority, false);
+    }
+
+    /**
+     * @param priority Priority of the link's writes, one of the {@code GattOperation.PRIORITY_*} constants.
+     * @param timed Whether the link carries a protocol that times round trips (benchmark, file
+     *              transfer, ARQ). While a timed link is open, serial port values bypass
+     *              batching, so what they measure is the link rather than the batch window.
+     * @return A link to the Bluno serial port of the connected device, or null if services have
+     *         not been discovered or the device is not a Bluno.
+     */
+    public SerialLink createSerialLink(int priority, boolean timed) {
+        BluetoothGattCharacteristic serialPort = findCharacteristic(BlunoGattAttributes.BLUNO_SERIAL_PORT_CHARACTERISTIC);
+        if (serialPort == null) {
+            Log.w(TAG, "createSerialLink(): no Bluno serial port characteristic");
+            return null;
+        }
+        return new GattSerialLink(serialPort, priority, timed);
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * @return A lossless, ordered link to the Bluno serial port, for an Arduino sketch speaking
+     *         the {@link ArqLink} protocol (see the README), or null as for
+     *         {@link #createSerialLink()}. Its resends count against the link quality. It is
+     *         offered to code built on this service; the app's own screens don't open one.
+     */
+    public SerialLink createReliableSerialLink() {
+        SerialLink link = createSerialLink(GattOperation.PRIORITY_DEFAULT, true);
+        return link == null ? null : new ArqLink(link, mLinkMonitor);
+    }
+
+    /**
+     * @return A link to the Bluno's AT command characteristic, at control priority, or null if
+     *         the connected device has none.
+     */
+    public SerialLink createCommandLink() {
+        BluetoothGattCharacteristic command = findCharacteristic(BlunoGattAttributes.BLUNO_COMMAND_CHARACTERISTIC);
+        if (command == null) {
+            Log.w(TAG, "createCommandLink(): no Bluno command characteristic");
+            return null;
+        }
+        return new GattSerialLink(command, GattOperation.PRIORITY_CONTROL, false);
+    }
+
+    // SerialLink over the serial port characteristic: writes go through the operation queue,
+    // notifications arrive through the data publisher.
+    private class GattSerialLink implements SerialLink, Subscriber<BlunoPacket> {
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final int mPriority;
+        private final AtomicBoolean mBypassing = new AtomicBoolean();
+        private volatile Listener mListener;
+        private volatile Subscription mSubscription;
+
+        GattSerialLink(BluetoothGattCharacteristic characteristic, int priority, boolean timed) {
+            mCharacteristic = characteristic;
+            mPriority = priority;
+            if (timed && mBypassing.compareAndSet(false, true))
+                mInboundPipeline.addBatchBypass(characteristic.getUuid());
+            mDataPublisher.subscribe(this, characteristic.getUuid(), BlunoDataPublisher.OverflowPolicy.BUFFER, 1024);
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public boolean send(byte[] data, int writeType, final SendCallback callback) {
+            if (mConnectionState != STATE_CONNECTED)
+                return false;
+            enqueue(GattOperation.write(mCharacteristic, data, writeType, new GattOperation.Callback() {
+                @Override
+                public void onComplete(GattOperation operation, int status) {
+                    if (callback != null)
+                        callback.onSendComplete(status == BluetoothGatt.GATT_SUCCESS);
+                }
+            }).setPriority(mPriority));
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return BluetoothLeService.this.requestConnectionPriority(priority);
+        }
+
+        @Override
+        public void close() {
+            if (mBypassing.compareAndSet(true, false))
+                mInboundPipeline.removeBatchBypass(mCharacteristic.getUuid());
+            mListener = null;
+            Subscription subscription = mSubscription;
+            if (subscription != null)
+                subscription.cancel();
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            mSubscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(BlunoPacket packet) {
+            Listener listener = mListener;
+            if (listener != null)
+                listener.onReceive(packet.getValue());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            Log.e(TAG, "GattSerialLink.onError()", t);
+        }
+
+        @Override
+        public void onComplete() {
+            mListener = null;
+        }
+    }
+
+    /**
+     * Subscribes to, or unsubscribes from, notification on a given characteristic. Subscriptions
+     * are reference counted, so every subscription must be balanced by an unsubscription;
+     * notifications stay enabled while any subscriber remains and are re-enabled after a reconnect.
+     * See {@link NotificationSubscriptions}.
      *
      * @param characteristic Characteristic to act on.
-     * @param enabled If true, enable notification.  False otherwise.
+     * @param enabled If true, subscribe.  Unsubscribe otherwise.
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "setCharacteristicNotification(): BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        if (enabled)
+            mSubscriptions.subscribe(characteristic);
+        else
+            mSubscriptions.unsubscribe(characteristic);
+    }
 
-        // This is specific to Heart Rate Measurement.
-//        if (UUID_ROBOT_DIRECTION_CHARACTERISTIC.equals(characteristic.getUuid())) {
-//            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-//                    UUID.fromString(BlunoGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-//            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-//            mBluetoothGatt.writeDescriptor(descriptor);
-//        }
+    public NotificationSubscriptions getNotificationSubscriptions() {
+        return mSubscriptions;
     }
 
     /**
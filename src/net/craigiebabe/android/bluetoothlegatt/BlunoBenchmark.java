@@ -0,0 +1,341 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback benchmark against a Bluno running the echo sketch (which writes every byte it
+ * receives on its serial port straight back).
+ *
+ * For every combination of payload size, write type and connection priority a run sends
+ * sequence-numbered, timestamped frames, one outstanding write at a time, and matches the echoes
+ * as they come back to measure throughput in each direction, loss and round trip time.
+ *
+ * Frame layout: {@code MAGIC, run, seq (2 bytes), send time in microseconds (4 bytes), filler},
+ * where filler byte {@code i} is {@code (seq + i) & 0xff} so corrupted echoes can be told apart.
+ */
+public class BlunoBenchmark implements SerialLink.Listener {
+    private final static String TAG = BlunoBenchmark.class.getSimpleName();
+
+    public interface Listener {
+        void onProgress(int runsCompleted, int runsTotal, Result lastResult);
+        void onFinished(List<Result> results, boolean cancelled);
+    }
+
+    public static final int[] DEFAULT_PAYLOAD_SIZES = { 8, 12, 16, SerialLink.MAX_PAYLOAD_SIZE };
+    public static final int[] DEFAULT_WRITE_TYPES = {
+            BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT,
+            BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE };
+    public static final int[] DEFAULT_CONNECTION_PRIORITIES = {
+            BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+            BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+            BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER };
+    public static final int DEFAULT_PACKETS_PER_RUN = 200;
+
+    private static final int HEADER_SIZE = 8;
+    private static final byte MAGIC = (byte) 0xB5;
+    private static final long SEND_TIMEOUT_MILLIS = 5000;
+    // Time allowed for a connection parameter update to take effect before a run starts.
+    private static final long SETTLE_MILLIS = 500;
+    private static final long MIN_DRAIN_MILLIS = 1000;
+
+    /**
+     * Measurements of one payload size / write type / connection priority combination.
+     */
+    public static class Result {
+        public final int payloadSize;
+        public final int writeType;
+        public final int connectionPriority;
+        public int sent;
+        public int sendFailures;
+        public int received;
+        public int duplicates;
+        public int corrupt;
+        public long txNanos;
+        public long rxNanos;
+        public final LatencyHistogram rtt = new LatencyHistogram();
+
+        Result(int payloadSize, int writeType, int connectionPriority) {
+            this.payloadSize = payloadSize;
+            this.writeType = writeType;
+            this.connectionPriority = connectionPriority;
+        }
+
+        public int getLost() {
+            return sent - received;
+        }
+
+        public double getLossPercent() {
+            return sent == 0 ? 0 : 100.0 * getLost() / sent;
+        }
+
+        /** Phone to Bluno: payload bytes whose write completed, per second. */
+        public double getTxBytesPerSecond() {
+            return txNanos == 0 ? 0 : sent * (double) payloadSize * 1e9 / txNanos;
+        }
+
+        /** Bluno to phone: echoed payload bytes received, per second. */
+        public double getRxBytesPerSecond() {
+            return rxNanos == 0 ? 0 : received * (double) payloadSize * 1e9 / rxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%2dB %-6s %-8s tx %6.0f B/s rx %6.0f B/s loss %5.1f%% rtt p50 %4.1f p99 %5.1f ms",
+                    payloadSize, writeTypeToString(writeType), priorityToString(connectionPriority),
+                    getTxBytesPerSecond(), getRxBytesPerSecond(), getLossPercent(),
+                    rtt.getPercentile(50) / 1000.0, rtt.getPercentile(99) / 1000.0);
+        }
+    }
+
+    private final SerialLink mLink;
+    private final int[] mPayloadSizes;
+    private final int[] mWriteTypes;
+    private final int[] mPriorities;
+    private final int mPacketsPerRun;
+    private volatile boolean mCancelled;
+    private Thread mThread;
+
+    // State of the run in progress, shared with onReceive(). Guarded by this.
+    private Result mCurrent;
+    private int mRunId;
+    private long mRunStartNanos;
+    private long mLastReceiveNanos;
+    private final BitSet mSeen = new BitSet();
+    private final byte[] mReassembly = new byte[4 * SerialLink.MAX_PAYLOAD_SIZE];
+    private int mReassemblyLength;
+
+    public BlunoBenchmark(SerialLink link) {
+        this(link, DEFAULT_PAYLOAD_SIZES, DEFAULT_WRITE_TYPES, DEFAULT_CONNECTION_PRIORITIES, DEFAULT_PACKETS_PER_RUN);
+    }
+
+    public BlunoBenchmark(SerialLink link, int[] payloadSizes, int[] writeTypes, int[] priorities, int packetsPerRun) {
+        for (int size : payloadSizes) {
+            if (size < HEADER_SIZE || size > SerialLink.MAX_PAYLOAD_SIZE)
+                throw new IllegalArgumentException("payload size must be " + HEADER_SIZE + ".." + SerialLink.MAX_PAYLOAD_SIZE + ": " + size);
+        }
+        if (packetsPerRun < 1 || packetsPerRun > 0xFFFF)
+            throw new IllegalArgumentException("packetsPerRun out of range: " + packetsPerRun);
+        mLink = link;
+        mPayloadSizes = payloadSizes.clone();
+        mWriteTypes = writeTypes.clone();
+        mPriorities = priorities.clone();
+        mPacketsPerRun = packetsPerRun;
+    }
+
+    /**
+     * Runs the whole matrix on a background thread, reporting to the listener from that thread.
+     */
+    public synchronized void start(final Listener listener) {
+        if (mThread != null)
+            throw new IllegalStateException("Benchmark already started");
+        mLink.setListener(this);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<Result> results = runAll(listener);
+                mLink.setListener(null);
+                listener.onFinished(results, mCancelled);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public void cancel() {
+        mCancelled = true;
+        Thread thread = mThread;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private List<Result> runAll(Listener listener) {
+        List<Result> results = new ArrayList<Result>();
+        int total = mPriorities.length * mWriteTypes.length * mPayloadSizes.length;
+        try {
+            for (int priority : mPriorities) {
+                if (!mLink.requestConnectionPriority(priority))
+                    Log.w(TAG, "runAll(): could not request connection priority " + priorityToString(priority));
+                Thread.sleep(SETTLE_MILLIS);
+                for (int writeType : mWriteTypes) {
+                    for (int payloadSize : mPayloadSizes) {
+                        if (mCancelled)
+                            return results;
+                        Result result = runOne(payloadSize, writeType, priority);
+                        Log.i(TAG, "runAll(): " + result);
+                        results.add(result);
+                        listener.onProgress(results.size(), total, result);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.i(TAG, "runAll(): interrupted");
+        } finally {
+            mLink.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+        return results;
+    }
+
+    private Result runOne(int payloadSize, int writeType, int priority) throws InterruptedException {
+        final Result result = new Result(payloadSize, writeType, priority);
+        synchronized (this) {
+            mCurrent = result;
+            mRunId = (mRunId + 1) & 0xFF;
+            mSeen.clear();
+            mReassemblyLength = 0;
+            mRunStartNanos = System.nanoTime();
+            mLastReceiveNanos = 0;
+        }
+
+        byte[] frame = new byte[payloadSize];
+        for (int seq = 0; seq < mPacketsPerRun && !mCancelled; seq++) {
+            encodeFrame(frame, mRunId, seq, (int) ((System.nanoTime() - mRunStartNanos) / 1000));
+            if (sendAndWait(frame, writeType))
+                result.sent++;
+            else
+                result.sendFailures++;
+        }
+        result.txNanos = System.nanoTime() - mRunStartNanos;
+
+        // Wait for the stragglers: a few round trips, but at least MIN_DRAIN_MILLIS.
+        long drainMillis = Math.max(MIN_DRAIN_MILLIS, 4 * result.rtt.getPercentile(99) / 1000);
+        long deadline = System.currentTimeMillis() + drainMillis;
+        synchronized (this) {
+            long remaining;
+            while (result.received < result.sent && (remaining = deadline - System.currentTimeMillis()) > 0)
+                wait(remaining);
+            result.rxNanos = mLastReceiveNanos == 0 ? 0 : mLastReceiveNanos - mRunStartNanos;
+            mCurrent = null;
+        }
+        return result;
+    }
+
+    // Each send waits on its own semaphore, so a completion arriving after its send timed out
+    // can't be taken for the completion of a later one.
+    private boolean sendAndWait(byte[] frame, int writeType) throws InterruptedException {
+        final Semaphore done = new Semaphore(0);
+        final boolean[] ok = new boolean[1];
+        boolean queued = mLink.send(frame, writeType, new SerialLink.SendCallback() {
+            @Override
+            public void onSendComplete(boolean success) {
+                ok[0] = success;
+                done.release();
+            }
+        });
+        return queued && done.tryAcquire(SEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && ok[0];
+    }
+
+    private static void encodeFrame(byte[] frame, int runId, int seq, int timestampMicros) {
+        frame[0] = MAGIC;
+        frame[1] = (byte) runId;
+        frame[2] = (byte) (seq >> 8);
+        frame[3] = (byte) seq;
+        frame[4] = (byte) (timestampMicros >> 24);
+        frame[5] = (byte) (timestampMicros >> 16);
+        frame[6] = (byte) (timestampMicros >> 8);
+        frame[7] = (byte) timestampMicros;
+        for (int i = HEADER_SIZE; i < frame.length; i++)
+            frame[i] = (byte) (seq + i);
+    }
+
+    @Override
+    public synchronized void onReceive(byte[] data) {
+        Result result = mCurrent;
+        if (result == null)
+            return;
+        long nowNanos = System.nanoTime();
+        int nowMicros = (int) ((nowNanos - mRunStartNanos) / 1000);
+        int size = result.payloadSize;
+
+        for (byte b : data) {
+            if (mReassemblyLength == 0 && b != MAGIC)
+                continue;
+            mReassembly[mReassemblyLength++] = b;
+            if (mReassemblyLength < size)
+                continue;
+
+            if (!decodeFrame(result, size, nowMicros)) {
+                // Resynchronise on the next magic byte inside what we have buffered.
+                result.corrupt++;
+                int next = 1;
+                while (next < mReassemblyLength && mReassembly[next] != MAGIC)
+                    next++;
+                System.arraycopy(mReassembly, next, mReassembly, 0, mReassemblyLength - next);
+                mReassemblyLength -= next;
+            } else {
+                mReassemblyLength = 0;
+                mLastReceiveNanos = nowNanos;
+            }
+        }
+        notifyAll();
+    }
+
+    // Decodes the frame at the start of mReassembly, recording its round trip time.
+    private boolean decodeFrame(Result result, int size, int nowMicros) {
+        byte[] f = mReassembly;
+        if ((f[1] & 0xFF) != mRunId)
+            return false;
+        int seq = ((f[2] & 0xFF) << 8) | (f[3] & 0xFF);
+        for (int i = HEADER_SIZE; i < size; i++) {
+            if (f[i] != (byte) (seq + i))
+                return false;
+        }
+        if (mSeen.get(seq)) {
+            result.duplicates++;
+            return true;
+        }
+        mSeen.set(seq);
+        int sentMicros = ((f[4] & 0xFF) << 24) | ((f[5] & 0xFF) << 16) | ((f[6] & 0xFF) << 8) | (f[7] & 0xFF);
+        result.rtt.record(nowMicros - sentMicros);
+        result.received++;
+        return true;
+    }
+
+    /**
+     * Writes the results as CSV, one row per run, with the non-empty RTT histogram buckets
+     * ("upper bound in microseconds:count") in the last column.
+     */
+    public static void exportCsv(List<Result> results, File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("payload_bytes,write_type,connection_priority,sent,send_failures,received,lost,loss_percent,"
+                    + "duplicates,corrupt,tx_bytes_per_sec,rx_bytes_per_sec,rtt_min_us,rtt_mean_us,rtt_p50_us,"
+                    + "rtt_p90_us,rtt_p99_us,rtt_max_us,rtt_histogram\n");
+            for (Result r : results) {
+                writer.write(String.format("%d,%s,%s,%d,%d,%d,%d,%.2f,%d,%d,%.1f,%.1f,%d,%.0f,%d,%d,%d,%d,\"%s\"\n",
+                        r.payloadSize, writeTypeToString(r.writeType), priorityToString(r.connectionPriority),
+                        r.sent, r.sendFailures, r.received, r.getLost(), r.getLossPercent(), r.duplicates, r.corrupt,
+                        r.getTxBytesPerSecond(), r.getRxBytesPerSecond(), r.rtt.getMin(), r.rtt.getMean(),
+                        r.rtt.getPercentile(50), r.rtt.getPercentile(90), r.rtt.getPercentile(99), r.rtt.getMax(),
+                        r.rtt.toBucketString()));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    static String writeTypeToString(int writeType) {
+        return writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? "no_rsp" : "ack";
+    }
+
+    static String priorityToString(int priority) {
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "high";
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "lowpower";
+            default:
+                return "balanced";
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive Streams {@link Publisher} of the characteristic values received from a Bluno.
+ *
+ * Every subscriber gets its own bounded buffer and its own drain loop on the supplied
+ * {@link Executor}, so a slow consumer (e.g. the UI) never holds up a fast one (e.g. capture)
+ * nor the Bluetooth binder thread calling {@link #publish(BlunoPacket)}. Packets are only
+ * delivered as requested through {@link Subscription#request(long)}; what happens when a
+ * subscriber falls behind is decided by its {@link OverflowPolicy}.
+ */
+public class BlunoDataPublisher implements Publisher<BlunoPacket> {
+    private final static String TAG = BlunoDataPublisher.class.getSimpleName();
+
+    public static final int DEFAULT_BUFFER_SIZE = 128;
+
+    /**
+     * What to do with a new packet when a subscriber's buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Keep the buffered packets and discard the new one. */
+        BUFFER,
+        /** Discard the oldest buffered packet to make room for the new one. */
+        DROP_OLDEST,
+        /** Only ever hold the most recent packet; the buffer size is ignored. */
+        LATEST,
+        /** Terminate the subscription with an error. */
+        FAIL
+    }
+
+    private final Executor mExecutor;
+    private final CopyOnWriteArrayList<PacketSubscription> mSubscriptions = new CopyOnWriteArrayList<PacketSubscription>();
+    private final AtomicLong mDroppedPackets = new AtomicLong();
+    private volatile boolean mCompleted;
+
+    /**
+     * @param executor Executor the subscribers' drain loops run on. It must be able to run
+     *                 one task per active subscriber concurrently for subscribers to be isolated
+     *                 from each other, e.g. a cached thread pool. Once it is shut down,
+     *                 deliveries it refuses are dropped.
+     */
+    public BlunoDataPublisher(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Subscribes to every characteristic with a {@link OverflowPolicy#BUFFER} buffer of
+     * {@link #DEFAULT_BUFFER_SIZE} packets.
+     */
+    @Override
+    public void subscribe(Subscriber<? super BlunoPacket> subscriber) {
+        subscribe(subscriber, null, OverflowPolicy.BUFFER, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param subscriber The subscriber.
+     * @param characteristicUuid Only deliver packets from this characteristic, or null for all.
+     * @param policy What to do when the subscriber's buffer is full.
+     * @param bufferSize Capacity of the subscriber's buffer, in packets.
+     */
+    public void subscribe(Subscriber<? super BlunoPacket> subscriber, UUID characteristicUuid,
+                          OverflowPolicy policy, int bufferSize) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber == null");
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+
+        PacketSubscription subscription = new PacketSubscription(subscriber, characteristicUuid, policy,
+                policy == OverflowPolicy.LATEST ? 1 : bufferSize);
+        subscriber.onSubscribe(subscription);
+        if (mCompleted) {
+            subscription.complete();
+            return;
+        }
+        if (!subscription.mCancelled)
+            mSubscriptions.add(subscription);
+    }
+
+    /**
+     * @return A view of this publisher whose subscribers get the given filter, policy and buffer size.
+     */
+    public Publisher<BlunoPacket> select(final UUID characteristicUuid, final OverflowPolicy policy, final int bufferSize) {
+        return new Publisher<BlunoPacket>() {
+            @Override
+            public void subscribe(Subscriber<? super BlunoPacket> subscriber) {
+                BlunoDataPublisher.this.subscribe(subscriber, characteristicUuid, policy, bufferSize);
+            }
+        };
+    }
+
+    /**
+     * Hands a packet to every interested subscriber. Never blocks.
+     */
+    public void publish(BlunoPacket packet) {
+        publish(Collections.singletonList(packet));
+    }
+
+    /**
+     * Hands a batch of packets to every interested subscriber, in order. Each subscriber's
+     * buffer is locked, and its drain loop woken, once for the whole batch. Never blocks.
+     */
+    public void publish(List<BlunoPacket> packets) {
+        for (PacketSubscription subscription : mSubscriptions)
+            subscription.offer(packets);
+    }
+
+    /**
+     * Completes all current and future subscribers once their buffers are drained.
+     */
+    public void complete() {
+        mCompleted = true;
+        for (PacketSubscription subscription : mSubscriptions)
+            subscription.complete();
+        mSubscriptions.clear();
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     * @return Number of packets discarded across all subscribers because of buffer overflow.
+     */
+    public long getDroppedPacketCount() {
+        return mDroppedPackets.get();
+    }
+
+    private final class PacketSubscription implements Subscription, Runnable {
+        private final Subscriber<? super BlunoPacket> mSubscriber;
+        private final UUID mCharacteristicUuid;
+        private final OverflowPolicy mPolicy;
+        private final int mCapacity;
+        private final ArrayDeque<BlunoPacket> mBuffer; // guarded by this
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicInteger mWip = new AtomicInteger();
+        private volatile boolean mCancelled;
+        private volatile boolean mDone;
+        private volatile Throwable mError;
+        private boolean mTerminated; // only touched by the drain loop
+
+        PacketSubscription(Subscriber<? super BlunoPacket> subscriber, UUID characteristicUuid,
+                           OverflowPolicy policy, int capacity) {
+            mSubscriber = subscriber;
+            mCharacteristicUuid = characteristicUuid;
+            mPolicy = policy;
+            mCapacity = capacity;
+            mBuffer = new ArrayDeque<BlunoPacket>(Math.min(capacity, DEFAULT_BUFFER_SIZE));
+        }
+
+        void offer(List<BlunoPacket> packets) {
+            if (mCancelled || mDone)
+                return;
+
+            boolean added = false;
+            synchronized (this) {
+                for (BlunoPacket packet : packets) {
+                    if (mCharacteristicUuid != null && !mCharacteristicUuid.equals(packet.getCharacteristicUuid()))
+                        continue;
+                    if (mBuffer.size() >= mCapacity) {
+                        mDroppedPackets.incrementAndGet();
+                        switch (mPolicy) {
+                            case BUFFER:
+                                continue;
+                            case DROP_OLDEST:
+                            case LATEST:
+                                mBuffer.poll();
+                                break;
+                            case FAIL:
+                                mError = new IllegalStateException("Subscriber buffer overflowed (" + mCapacity + " packets)");
+                                mSubscriptions.remove(this);
+                                drain();
+                                return;
+                        }
+                    }
+                    mBuffer.offer(packet);
+                    added = true;
+                }
+            }
+            if (added)
+                drain();
+        }
+
+        void complete() {
+            mDone = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mError = new IllegalArgumentException("Rule 3.9: request must be positive, was " + n);
+                mSubscriptions.remove(this);
+                drain();
+                return;
+            }
+            for (;;) {
+                long current = mRequested.get();
+                long updated = current + n;
+                if (updated < 0)
+                    updated = Long.MAX_VALUE;
+                if (mRequested.compareAndSet(current, updated))
+                    break;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mSubscriptions.remove(this);
+            synchronized (this) {
+                mBuffer.clear();
+            }
+        }
+
+        private void drain() {
+            if (mWip.getAndIncrement() == 0) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    Log.d(TAG, "drain(): executor already shut down");
+                }
+            }
+        }
+
+        // Drain loop: at most one instance runs per subscription at any time.
+        @Override
+        public void run() {
+            int missed = 1;
+            for (;;) {
+                if (mCancelled || mTerminated)
+                    return;
+
+                if (mError != null) {
+                    terminate(mError);
+                    return;
+                }
+
+                long requested = mRequested.get();
+                long emitted = 0;
+                while (emitted != requested && !mCancelled) {
+                    BlunoPacket packet;
+                    synchronized (this) {
+                        packet = mBuffer.poll();
+                    }
+                    if (packet == null)
+                        break;
+                    try {
+                        mSubscriber.onNext(packet);
+                    } catch (Throwable t) {
+                        Log.e(TAG, "run(): subscriber threw from onNext(), cancelling", t);
+                        cancel();
+                        return;
+                    }
+                    emitted++;
+                }
+
+                if (mDone && !mCancelled) {
+                    boolean empty;
+                    synchronized (this) {
+                        empty = mBuffer.isEmpty();
+                    }
+                    if (empty) {
+                        terminate(null);
+                        return;
+                    }
+                }
+
+                if (emitted != 0 && requested != Long.MAX_VALUE)
+                    mRequested.addAndGet(-emitted);
+
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        private void terminate(Throwable error) {
+            mTerminated = true;
+            mCancelled = true;
+            synchronized (this) {
+                mBuffer.clear();
+            }
+            if (error != null)
+                mSubscriber.onError(error);
+            else
+                mSubscriber.onComplete();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Connections to a group of Blunos that can all be sent the same command at once, e.g. to start
+ * several robots together.
+ *
+ * Every member has its own connection and {@link GattOperationQueue}, so a group send is one
+ * control priority write per member, all issued back to back and then in flight in parallel.
+ * Writes are made with response, so each completion is the member's acknowledgement; they are
+ * gathered into one {@link GroupSendResult} reporting which members acknowledged and how far
+ * apart the first and last acknowledgements were. Members ask for the shortest connection
+ * interval, which bounds how long each one takes to get the write on the air.
+ *
+ * This is library code for apps built on {@link BluetoothLeService#getFleet()}: the demo's own
+ * screens only ever connect to one device.
+ */
+public class BlunoFleet {
+    private final static String TAG = BlunoFleet.class.getSimpleName();
+
+    private static final UUID SERIAL_PORT = UUID.fromString(BlunoGattAttributes.BLUNO_SERIAL_PORT_CHARACTERISTIC);
+
+    public interface GroupSendCallback {
+        /**
+         * Called once every member has acknowledged or failed, on the thread of the last one to do so.
+         */
+        void onGroupSendComplete(GroupSendResult result);
+    }
+
+    /**
+     * How one member fared in a group send.
+     */
+    public static class DeviceAck {
+        public final String address;
+        public final boolean success;
+        /** When the write was issued, in {@code SystemClock.elapsedRealtimeNanos()} time. */
+        public final long issuedNanos;
+        /** When the acknowledgement (or failure) arrived, in the same time. */
+        public final long ackNanos;
+
+        DeviceAck(String address, boolean success, long issuedNanos, long ackNanos) {
+            this.address = address;
+            this.success = success;
+            this.issuedNanos = issuedNanos;
+            this.ackNanos = ackNanos;
+        }
+
+        @Override
+        public String toString() {
+            return address + (success ? " ack after " + (ackNanos - issuedNanos) / 1000 + " us" : " failed");
+        }
+    }
+
+    /**
+     * The outcome of a group send: per member acknowledgements and their spread in time.
+     */
+    public static class GroupSendResult {
+        private final List<DeviceAck> mAcks;
+
+        GroupSendResult(List<DeviceAck> acks) {
+            mAcks = Collections.unmodifiableList(acks);
+        }
+
+        public List<DeviceAck> getAcks() {
+            return mAcks;
+        }
+
+        public int getAckCount() {
+            int count = 0;
+            for (DeviceAck ack : mAcks) {
+                if (ack.success)
+                    count++;
+            }
+            return count;
+        }
+
+        public boolean isComplete() {
+            return !mAcks.isEmpty() && getAckCount() == mAcks.size();
+        }
+
+        /**
+         * @return Time from the first to the last acknowledgement, in microseconds; the window in
+         *         which the members received the command.
+         */
+        public long getAckSkewMicros() {
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            for (DeviceAck ack : mAcks) {
+                if (!ack.success)
+                    continue;
+                first = Math.min(first, ack.ackNanos);
+                last = Math.max(last, ack.ackNanos);
+            }
+            return first > last ? 0 : (last - first) / 1000;
+        }
+
+        /**
+         * @return Time from the first write being issued to the last, in microseconds; how much
+         *         of the skew is down to dispatch rather than the links.
+         */
+        public long getIssueSkewMicros() {
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            for (DeviceAck ack : mAcks) {
+                if (ack.issuedNanos == 0)
+                    continue; // never issued
+                first = Math.min(first, ack.issuedNanos);
+                last = Math.max(last, ack.issuedNanos);
+            }
+            return first > last ? 0 : (last - first) / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return getAckCount() + "/" + mAcks.size() + " acked, ack skew " + getAckSkewMicros()
+                    + " us, issue skew " + getIssueSkewMicros() + " us";
+        }
+    }
+
+    private class Member extends BluetoothGattCallback {
+        final String mAddress;
+        final GattOperationQueue mQueue = new GattOperationQueue(Looper.getMainLooper());
+        BluetoothGatt mGatt;
+        volatile BluetoothGattCharacteristic mSerialPort; // null until services are discovered
+
+        Member(String address) {
+            mAddress = address;
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.i(TAG, "Member.onConnectionStateChange(): connected to " + mAddress);
+                mQueue.setGatt(gatt);
+                gatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.i(TAG, "Member.onConnectionStateChange(): disconnected from " + mAddress);
+                mSerialPort = null;
+                mQueue.setGatt(null);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Member.onServicesDiscovered(): " + mAddress + " got status: " + status);
+                return;
+            }
+            for (BluetoothGattService service : gatt.getServices()) {
+                BluetoothGattCharacteristic serialPort = service.getCharacteristic(SERIAL_PORT);
+                if (serialPort != null) {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                        gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                    mSerialPort = serialPort;
+                    Log.i(TAG, "Member.onServicesDiscovered(): " + mAddress + " is ready");
+                    return;
+                }
+            }
+            Log.w(TAG, "Member.onServicesDiscovered(): " + mAddress + " is not a Bluno");
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mQueue.onOperationComplete(GattOperation.TYPE_WRITE, characteristic, status);
+        }
+    }
+
+    // Collects the members' write completions into one result.
+    private static class GroupSend implements GattOperation.Callback {
+        private final GroupSendCallback mCallback;
+        private final Map<GattOperation, String> mAddresses = new LinkedHashMap<GattOperation, String>();
+        private final List<DeviceAck> mAcks = new ArrayList<DeviceAck>();
+
+        GroupSend(GroupSendCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            GroupSendResult result = null;
+            synchronized (this) {
+                mAcks.add(new DeviceAck(mAddresses.get(operation), status == BluetoothGatt.GATT_SUCCESS,
+                        operation.getIssuedRealtimeNanos(), operation.getCompletedRealtimeNanos()));
+                if (mAcks.size() == mAddresses.size())
+                    result = new GroupSendResult(mAcks);
+            }
+            if (result != null) {
+                Log.i(TAG, "GroupSend.onComplete(): " + result);
+                if (mCallback != null)
+                    mCallback.onGroupSendComplete(result);
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+    private final Map<String, Member> mMembers = new LinkedHashMap<String, Member>();
+
+    public BlunoFleet(Context context, BluetoothAdapter adapter) {
+        mContext = context;
+        mAdapter = adapter;
+    }
+
+    /**
+     * Connects to a Bluno and adds it to the group. It takes part in group sends once its
+     * services have been discovered.
+     *
+     * @return false if the device could not be found.
+     */
+    public synchronized boolean add(String address) {
+        if (mMembers.containsKey(address))
+            return true;
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        if (device == null) {
+            Log.w(TAG, "add(): device not found: " + address);
+            return false;
+        }
+        Member member = new Member(address);
+        mMembers.put(address, member);
+        member.mGatt = device.connectGatt(mContext, false, member);
+        return true;
+    }
+
+    /**
+     * Disconnects from a Bluno and removes it from the group.
+     */
+    public void remove(String address) {
+        Member member;
+        synchronized (this) {
+            member = mMembers.remove(address);
+        }
+        if (member != null)
+            close(member);
+    }
+
+    /**
+     * Disconnects from every member.
+     */
+    public void close() {
+        List<Member> members;
+        synchronized (this) {
+            members = new ArrayList<Member>(mMembers.values());
+            mMembers.clear();
+        }
+        for (Member member : members)
+            close(member);
+    }
+
+    /**
+     * @return Addresses of the members ready to take part in a group send.
+     */
+    public synchronized List<String> getReadyAddresses() {
+        List<String> ready = new ArrayList<String>();
+        for (Member member : mMembers.values()) {
+            if (member.mSerialPort != null)
+                ready.add(member.mAddress);
+        }
+        return ready;
+    }
+
+    public synchronized int size() {
+        return mMembers.size();
+    }
+
+    /**
+     * Writes the same payload to the serial port of every ready member at once.
+     *
+     * @param payload At most {@link SerialLink#MAX_PAYLOAD_SIZE} bytes, so each member gets the
+     *                command in a single write.
+     * @param callback Told once every member has acknowledged or failed. May be null.
+     * @return The number of members the payload was sent to; if 0 the callback is not called.
+     */
+    public int send(byte[] payload, GroupSendCallback callback) {
+        if (payload.length > SerialLink.MAX_PAYLOAD_SIZE)
+            throw new IllegalArgumentException("payload longer than " + SerialLink.MAX_PAYLOAD_SIZE + " bytes: " + payload.length);
+        GroupSend groupSend = new GroupSend(callback);
+        List<Member> targets = new ArrayList<Member>();
+        List<GattOperation> writes = new ArrayList<GattOperation>();
+        synchronized (this) {
+            for (Member member : mMembers.values()) {
+                BluetoothGattCharacteristic serialPort = member.mSerialPort;
+                if (serialPort == null)
+                    continue;
+                GattOperation write = GattOperation.write(serialPort, payload,
+                        BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, groupSend).setPriority(GattOperation.PRIORITY_CONTROL);
+                groupSend.mAddresses.put(write, member.mAddress);
+                targets.add(member);
+                writes.add(write);
+            }
+        }
+        // Everything is prepared up front so the writes are issued as close together as possible.
+        for (int i = 0; i < writes.size(); i++)
+            targets.get(i).mQueue.enqueue(writes.get(i));
+        return writes.size();
+    }
+
+    private static void close(Member member) {
+        member.mSerialPort = null;
+        member.mQueue.setGatt(null);
+        if (member.mGatt != null) {
+            member.mGatt.disconnect();
+            member.mGatt.close();
+        }
+    }
+}
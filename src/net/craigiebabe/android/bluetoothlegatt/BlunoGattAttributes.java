@@ -28,14 +28,25 @@ public class BlunoGattAttributes {
     public static final String BLUNO_SERIAL_PORT_CHARACTERISTIC  = "0000dfb1-0000-1000-8000-00805f9b34fb";
 	public static final String BLUNO_COMMAND_CHARACTERISTIC      = "0000dfb2-0000-1000-8000-00805f9b34fb";
     public static final String BLUNO_MODEL_NUMBER_CHARACTERISTIC = "00002a24-0000-1000-8000-00805f9b34fb";
+    public static final String CLIENT_CHARACTERISTIC_CONFIG      = "00002902-0000-1000-8000-00805f9b34fb";
     
     static {
         // Sample Services.
+        attributes.put("00001800-0000-1000-8000-00805f9b34fb", "Generic Access");
+        attributes.put("00001801-0000-1000-8000-00805f9b34fb", "Generic Attribute");
+        attributes.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information");
+        attributes.put("0000dfb0-0000-1000-8000-00805f9b34fb", "Bluno Serial");
 
         // Sample Characteristics.
         attributes.put(BLUNO_SERIAL_PORT_CHARACTERISTIC, "Bluno Serial Port");
         attributes.put(BLUNO_COMMAND_CHARACTERISTIC, "Bluno Command");
         attributes.put(BLUNO_MODEL_NUMBER_CHARACTERISTIC, "Bluno Model Number");
+
+        // Descriptors.
+        attributes.put("00002900-0000-1000-8000-00805f9b34fb", "Extended Properties");
+        attributes.put("00002901-0000-1000-8000-00805f9b34fb", "User Description");
+        attributes.put(CLIENT_CHARACTERISTIC_CONFIG, "Client Characteristic Configuration");
+        attributes.put("00002904-0000-1000-8000-00805f9b34fb", "Presentation Format");
     }
 
     public static String lookup(String uuid, String defaultName) {
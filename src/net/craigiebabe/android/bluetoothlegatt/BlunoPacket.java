@@ -0,0 +1,75 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * An immutable snapshot of a characteristic value received from a Bluno, either as the result
+ * of a read or of a remote notification, stamped with the time it arrived.
+ */
+public final class BlunoPacket {
+    private final UUID mCharacteristicUuid;
+    private final byte[] mValue;
+    private final long mTimestampNanos;
+
+    /**
+     * Creates a packet stamped with the current time; call it in the GATT callback.
+     *
+     * @param characteristicUuid UUID of the characteristic the value came from.
+     * @param value The raw value. The array is copied, since the Bluetooth stack reuses the
+     *              characteristic's value buffer between callbacks.
+     */
+    public BlunoPacket(UUID characteristicUuid, byte[] value) {
+        this(characteristicUuid, value, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * @param timestampNanos Arrival time, in {@code SystemClock.elapsedRealtimeNanos()} time.
+     */
+    public BlunoPacket(UUID characteristicUuid, byte[] value, long timestampNanos) {
+        this(characteristicUuid, value, 0, value == null ? 0 : value.length, timestampNanos);
+    }
+
+    /**
+     * Creates a packet from part of a buffer, which is copied.
+     */
+    public BlunoPacket(UUID characteristicUuid, byte[] buffer, int offset, int length, long timestampNanos) {
+        mCharacteristicUuid = characteristicUuid;
+        mValue = length == 0 ? new byte[0] : Arrays.copyOfRange(buffer, offset, offset + length);
+        mTimestampNanos = timestampNanos;
+    }
+
+    public UUID getCharacteristicUuid() {
+        return mCharacteristicUuid;
+    }
+
+    /**
+     * @return The raw value. Callers must not modify the returned array.
+     */
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return When the packet arrived, in {@code SystemClock.elapsedRealtimeNanos()} time.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    public int length() {
+        return mValue.length;
+    }
+
+    public boolean isFrom(String uuid) {
+        return mCharacteristicUuid != null && mCharacteristicUuid.toString().equals(uuid);
+    }
+
+    @Override
+    public String toString() {
+        return BlunoGattAttributes.lookup(String.valueOf(mCharacteristicUuid), String.valueOf(mCharacteristicUuid))
+                + " [" + mValue.length + " bytes]";
+    }
+}
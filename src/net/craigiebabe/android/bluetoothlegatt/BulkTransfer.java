@@ -0,0 +1,453 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a file to the Arduino over a {@link SerialLink} with a sliding window protocol.
+ *
+ * Chunks are written without response, so several are in flight at once; the Arduino
+ * acknowledges cumulatively and the window is sized from the measured round trip time: it grows
+ * while the RTT stays near the minimum seen and shrinks once queueing delay builds up. Lost
+ * chunks are resent go-back-N style after a retransmission timeout or three duplicate acks;
+ * every resend is counted by the {@link LinkMonitor}, if given one.
+ * After a disconnect, {@link #resume(SerialLink)} asks the Arduino where it got to and carries
+ * on from there.
+ *
+ * Wire format (all integers big endian):
+ * <pre>
+ * phone -> Arduino  START  B8 id(2) size(4)
+ *                   DATA   B6 seq(2) len(1) payload(len &lt;= 15) xor(1)
+ *                   END    B9 id(2)
+ * Arduino -> phone  ACK    B7 id(2) next(2)   next = lowest chunk not yet received
+ * </pre>
+ * xor covers the payload only. The Arduino answers START with an ACK for the chunks it already
+ * holds for that transfer id (0 for a new one) and every DATA chunk with an ACK; chunks out of
+ * order or failing the checksum are dropped and re-acked. The README has a sketch that does so.
+ */
+public class BulkTransfer implements SerialLink.Listener {
+    private final static String TAG = BulkTransfer.class.getSimpleName();
+
+    public interface Listener {
+        void onProgress(long bytesAcked, long totalBytes, double bytesPerSecond, int window);
+        void onComplete(long totalBytes, long elapsedMillis);
+        void onError(String message);
+    }
+
+    public static final int CHUNK_SIZE = 15;
+    public static final int MAX_CHUNKS = 0xFFFF;
+
+    private static final byte MAGIC_DATA = (byte) 0xB6;
+    private static final byte MAGIC_ACK = (byte) 0xB7;
+    private static final byte MAGIC_START = (byte) 0xB8;
+    private static final byte MAGIC_END = (byte) 0xB9;
+    private static final int ACK_SIZE = 5;
+
+    private static final int MIN_WINDOW = 4;
+    private static final int MAX_WINDOW = 32;
+    private static final long MIN_RTO_MILLIS = 100;
+    private static final long MAX_RTO_MILLIS = 4000;
+    private static final int MAX_START_ATTEMPTS = 5;
+    private static final int MAX_TIMEOUTS = 10;
+    // RTT above this multiple of the minimum is taken as queueing, i.e. the window is too big.
+    private static final double QUEUEING_RTT_FACTOR = 2.0;
+
+    private enum State { IDLE, STARTING, SENDING, PAUSED, DONE, FAILED }
+
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final int mChunkCount;
+    private final int mTransferId;
+    private final Listener mListener;
+    private final LinkMonitor mMonitor;
+    // All protocol state is only touched on this thread.
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private SerialLink mLink;
+    private State mState = State.IDLE;
+    private int mBase;
+    private int mNextSeq;
+    private int mHighestSent;
+    private double mWindow = MIN_WINDOW;
+    private boolean mSlowStart = true;
+    private boolean mWriteInFlight;
+    private final long[] mSentNanos = new long[MAX_WINDOW];
+    private final boolean[] mRetransmitted = new boolean[MAX_WINDOW];
+    private long mSrttNanos;
+    private long mRttVarNanos;
+    private long mMinRttNanos = Long.MAX_VALUE;
+    private long mRtoMillis = 1000;
+    private int mDuplicateAcks;
+    private int mStartAttempts;
+    private int mConsecutiveTimeouts;
+    private ScheduledFuture<?> mTimer;
+    private long mStartNanos;
+    private final ByteBuffer mChunkBuffer = ByteBuffer.allocate(CHUNK_SIZE);
+    private final byte[] mAckBuffer = new byte[ACK_SIZE];
+    private int mAckLength;
+
+    /**
+     * @param channel The file to send; read on demand, so memory use does not depend on its size.
+     * @param name Name of the file, used to derive the transfer id the Arduino resumes by.
+     * @param monitor Told of every resent frame, or null.
+     */
+    public BulkTransfer(FileChannel channel, String name, LinkMonitor monitor, Listener listener) throws IOException {
+        mChannel = channel;
+        mSize = channel.size();
+        long chunks = (mSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunks > MAX_CHUNKS)
+            throw new IOException("File too large for bulk transfer: " + mSize + " bytes");
+        mChunkCount = (int) chunks;
+        mTransferId = (name.hashCode() ^ (int) mSize ^ (int) (mSize >>> 32)) & 0xFFFF;
+        mListener = listener;
+        mMonitor = monitor;
+    }
+
+    /**
+     * Starts sending. The transfer owns the link from here on and closes it when done.
+     */
+    public void start(SerialLink link) {
+        resume(link);
+    }
+
+    /**
+     * Stops sending (e.g. on disconnect), keeping what has been acknowledged.
+     */
+    public void pause() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.STARTING && mState != State.SENDING)
+                    return;
+                Log.i(TAG, "pause(): paused at chunk " + mBase + "/" + mChunkCount);
+                mState = State.PAUSED;
+                detach();
+            }
+        });
+    }
+
+    /**
+     * Continues a transfer over a new link, from wherever the Arduino says it got to. The
+     * transfer owns the link from here on and closes it when done.
+     */
+    public void resume(final SerialLink link) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.DONE || mState == State.FAILED)
+                    return;
+                detach();
+                mLink = link;
+                link.setListener(BulkTransfer.this);
+                link.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                if (mStartNanos == 0)
+                    mStartNanos = System.nanoTime();
+                mState = State.STARTING;
+                mStartAttempts = 0;
+                mWriteInFlight = false;
+                mAckLength = 0;
+                sendStart();
+            }
+        });
+    }
+
+    public void cancel() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                fail("cancelled");
+            }
+        });
+    }
+
+    public boolean isPaused() {
+        return mState == State.PAUSED;
+    }
+
+    // Called on the link's thread.
+    @Override
+    public void onReceive(final byte[] data) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                parseAcks(data);
+            }
+        });
+    }
+
+    // Events arriving after the transfer has finished are dropped.
+    private void post(Runnable runnable) {
+        try {
+            mExecutor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "post(): transfer already finished");
+        }
+    }
+
+    private void parseAcks(byte[] data) {
+        for (byte b : data) {
+            if (mAckLength == 0 && b != MAGIC_ACK)
+                continue; // Ordinary Arduino serial output.
+            mAckBuffer[mAckLength++] = b;
+            if (mAckLength < ACK_SIZE)
+                continue;
+            mAckLength = 0;
+            int id = ((mAckBuffer[1] & 0xFF) << 8) | (mAckBuffer[2] & 0xFF);
+            int next = ((mAckBuffer[3] & 0xFF) << 8) | (mAckBuffer[4] & 0xFF);
+            if (id == mTransferId)
+                onAck(next);
+        }
+    }
+
+    private void sendStart() {
+        if (++mStartAttempts > MAX_START_ATTEMPTS) {
+            fail("Arduino did not answer the transfer request");
+            return;
+        }
+        if (mStartAttempts > 1 && mMonitor != null)
+            mMonitor.onRetry();
+        byte[] frame = new byte[] { MAGIC_START, (byte) (mTransferId >> 8), (byte) mTransferId,
+                (byte) (mSize >> 24), (byte) (mSize >> 16), (byte) (mSize >> 8), (byte) mSize };
+        mLink.send(frame, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, null);
+        armTimer();
+    }
+
+    private void onAck(int next) {
+        if (mState == State.STARTING) {
+            if (next > mChunkCount) {
+                fail("Arduino acknowledged chunk " + next + " of " + mChunkCount);
+                return;
+            }
+            Log.i(TAG, "onAck(): Arduino has " + next + "/" + mChunkCount + " chunks, sending from there");
+            mState = State.SENDING;
+            mBase = next;
+            mNextSeq = next;
+            mHighestSent = Math.max(mHighestSent, next);
+            mDuplicateAcks = 0;
+            if (mBase == mChunkCount) {
+                finish(); // Nothing left to send, e.g. the final ack was lost before a resume.
+                return;
+            }
+            pump();
+            return;
+        }
+        if (mState != State.SENDING)
+            return;
+
+        if (next <= mBase) {
+            // Duplicate: the Arduino dropped something after mBase.
+            if (++mDuplicateAcks == 3)
+                goBackN("fast retransmit");
+            return;
+        }
+        if (next > mHighestSent)
+            return; // Acknowledges chunks never sent.
+        // Acks for chunks sent before going back still count.
+        if (next > mNextSeq)
+            mNextSeq = next;
+
+        int newest = next - 1;
+        if (!mRetransmitted[newest % MAX_WINDOW])
+            sampleRtt(System.nanoTime() - mSentNanos[newest % MAX_WINDOW]);
+        int acked = next - mBase;
+        mBase = next;
+        mDuplicateAcks = 0;
+        mConsecutiveTimeouts = 0;
+        growWindow(acked);
+
+        long bytesAcked = Math.min(mSize, (long) mBase * CHUNK_SIZE);
+        double seconds = (System.nanoTime() - mStartNanos) / 1e9;
+        mListener.onProgress(bytesAcked, mSize, seconds > 0 ? bytesAcked / seconds : 0, (int) mWindow);
+
+        if (mBase == mChunkCount) {
+            finish();
+            return;
+        }
+        armTimer();
+        pump();
+    }
+
+    // Sends chunks while the window allows; one write at a time, the next on write completion.
+    private void pump() {
+        if (mState != State.SENDING || mWriteInFlight)
+            return;
+        if (mNextSeq >= mChunkCount || mNextSeq - mBase >= (int) mWindow)
+            return;
+
+        final int seq = mNextSeq;
+        byte[] frame;
+        try {
+            frame = readChunkFrame(seq);
+        } catch (IOException e) {
+            fail("Unable to read file: " + e.getMessage());
+            return;
+        }
+        mSentNanos[seq % MAX_WINDOW] = System.nanoTime();
+        if (seq >= mHighestSent) {
+            mRetransmitted[seq % MAX_WINDOW] = false;
+            mHighestSent = seq + 1;
+        } else if (mMonitor != null) {
+            mMonitor.onRetry();
+        }
+        mNextSeq++;
+        mWriteInFlight = true;
+        if (mTimer == null)
+            armTimer();
+
+        boolean queued = mLink.send(frame, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, new SerialLink.SendCallback() {
+            @Override
+            public void onSendComplete(final boolean success) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mWriteInFlight = false;
+                        if (!success && mState == State.SENDING && mNextSeq > seq)
+                            mNextSeq = seq; // Try again from here.
+                        pump();
+                    }
+                });
+            }
+        });
+        if (!queued) {
+            mWriteInFlight = false;
+            mNextSeq = seq;
+        }
+    }
+
+    private byte[] readChunkFrame(int seq) throws IOException {
+        mChunkBuffer.clear();
+        long position = (long) seq * CHUNK_SIZE;
+        int length = (int) Math.min(CHUNK_SIZE, mSize - position);
+        mChunkBuffer.limit(length);
+        while (mChunkBuffer.hasRemaining()) {
+            if (mChannel.read(mChunkBuffer, position + mChunkBuffer.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+
+        byte[] frame = new byte[5 + length];
+        frame[0] = MAGIC_DATA;
+        frame[1] = (byte) (seq >> 8);
+        frame[2] = (byte) seq;
+        frame[3] = (byte) length;
+        byte xor = 0;
+        byte[] chunk = mChunkBuffer.array();
+        for (int i = 0; i < length; i++) {
+            frame[4 + i] = chunk[i];
+            xor ^= chunk[i];
+        }
+        frame[4 + length] = xor;
+        return frame;
+    }
+
+    private void sampleRtt(long rttNanos) {
+        if (rttNanos < mMinRttNanos)
+            mMinRttNanos = rttNanos;
+        if (mSrttNanos == 0) {
+            mSrttNanos = rttNanos;
+            mRttVarNanos = rttNanos / 2;
+        } else {
+            // RFC 6298 smoothing.
+            mRttVarNanos = (3 * mRttVarNanos + Math.abs(mSrttNanos - rttNanos)) / 4;
+            mSrttNanos = (7 * mSrttNanos + rttNanos) / 8;
+        }
+        long rto = (mSrttNanos + 4 * mRttVarNanos) / 1000000;
+        mRtoMillis = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, rto));
+
+        if (rttNanos > mMinRttNanos * QUEUEING_RTT_FACTOR) {
+            // Chunks are queueing somewhere: back off towards the bandwidth-delay product.
+            mSlowStart = false;
+            mWindow = Math.max(MIN_WINDOW, mWindow - 1);
+        }
+    }
+
+    private void growWindow(int acked) {
+        if (mSrttNanos > mMinRttNanos * QUEUEING_RTT_FACTOR)
+            return;
+        if (mSlowStart)
+            mWindow += acked;
+        else
+            mWindow += (double) acked / mWindow;
+        mWindow = Math.min(MAX_WINDOW, mWindow);
+    }
+
+    private void goBackN(String reason) {
+        Log.d(TAG, "goBackN(): " + reason + ", resending from chunk " + mBase);
+        for (int seq = mBase; seq < mNextSeq; seq++)
+            mRetransmitted[seq % MAX_WINDOW] = true;
+        mNextSeq = mBase;
+        mDuplicateAcks = 0;
+        mSlowStart = false;
+        mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+        pump();
+    }
+
+    private void armTimer() {
+        if (mTimer != null)
+            mTimer.cancel(false);
+        mTimer = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mTimer = null;
+                onTimeout();
+            }
+        }, mRtoMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void onTimeout() {
+        if (mState == State.STARTING) {
+            sendStart();
+        } else if (mState == State.SENDING && mBase < mNextSeq) {
+            if (++mConsecutiveTimeouts > MAX_TIMEOUTS) {
+                fail("No acknowledgements from the Arduino");
+                return;
+            }
+            mRtoMillis = Math.min(MAX_RTO_MILLIS, mRtoMillis * 2);
+            goBackN("timeout");
+            armTimer();
+        }
+    }
+
+    private void finish() {
+        mState = State.DONE;
+        mLink.send(new byte[] { MAGIC_END, (byte) (mTransferId >> 8), (byte) mTransferId },
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, null);
+        long elapsedMillis = (System.nanoTime() - mStartNanos) / 1000000;
+        Log.i(TAG, "finish(): sent " + mSize + " bytes in " + elapsedMillis + " ms");
+        detach();
+        mListener.onComplete(mSize, elapsedMillis);
+        mExecutor.shutdown();
+    }
+
+    private void fail(String message) {
+        if (mState == State.DONE || mState == State.FAILED)
+            return;
+        Log.w(TAG, "fail(): " + message);
+        mState = State.FAILED;
+        detach();
+        mListener.onError(message);
+        mExecutor.shutdown();
+    }
+
+    private void detach() {
+        if (mTimer != null) {
+            mTimer.cancel(false);
+            mTimer = null;
+        }
+        if (mLink != null) {
+            mLink.setListener(null);
+            mLink.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            mLink.close();
+            mLink = null;
+        }
+    }
+}
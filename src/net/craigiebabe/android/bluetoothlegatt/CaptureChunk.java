@@ -0,0 +1,251 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A block of captured packets stored column by column, the unit in which capture files are
+ * written and read. Its buffers only ever grow, so one chunk can be reused for a whole session.
+ *
+ * On disk: {@code magic, count, firstMicros, lastMicros, uuidCount, uuid[uuidCount],
+ * then four length-prefixed columns}: timestamps (varint deltas from the previous record),
+ * characteristic (index into the chunk's UUID table), payload length (varint) and the payloads
+ * back to back. The header alone says which time span a chunk covers, so readers can skip chunks
+ * outside a time range without decoding them.
+ */
+class CaptureChunk {
+
+    static final int MAGIC = 0x42434b31; // "BCK1"
+    private static final int MAX_UUIDS = 255;
+
+    private int mCount;
+    private long mFirstMicros;
+    private long mLastMicros;
+    private UUID[] mUuids = new UUID[8];
+    private int mUuidCount;
+
+    private byte[] mTimestamps = new byte[4096];
+    private int mTimestampsLength;
+    private byte[] mChannels = new byte[1024];
+    private byte[] mLengths = new byte[1024];
+    private int mLengthsLength;
+    private byte[] mPayloads = new byte[16384];
+    private int mPayloadsLength;
+
+    // Decoded by read(), so records can be accessed by index.
+    private long[] mRecordMicros = new long[0];
+    private int[] mRecordOffsets = new int[0];
+    private int[] mRecordLengths = new int[0];
+
+    void clear() {
+        mCount = 0;
+        mUuidCount = 0;
+        mTimestampsLength = 0;
+        mLengthsLength = 0;
+        mPayloadsLength = 0;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    long getFirstMicros() {
+        return mFirstMicros;
+    }
+
+    long getLastMicros() {
+        return mLastMicros;
+    }
+
+    /**
+     * @return false if the chunk's UUID table is full; the record was not added.
+     */
+    boolean append(long micros, UUID uuid, byte[] value, int offset, int length) {
+        int channel = channelOf(uuid);
+        if (channel < 0)
+            return false;
+        if (mCount == 0) {
+            mFirstMicros = micros;
+            mLastMicros = micros;
+        }
+        mTimestamps = ensure(mTimestamps, mTimestampsLength + 10);
+        mTimestampsLength = writeVarLong(mTimestamps, mTimestampsLength, Math.max(0, micros - mLastMicros));
+        mLastMicros = Math.max(micros, mLastMicros);
+        mChannels = ensure(mChannels, mCount + 1);
+        mChannels[mCount] = (byte) channel;
+        mLengths = ensure(mLengths, mLengthsLength + 5);
+        mLengthsLength = writeVarLong(mLengths, mLengthsLength, length);
+        mPayloads = ensure(mPayloads, mPayloadsLength + length);
+        System.arraycopy(value, offset, mPayloads, mPayloadsLength, length);
+        mPayloadsLength += length;
+        mCount++;
+        return true;
+    }
+
+    int getPayloadBytes() {
+        return mPayloadsLength;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(mCount);
+        out.writeLong(mFirstMicros);
+        out.writeLong(mLastMicros);
+        out.writeByte(mUuidCount);
+        for (int i = 0; i < mUuidCount; i++) {
+            out.writeLong(mUuids[i].getMostSignificantBits());
+            out.writeLong(mUuids[i].getLeastSignificantBits());
+        }
+        writeColumn(out, mTimestamps, mTimestampsLength);
+        writeColumn(out, mChannels, mCount);
+        writeColumn(out, mLengths, mLengthsLength);
+        writeColumn(out, mPayloads, mPayloadsLength);
+    }
+
+    /**
+     * Reads the next chunk's header, leaving its columns unread.
+     *
+     * @return false at the end of the stream.
+     */
+    boolean readHeader(DataInputStream in) throws IOException {
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (magic != MAGIC)
+            throw new IOException("Corrupt capture: bad chunk magic");
+        clear();
+        mCount = in.readInt();
+        mFirstMicros = in.readLong();
+        mLastMicros = in.readLong();
+        mUuidCount = in.readUnsignedByte();
+        mUuids = ensure(mUuids, mUuidCount);
+        for (int i = 0; i < mUuidCount; i++)
+            mUuids[i] = new UUID(in.readLong(), in.readLong());
+        return true;
+    }
+
+    /**
+     * Skips the columns of a chunk whose header has just been read.
+     */
+    void skipColumns(DataInputStream in) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            int length = in.readInt();
+            if (in.skipBytes(length) != length)
+                throw new EOFException("Truncated capture");
+        }
+    }
+
+    /**
+     * Reads and decodes the columns of a chunk whose header has just been read.
+     */
+    void readColumns(DataInputStream in) throws IOException {
+        mTimestampsLength = in.readInt();
+        mTimestamps = ensure(mTimestamps, mTimestampsLength);
+        in.readFully(mTimestamps, 0, mTimestampsLength);
+        int channels = in.readInt();
+        mChannels = ensure(mChannels, channels);
+        in.readFully(mChannels, 0, channels);
+        mLengthsLength = in.readInt();
+        mLengths = ensure(mLengths, mLengthsLength);
+        in.readFully(mLengths, 0, mLengthsLength);
+        mPayloadsLength = in.readInt();
+        mPayloads = ensure(mPayloads, mPayloadsLength);
+        in.readFully(mPayloads, 0, mPayloadsLength);
+
+        if (mRecordMicros.length < mCount) {
+            mRecordMicros = new long[mCount];
+            mRecordOffsets = new int[mCount];
+            mRecordLengths = new int[mCount];
+        }
+        long micros = mFirstMicros;
+        int timestampPosition = 0;
+        int lengthPosition = 0;
+        int offset = 0;
+        long[] value = new long[1];
+        for (int i = 0; i < mCount; i++) {
+            timestampPosition = readVarLong(mTimestamps, timestampPosition, value);
+            micros += value[0];
+            lengthPosition = readVarLong(mLengths, lengthPosition, value);
+            mRecordMicros[i] = micros;
+            mRecordOffsets[i] = offset;
+            mRecordLengths[i] = (int) value[0];
+            offset += (int) value[0];
+        }
+        if (offset != mPayloadsLength)
+            throw new IOException("Corrupt capture: payload lengths don't add up");
+    }
+
+    long getMicros(int record) {
+        return mRecordMicros[record];
+    }
+
+    UUID getUuid(int record) {
+        return mUuids[mChannels[record] & 0xFF];
+    }
+
+    byte[] getPayloads() {
+        return mPayloads;
+    }
+
+    int getOffset(int record) {
+        return mRecordOffsets[record];
+    }
+
+    int getLength(int record) {
+        return mRecordLengths[record];
+    }
+
+    private int channelOf(UUID uuid) {
+        for (int i = 0; i < mUuidCount; i++) {
+            if (mUuids[i].equals(uuid))
+                return i;
+        }
+        if (mUuidCount == MAX_UUIDS)
+            return -1;
+        mUuids = ensure(mUuids, mUuidCount + 1);
+        mUuids[mUuidCount] = uuid;
+        return mUuidCount++;
+    }
+
+    private static void writeColumn(DataOutputStream out, byte[] column, int length) throws IOException {
+        out.writeInt(length);
+        out.write(column, 0, length);
+    }
+
+    private static int writeVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readVarLong(byte[] buffer, int position, long[] value) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer[position++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                value[0] = result;
+                return position;
+            }
+        }
+        throw new IOException("Corrupt capture: bad varint");
+    }
+
+    private static byte[] ensure(byte[] buffer, int capacity) {
+        return capacity <= buffer.length ? buffer : Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+
+    private static UUID[] ensure(UUID[] array, int capacity) {
+        return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+}
@@ -0,0 +1,147 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.UUID;
+
+/**
+ * Exports a capture written by {@link SessionRecorder}, whole or just a time range, as CSV for
+ * spreadsheets and desktop tools or as a smaller capture in the same columnar format.
+ *
+ * Captures are streamed one chunk at a time through a single reusable {@link CaptureChunk}, and
+ * chunks entirely outside the time range are skipped by their headers without being decoded, so
+ * memory use does not depend on the length of the capture.
+ */
+public class CaptureExporter {
+
+    public static final long ALL = -1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    interface RecordVisitor {
+        void visit(CaptureChunk chunk, int record) throws IOException;
+    }
+
+    /**
+     * Writes {@code time_us,characteristic,length,hex,text} rows, one per packet.
+     *
+     * @param fromMillis Start of the range (ms since the epoch, inclusive), or {@link #ALL}.
+     * @param toMillis End of the range (exclusive), or {@link #ALL}.
+     * @return The number of packets exported.
+     */
+    public static long exportCsv(File capture, File csv, long fromMillis, long toMillis) throws IOException {
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), "UTF-8"), BUFFER_SIZE);
+        final StringBuilder row = new StringBuilder(256);
+        try {
+            out.write("time_us,characteristic,length,hex,text\n");
+            return scan(capture, fromMillis, toMillis, new RecordVisitor() {
+                @Override
+                public void visit(CaptureChunk chunk, int record) throws IOException {
+                    byte[] payloads = chunk.getPayloads();
+                    int offset = chunk.getOffset(record);
+                    int length = chunk.getLength(record);
+                    row.setLength(0);
+                    row.append(chunk.getMicros(record)).append(',').append(chunk.getUuid(record)).append(',')
+                            .append(length).append(',');
+                    for (int i = offset; i < offset + length; i++)
+                        row.append(HEX[(payloads[i] >> 4) & 0xF]).append(HEX[payloads[i] & 0xF]);
+                    row.append(",\"");
+                    for (int i = offset; i < offset + length; i++) {
+                        char c = (char) (payloads[i] & 0xFF);
+                        if (c == '"')
+                            row.append("\"\"");
+                        else
+                            row.append(c >= 0x20 && c < 0x7f ? c : '.');
+                    }
+                    row.append("\"\n");
+                    out.append(row);
+                }
+            });
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copies the packets in the time range to a new capture file.
+     *
+     * @return The number of packets exported.
+     */
+    public static long exportCapture(File capture, File destination, long fromMillis, long toMillis) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destination), BUFFER_SIZE));
+        final CaptureChunk output = new CaptureChunk();
+        try {
+            out.writeInt(SessionRecorder.FILE_MAGIC);
+            out.writeInt(SessionRecorder.FILE_VERSION);
+            out.writeLong(fromMillis == ALL ? System.currentTimeMillis() : fromMillis);
+            long count = scan(capture, fromMillis, toMillis, new RecordVisitor() {
+                @Override
+                public void visit(CaptureChunk chunk, int record) throws IOException {
+                    UUID uuid = chunk.getUuid(record);
+                    if (output.getCount() >= SessionRecorder.RECORDS_PER_CHUNK
+                            || !output.append(chunk.getMicros(record), uuid, chunk.getPayloads(), chunk.getOffset(record), chunk.getLength(record))) {
+                        output.write(out);
+                        output.clear();
+                        output.append(chunk.getMicros(record), uuid, chunk.getPayloads(), chunk.getOffset(record), chunk.getLength(record));
+                    }
+                }
+            });
+            if (output.getCount() > 0)
+                output.write(out);
+            return count;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Calls the visitor for every packet in the time range, in capture order.
+     *
+     * @return The number of packets visited.
+     */
+    static long scan(File capture, long fromMillis, long toMillis, RecordVisitor visitor) throws IOException {
+        long fromMicros = fromMillis == ALL ? Long.MIN_VALUE : fromMillis * 1000;
+        long toMicros = toMillis == ALL ? Long.MAX_VALUE : toMillis * 1000;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(capture), BUFFER_SIZE));
+        try {
+            if (in.readInt() != SessionRecorder.FILE_MAGIC)
+                throw new IOException("Not a Bluno capture: " + capture);
+            int version = in.readInt();
+            if (version != SessionRecorder.FILE_VERSION)
+                throw new IOException("Unsupported capture version " + version);
+            in.readLong(); // start time
+
+            CaptureChunk chunk = new CaptureChunk();
+            long count = 0;
+            while (chunk.readHeader(in)) {
+                if (chunk.getFirstMicros() >= toMicros)
+                    break; // chunks are in time order
+                if (chunk.getLastMicros() < fromMicros) {
+                    chunk.skipColumns(in);
+                    continue;
+                }
+                chunk.readColumns(in);
+                for (int i = 0; i < chunk.getCount(); i++) {
+                    long micros = chunk.getMicros(i);
+                    if (micros >= fromMicros && micros < toMicros) {
+                        visitor.visit(chunk, i);
+                        count++;
+                    }
+                }
+            }
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+}
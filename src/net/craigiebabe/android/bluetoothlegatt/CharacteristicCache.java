@@ -0,0 +1,175 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Characteristic values last read from each device, kept so that values which rarely or never
+ * change don't cost a round trip every time they are wanted.
+ *
+ * Only characteristics given a {@link Policy} are cached. A value is fresh forever
+ * ({@link Policy#IMMUTABLE}, e.g. the model number), for a fixed time ({@link Policy#ttl(long)}),
+ * or until the device notifies a change ({@link Policy#INVALIDATE_ON_NOTIFY}); the latter are also
+ * dropped on disconnect, since notifications sent while disconnected are lost. Values are kept per
+ * device address, so reconnecting to the same device reuses them.
+ */
+public class CharacteristicCache {
+
+    /**
+     * How long a cached value stays fresh.
+     */
+    public static final class Policy {
+        private static final long FOREVER = Long.MAX_VALUE;
+
+        public static final Policy IMMUTABLE = new Policy(FOREVER, false);
+        public static final Policy INVALIDATE_ON_NOTIFY = new Policy(FOREVER, true);
+
+        /**
+         * @return A policy under which values are fresh for the given time after being read.
+         */
+        public static Policy ttl(long millis) {
+            return new Policy(millis, false);
+        }
+
+        private final long mTtlMillis;
+        private final boolean mInvalidateOnNotify;
+
+        private Policy(long ttlMillis, boolean invalidateOnNotify) {
+            mTtlMillis = ttlMillis;
+            mInvalidateOnNotify = invalidateOnNotify;
+        }
+
+        @Override
+        public String toString() {
+            return this == IMMUTABLE ? "IMMUTABLE" : this == INVALIDATE_ON_NOTIFY ? "INVALIDATE_ON_NOTIFY" : "TTL " + mTtlMillis + " ms";
+        }
+    }
+
+    private static class Entry {
+        final byte[] value;
+        final long readMillis;
+
+        Entry(byte[] value, long readMillis) {
+            this.value = value;
+            this.readMillis = readMillis;
+        }
+    }
+
+    private final Map<UUID, Policy> mPolicies = new HashMap<UUID, Policy>();
+    private final Map<String, Map<UUID, Entry>> mValues = new HashMap<String, Map<UUID, Entry>>();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mCollapsed = new AtomicLong();
+
+    public synchronized void setPolicy(UUID characteristic, Policy policy) {
+        if (policy == null)
+            mPolicies.remove(characteristic);
+        else
+            mPolicies.put(characteristic, policy);
+    }
+
+    public synchronized boolean isCached(UUID characteristic) {
+        return mPolicies.containsKey(characteristic);
+    }
+
+    /**
+     * @return A copy of the fresh cached value, or null if the value must be read. Counts as a
+     *         hit or miss for cached characteristics.
+     */
+    public synchronized byte[] get(String address, UUID characteristic) {
+        Policy policy = mPolicies.get(characteristic);
+        if (policy == null)
+            return null;
+        Map<UUID, Entry> values = mValues.get(address);
+        Entry entry = values == null ? null : values.get(characteristic);
+        if (entry != null && policy.mTtlMillis != Policy.FOREVER
+                && SystemClock.elapsedRealtime() - entry.readMillis >= policy.mTtlMillis) {
+            values.remove(characteristic);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.value.clone();
+    }
+
+    /**
+     * Stores a value just read from the device, if its characteristic is cached.
+     */
+    public synchronized void put(String address, UUID characteristic, byte[] value) {
+        if (value == null || !mPolicies.containsKey(characteristic))
+            return;
+        Map<UUID, Entry> values = mValues.get(address);
+        if (values == null) {
+            values = new HashMap<UUID, Entry>();
+            mValues.put(address, values);
+        }
+        values.put(characteristic, new Entry(value.clone(), SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Called for every notification: drops the value of an {@link Policy#INVALIDATE_ON_NOTIFY}
+     * characteristic, and takes the notified value as the latest for any other cached one.
+     */
+    public synchronized void onNotify(String address, UUID characteristic, byte[] value) {
+        Policy policy = mPolicies.get(characteristic);
+        if (policy == null)
+            return;
+        if (policy.mInvalidateOnNotify) {
+            Map<UUID, Entry> values = mValues.get(address);
+            if (values != null)
+                values.remove(characteristic);
+        } else {
+            put(address, characteristic, value);
+        }
+    }
+
+    /**
+     * Forgets the values that can no longer be trusted once the device is disconnected.
+     */
+    public synchronized void onDisconnected(String address) {
+        Map<UUID, Entry> values = mValues.get(address);
+        if (values == null)
+            return;
+        for (Iterator<UUID> it = values.keySet().iterator(); it.hasNext(); ) {
+            Policy policy = mPolicies.get(it.next());
+            if (policy == null || policy.mInvalidateOnNotify)
+                it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        mValues.clear();
+    }
+
+    void onReadCollapsed() {
+        mCollapsed.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return Number of reads that joined an identical read already in flight instead of issuing their own.
+     */
+    public long getCollapsedCount() {
+        return mCollapsed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CharacteristicCache[hits=" + getHitCount() + ", misses=" + getMissCount() + ", collapsed=" + getCollapsedCount() + "]";
+    }
+}
@@ -0,0 +1,324 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps characteristics that can be read but not notified up to date by reading them
+ * periodically through the {@link GattOperationQueue}, where the reads take their turn among
+ * other default priority traffic.
+ *
+ * Each characteristic's interval adapts to how often its value changes: it is halved when a read
+ * finds a new value and grows by a quarter when it finds the same one, within the bounds given
+ * for the characteristic. That settles where about one read in four sees a change, so a value
+ * that changes is polled a few times as often as it changes and one that stays put decays to its
+ * longest interval.
+ *
+ * All GATT operations, polls or not, are held to a budget of operations per second: the poller
+ * only spends what other traffic leaves of it, and when it can't keep up the most overdue
+ * characteristic is read first.
+ */
+public class CharacteristicPoller {
+    private final static String TAG = CharacteristicPoller.class.getSimpleName();
+
+    public interface Listener {
+        /**
+         * Called, on the thread completing the read, with the first value read from a
+         * characteristic and whenever a later read finds it changed.
+         *
+         * @param timestampNanos When the read completed, in {@code SystemClock.elapsedRealtimeNanos()} time.
+         */
+        void onValueChanged(BluetoothGattCharacteristic characteristic, byte[] value, long timestampNanos);
+    }
+
+    /** Operations per second, a fraction of what a fast connection interval allows. */
+    public static final double DEFAULT_BUDGET = 20;
+
+    private static final double SPEEDUP = 0.5;
+    private static final double SLOWDOWN = 1.25;
+
+    private static class Entry {
+        final UUID mUuid;
+        final long mMinMillis;
+        final long mMaxMillis;
+        BluetoothGattCharacteristic mCharacteristic; // while connected and found
+        long mIntervalMillis;
+        long mDueMillis;
+        boolean mInFlight;
+        byte[] mLastValue;
+        long mReads;
+        long mChanges;
+
+        Entry(UUID uuid, long minMillis, long maxMillis) {
+            mUuid = uuid;
+            mMinMillis = minMillis;
+            mMaxMillis = maxMillis;
+        }
+    }
+
+    private final GattOperationQueue mQueue;
+    private final Handler mHandler;
+    private Listener mListener;
+
+    // Guarded by this.
+    private final Map<UUID, Entry> mEntries = new LinkedHashMap<UUID, Entry>();
+    private List<BluetoothGattService> mServices;
+    private double mBudget = DEFAULT_BUDGET;
+    private double mTokens;
+    private long mRefilledMillis;
+    private long mQueueIssuedBase; // the queue's issued count when polling started
+    private long mOwnIssued; // polls the queue has issued since then
+    private long mOthersCharged; // other operations charged to the budget since then
+    private final List<GattOperation> mUnissued = new ArrayList<GattOperation>(); // polls enqueued, not yet seen issued
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    public CharacteristicPoller(GattOperationQueue queue, Looper looper) {
+        mQueue = queue;
+        mHandler = new Handler(looper);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the most GATT operations per second, of any kind, that polling may take the total
+     * to. Other traffic is never held back: above the budget polling simply stops.
+     */
+    public void setBudget(double operationsPerSecond) {
+        if (!(operationsPerSecond > 0))
+            throw new IllegalArgumentException("Budget must be positive: " + operationsPerSecond);
+        synchronized (this) {
+            mBudget = operationsPerSecond;
+            mTokens = Math.min(mTokens, burst());
+        }
+        mHandler.post(mTick);
+    }
+
+    public synchronized double getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Polls a characteristic, starting at its shortest interval, from now or from when it is
+     * found on a connection. Polling it again replaces its bounds.
+     *
+     * @param minMillis Shortest interval between reads.
+     * @param maxMillis Longest interval between reads.
+     */
+    public void add(UUID uuid, long minMillis, long maxMillis) {
+        if (minMillis <= 0 || maxMillis < minMillis)
+            throw new IllegalArgumentException("Bad interval bounds: " + minMillis + " to " + maxMillis);
+        synchronized (this) {
+            Entry entry = new Entry(uuid, minMillis, maxMillis);
+            mEntries.put(uuid, entry);
+            if (mServices != null)
+                attach(entry, SystemClock.uptimeMillis());
+        }
+        mHandler.post(mTick);
+    }
+
+    public synchronized void remove(UUID uuid) {
+        mEntries.remove(uuid);
+    }
+
+    public synchronized boolean isPolling(UUID uuid) {
+        return mEntries.containsKey(uuid);
+    }
+
+    /**
+     * Starts polling the characteristics found among the services. Call it once services have
+     * been discovered.
+     */
+    public void start(List<BluetoothGattService> services) {
+        synchronized (this) {
+            mServices = services;
+            long now = SystemClock.uptimeMillis();
+            for (Entry entry : mEntries.values())
+                attach(entry, now);
+            mTokens = burst();
+            mRefilledMillis = now;
+            mQueueIssuedBase = mQueue.getIssuedCount();
+            mOwnIssued = 0;
+            mOthersCharged = 0;
+            mUnissued.clear();
+        }
+        mHandler.removeCallbacks(mTick);
+        mHandler.post(mTick);
+    }
+
+    /**
+     * Stops polling. Call it on disconnect.
+     */
+    public void stop() {
+        synchronized (this) {
+            mServices = null;
+            for (Entry entry : mEntries.values()) {
+                entry.mCharacteristic = null;
+                entry.mInFlight = false;
+                entry.mLastValue = null;
+            }
+        }
+        mHandler.removeCallbacks(mTick);
+    }
+
+    // Caller holds the lock.
+    private void attach(Entry entry, long now) {
+        entry.mCharacteristic = null;
+        for (BluetoothGattService service : mServices) {
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(entry.mUuid);
+            if (characteristic != null && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+                entry.mCharacteristic = characteristic;
+                break;
+            }
+        }
+        if (entry.mCharacteristic == null)
+            Log.w(TAG, "attach(): no readable characteristic " + entry.mUuid);
+        entry.mIntervalMillis = entry.mMinMillis;
+        entry.mDueMillis = now;
+        entry.mInFlight = false;
+        entry.mLastValue = null;
+    }
+
+    // Caller holds the lock.
+    private double burst() {
+        return Math.max(1, mBudget / 4);
+    }
+
+    // Credits the budget for the time since the last refill, less what other traffic spent.
+    // Polls are told apart from other operations as they are issued, so one issued but not yet
+    // complete isn't charged twice. Caller holds the lock.
+    private void refill(long now) {
+        // The count first: every poll it includes is then seen as issued below.
+        long issued = mQueue.getIssuedCount() - mQueueIssuedBase;
+        for (Iterator<GattOperation> it = mUnissued.iterator(); it.hasNext(); ) {
+            if (it.next().getIssuedRealtimeNanos() != 0) {
+                it.remove();
+                mOwnIssued++;
+            }
+        }
+        // Totals rather than deltas, so a poll issued between the two reads evens out later.
+        long others = Math.max(0, issued - mOwnIssued - mOthersCharged);
+        mOthersCharged += others;
+        mTokens += (now - mRefilledMillis) * mBudget / 1000 - others;
+        mTokens = Math.max(-mBudget, Math.min(burst(), mTokens));
+        mRefilledMillis = now;
+    }
+
+    // Reads whatever is due, most overdue first, while the budget allows, then sleeps until the
+    // next read is due or affordable.
+    private void tick() {
+        List<GattOperation> due = new ArrayList<GattOperation>();
+        long wake = -1;
+        synchronized (this) {
+            if (mServices == null)
+                return;
+            long now = SystemClock.uptimeMillis();
+            refill(now);
+            while (true) {
+                Entry next = null;
+                for (Entry entry : mEntries.values()) {
+                    if (entry.mCharacteristic != null && !entry.mInFlight
+                            && (next == null || entry.mDueMillis < next.mDueMillis))
+                        next = entry;
+                }
+                if (next == null)
+                    break;
+                if (next.mDueMillis > now) {
+                    wake = next.mDueMillis;
+                    break;
+                }
+                if (mTokens < 1) {
+                    wake = now + (long) Math.ceil((1 - mTokens) * 1000 / mBudget);
+                    break;
+                }
+                mTokens--;
+                next.mInFlight = true;
+                GattOperation read = createRead(next);
+                mUnissued.add(read);
+                due.add(read);
+            }
+        }
+        for (GattOperation read : due)
+            mQueue.enqueue(read);
+        mHandler.removeCallbacks(mTick);
+        if (wake >= 0)
+            mHandler.postAtTime(mTick, wake);
+    }
+
+    private GattOperation createRead(final Entry entry) {
+        return GattOperation.read(entry.mCharacteristic, new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                onRead(entry, operation, status);
+            }
+        });
+    }
+
+    private void onRead(Entry entry, GattOperation operation, int status) {
+        BluetoothGattCharacteristic characteristic = operation.getCharacteristic();
+        byte[] value = null;
+        Listener listener;
+        synchronized (this) {
+            if (mUnissued.remove(operation) && operation.getIssuedRealtimeNanos() != 0)
+                mOwnIssued++;
+            if (mEntries.get(entry.mUuid) != entry || entry.mCharacteristic != characteristic)
+                return; // removed, or from an earlier connection
+            entry.mInFlight = false;
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                byte[] read = characteristic.getValue();
+                boolean changed = !Arrays.equals(read, entry.mLastValue);
+                if (entry.mLastValue != null) {
+                    double interval = entry.mIntervalMillis * (changed ? SPEEDUP : SLOWDOWN);
+                    entry.mIntervalMillis = Math.max(entry.mMinMillis, Math.min(entry.mMaxMillis, Math.round(interval)));
+                }
+                entry.mReads++;
+                if (changed) {
+                    entry.mChanges++;
+                    entry.mLastValue = read == null ? null : read.clone();
+                    value = entry.mLastValue;
+                }
+            } else {
+                Log.w(TAG, "onRead(): read of " + entry.mUuid + " failed with status " + status);
+            }
+            entry.mDueMillis = SystemClock.uptimeMillis() + entry.mIntervalMillis;
+            listener = mListener;
+        }
+        if (value != null && listener != null)
+            listener.onValueChanged(characteristic, value, operation.getCompletedRealtimeNanos());
+        mHandler.post(mTick);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(String.format("polling %d characteristics within %.1f ops/s", mEntries.size(), mBudget));
+        for (Entry entry : mEntries.values()) {
+            sb.append("\n").append(entry.mUuid).append(": ");
+            if (entry.mCharacteristic == null)
+                sb.append("not connected");
+            else
+                sb.append("every ").append(entry.mIntervalMillis).append(" ms, ")
+                        .append(entry.mChanges).append(" changes in ").append(entry.mReads).append(" reads");
+        }
+        return sb.toString();
+    }
+}
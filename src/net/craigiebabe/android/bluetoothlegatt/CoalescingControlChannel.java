@@ -0,0 +1,141 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latest-value-wins channel for continuous control input such as a joystick or speed slider.
+ *
+ * Each {@link Slot} is a single-entry mailbox: setting a value replaces any value not yet sent,
+ * so however fast input arrives at most one value per slot is pending and at most one is on the
+ * air. Pending values are flushed as control priority writes at most once per flush interval
+ * (which should match the connection interval), so the robot always acts on the newest input,
+ * no more than roughly one interval plus one write old.
+ *
+ * Each value is written as one whole message, however long, and lands between whole messages of
+ * other traffic, so a slot can share a characteristic such as the serial port with line-based
+ * commands without corrupting them.
+ */
+public class CoalescingControlChannel {
+    private final static String TAG = CoalescingControlChannel.class.getSimpleName();
+
+    /** Connection interval Android uses for {@code CONNECTION_PRIORITY_BALANCED}. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 30;
+
+    /**
+     * Mailbox for one control value, e.g. direction or speed.
+     */
+    public final class Slot {
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final AtomicReference<byte[]> mPending = new AtomicReference<byte[]>();
+        private final AtomicBoolean mInFlight = new AtomicBoolean();
+        private final AtomicLong mCoalesced = new AtomicLong();
+
+        Slot(BluetoothGattCharacteristic characteristic) {
+            mCharacteristic = characteristic;
+        }
+
+        /**
+         * Replaces any unsent value with this one. Never blocks and never allocates a queue entry.
+         */
+        public void set(byte[] value) {
+            if (mPending.getAndSet(value) != null)
+                mCoalesced.incrementAndGet();
+            scheduleFlush();
+        }
+
+        /**
+         * @return Number of values overwritten before they could be sent.
+         */
+        public long getCoalescedCount() {
+            return mCoalesced.get();
+        }
+
+        // Sends the pending value unless the previous one is still on the air.
+        void flush() {
+            if (mPending.get() == null || !mInFlight.compareAndSet(false, true))
+                return;
+            byte[] value = mPending.getAndSet(null);
+            if (value == null) {
+                mInFlight.set(false);
+                return;
+            }
+            mService.enqueue(GattOperation.writeChunked(mCharacteristic, value, SerialLink.MAX_PAYLOAD_SIZE,
+                    mCharacteristic.getWriteType(),
+                    new GattOperation.Callback() {
+                        @Override
+                        public void onComplete(GattOperation operation, int status) {
+                            if (status != BluetoothGatt.GATT_SUCCESS)
+                                Log.w(TAG, "Slot.onComplete(): control write failed: " + status);
+                            mInFlight.set(false);
+                            if (mPending.get() != null)
+                                scheduleFlush();
+                        }
+                    }).setPriority(GattOperation.PRIORITY_CONTROL));
+        }
+    }
+
+    private final BluetoothLeService mService;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final CopyOnWriteArrayList<Slot> mSlots = new CopyOnWriteArrayList<Slot>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private volatile long mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_INTERVAL_MILLIS);
+    private volatile long mLastFlushNanos;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            mLastFlushNanos = System.nanoTime();
+            for (Slot slot : mSlots)
+                slot.flush();
+        }
+    };
+
+    public CoalescingControlChannel(BluetoothLeService service) {
+        mService = service;
+    }
+
+    /**
+     * @param characteristic Characteristic the slot's values are written to.
+     * @return A new slot. Use one slot per independent control value.
+     */
+    public Slot createSlot(BluetoothGattCharacteristic characteristic) {
+        Slot slot = new Slot(characteristic);
+        mSlots.add(slot);
+        return slot;
+    }
+
+    /**
+     * @param millis Minimum time between flushes; set it to the connection interval in use.
+     */
+    public void setFlushInterval(long millis) {
+        mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public void close() {
+        mExecutor.shutdownNow();
+        mSlots.clear();
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled.compareAndSet(false, true))
+            return;
+        long delay = mLastFlushNanos + mFlushIntervalNanos - System.nanoTime();
+        try {
+            mExecutor.schedule(mFlushRunnable, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "scheduleFlush(): channel closed");
+        }
+    }
+}
@@ -24,31 +24,44 @@
 package net.craigiebabe.android.bluetoothlegatt;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.ActivityNotFoundException;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.speech.RecognizerIntent;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ExpandableListView;
-import android.widget.SimpleExpandableListAdapter;
+import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -67,11 +80,12 @@ public class DeviceControlActivity extends Activity {
     private EditText mSerialTextToSendField;
     private TextView mReceivedSerialText;
     private Button mSendButton;
+    private SeekBar mSpeedControl;
     private String mDeviceName;
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+    private GattServicesAdapter mGattServicesAdapter;
     
     private boolean mConnected = false;
     
@@ -80,9 +94,28 @@ public class DeviceControlActivity extends Activity {
     																// receiving data (serialcharacteristic.setnotification(true) then onReceive(intent) intent.getStringExtra(BluetoothLeService.EXTRA_DATA)))
     private BluetoothGattCharacteristic mModelNumberCharacteristic; // Curiously, it seems you can set characteristic notification on model number - why? Because it is the device "name", which is writable!
     private BluetoothGattCharacteristic mNotifyCharacteristic;
-    
-    private final String LIST_NAME = "NAME";
-    private final String LIST_UUID = "UUID";
+    private boolean mBlunoSubscribed; // the service restores these subscriptions on reconnect
+    private BlunoBenchmark mBenchmark;
+    private BulkTransfer mBulkTransfer;
+    private CoalescingControlChannel mControlChannel;
+    private CoalescingControlChannel.Slot mSpeedSlot;
+    private VoiceCommandEngine mVoiceCommandEngine;
+    private ParcelFileDescriptor mBulkTransferFile;
+    private volatile SessionRecorder mSessionRecorder; // also marked by triggers, off the UI thread
+    private int mReadAllRemaining; // reads of the current "read all" batch still outstanding
+    private BaudRateTuner mBaudRateTuner;
+    private SerialLink mErrorWatchLink; // watches the serial stream for signs of a wrong baud rate
+    private TriggerEngine mTriggerEngine;
+
+    // Trigger rules, in the app's external files directory; see TriggerRules for the format.
+    private static final String TRIGGERS_FILE = "triggers.txt";
+
+    // Bounds of the interval at which a long pressed characteristic is polled.
+    private static final long POLL_MIN_MILLIS = 250;
+    private static final long POLL_MAX_MILLIS = 10000;
+
+    private static final int REQUEST_CODE_PICK_FILE = 1;
+    private static final int REQUEST_CODE_SPEECH = 2;
 
 	private int mBaudrate=115200;	//set the default baud rate to 115200
 	private String mPasswordCommand="AT+PASSWORD=DFRobot\r\n";
@@ -98,20 +131,29 @@ public class DeviceControlActivity extends Activity {
 	}
     
 	public void serialSend(String text){
+		sendOnSerialPort(text, GattOperation.PRIORITY_DEFAULT);
+	}
+
+	/**
+	 * Sends a robot control command (e.g. stop or steer) over the serial port ahead of any
+	 * queued serial or bulk data.
+	 */
+	public void controlSend(String text){
+		sendOnSerialPort(text, GattOperation.PRIORITY_CONTROL);
+	}
+
+	private void sendOnSerialPort(String text, int priority){
 		if(! isConnected()) {
-            Log.e(TAG, "serialSend(): Not connected!");
+            Log.e(TAG, "sendOnSerialPort(): Not connected!");
 			return;
 		}
 		
 		if(! isCompatibleDfrobotBleDevice()) {
-            Log.e(TAG, "serialSend(): Not a compatible DFRobot bluno device!");
+            Log.e(TAG, "sendOnSerialPort(): Not a compatible DFRobot bluno device!");
 			return;
 		}
 
-		if(mSerialPortCharacteristic.setValue(text + "\r\n"))
-			mBluetoothLeService.writeCharacteristic(mSerialPortCharacteristic);
-		else
-			Log.e(TAG, "serialSend(): Error setting value on characteristic");
+		mBluetoothLeService.writeChunked(mSerialPortCharacteristic, (text + "\r\n").getBytes(), priority);
 	}
 	
 	public void commandSend(String text){
@@ -125,10 +167,63 @@ public class DeviceControlActivity extends Activity {
 			return;
 		}
 
-		if(mCommandCharacteristic.setValue(text + "\r\n"))
-			mBluetoothLeService.writeCharacteristic(mCommandCharacteristic);
-		else
-			Log.e(TAG, "commandSend(): Error setting value on characteristic");
+		mBluetoothLeService.writeChunked(mCommandCharacteristic, (text + "\r\n").getBytes(), GattOperation.PRIORITY_CONTROL);
+	}
+
+	/**
+	 * Sends AT commands as one reliable write, so a link dropped part way leaves the Bluno with
+	 * none of them rather than some. If the Bluno doesn't take the transaction, they are sent
+	 * one by one instead.
+	 */
+	public void commandSendAll(final String... texts){
+		if(! isConnected()) {
+            Log.e(TAG, "commandSendAll(): Not connected!");
+			return;
+		}
+
+		if(! isCompatibleDfrobotBleDevice()) {
+            Log.e(TAG, "commandSendAll(): Not a compatible DFRobot bluno device!");
+			return;
+		}
+
+		ReliableWriteBatch batch = new ReliableWriteBatch(new GattOperation.Callback() {
+			@Override
+			public void onComplete(GattOperation operation, int status) {
+				if (status == BluetoothGatt.GATT_SUCCESS)
+					return;
+				Log.w(TAG, "commandSendAll(): reliable write failed with status " + status + ", sending one by one");
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (mBluetoothLeService == null)
+							return; // destroyed since
+						for (String text : texts)
+							commandSend(text);
+					}
+				});
+			}
+		});
+		// As commandSend() sends them, in pieces a prepared write can carry.
+		for (String text : texts) {
+			byte[] data = (text + "\r\n").getBytes();
+			for (int offset = 0; offset < data.length; offset += ReliableWriteBatch.MAX_VALUE_LENGTH)
+				batch.add(mCommandCharacteristic, Arrays.copyOfRange(data, offset,
+						Math.min(data.length, offset + ReliableWriteBatch.MAX_VALUE_LENGTH)));
+		}
+		batch.setPriority(GattOperation.PRIORITY_CONTROL);
+		mBluetoothLeService.writeReliably(batch);
+	}
+
+	/**
+	 * Sets the robot speed. Called for every slider movement; only the latest value is sent,
+	 * at most once per connection interval.
+	 */
+	public void speedSend(int speed){
+		if(mSpeedSlot == null) {
+            Log.w(TAG, "speedSend(): No control channel!");
+			return;
+		}
+		mSpeedSlot.set(("SPEED=" + speed + "\r\n").getBytes());
 	}
 	
     public boolean isConnected() {
@@ -178,11 +273,19 @@ public class DeviceControlActivity extends Activity {
                 invalidateOptionsMenu();
                 clearUI();
                 disableSend();
+                closeControlChannel();
+                closeErrorWatch();
+                stopTriggers();
+                if (mBulkTransfer != null)
+                    mBulkTransfer.pause();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
                 Log.i(TAG, "mGattUpdateReceiver.onReceive(): discovered!");
                 enableSend();
                 displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                openControlChannel();
+                if (mBulkTransfer != null && mBulkTransfer.isPaused() && isCompatibleDfrobotBleDevice())
+                    mBulkTransfer.resume(mBluetoothLeService.createSerialLink(GattOperation.PRIORITY_BULK, true));
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
                 Log.i(TAG, "mGattUpdateReceiver.onReceive(): data available!");
                 displayCharacteristicData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
@@ -193,11 +296,19 @@ public class DeviceControlActivity extends Activity {
                 if(isBlunoModelNumberCharacteristic(intentUuid)) {
             		if (intent.getStringExtra(BluetoothLeService.EXTRA_DATA).toUpperCase().startsWith("DF BLUNO")) {
                         Log.i(TAG, "mGattUpdateReceiver.onReceive(): got Bluno - so we need to initialise it with some AT commands");
+						// Use the rate found by tuning this device, if it has been tuned.
+						int tunedRate = BaudRateTuner.getTunedRate(context, mDeviceAddress);
+						if (tunedRate > 0)
+							serialBegin(tunedRate);
 //						commandSend(mPasswordCommand);
-						commandSend(mSetBaudrateCommand);
 //						commandSend(mBlunoDebugCommand);
-						commandSend(mUsbDebugCommand);
+						commandSendAll(mSetBaudrateCommand, mUsbDebugCommand);
 	                    Log.i(TAG, "mGattUpdateReceiver.onReceive(): finished sending password and baud rate commands!");						
+						if (tunedRate > 0 && BaudRateTuner.needsRetune(context, mDeviceAddress))
+							askToRetune();
+						else
+							openErrorWatch();
+						startTriggers();
 					}
             		else {
 	                    Log.w(TAG, "mGattUpdateReceiver.onReceive(): Not a compatible DFRobot device!");
@@ -212,6 +323,11 @@ public class DeviceControlActivity extends Activity {
 				} else {
 	                Log.w(TAG, "mGattUpdateReceiver.onReceive(): got unexpected intent characteristic: " + intentUuid);
 				}
+            } else if (BluetoothLeService.ACTION_LINK_QUALITY.equals(action)) {
+                if (mConnected)
+                    mConnectionState.setText(getString(R.string.connected_link_quality,
+                            intent.getStringExtra(BluetoothLeService.EXTRA_LINK_QUALITY),
+                            intent.getIntExtra(BluetoothLeService.EXTRA_LINK_SCORE, 0)));
             } else if (BluetoothLeService.ACTION_GATT_CHARACTERISTIC_WRITE_COMPLETE.equals(action)) {
                 String intentUuid = intent.getStringExtra(BluetoothLeService.EXTRA_CHARACTERISTIC_UUID);
                 String data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
@@ -225,6 +341,24 @@ public class DeviceControlActivity extends Activity {
         }
     };
 
+	private void openControlChannel() {
+		closeControlChannel();
+		if (!isCompatibleDfrobotBleDevice())
+			return;
+		mControlChannel = new CoalescingControlChannel(mBluetoothLeService);
+		mSpeedSlot = mControlChannel.createSlot(mSerialPortCharacteristic);
+		mSpeedControl.setEnabled(true);
+	}
+
+	private void closeControlChannel() {
+		mSpeedControl.setEnabled(false);
+		if (mControlChannel == null)
+			return;
+		mControlChannel.close();
+		mControlChannel = null;
+		mSpeedSlot = null;
+	}
+
 	private void enableSend() {
         mSendButton.setEnabled(true);
         mSerialTextToSendField.setEnabled(true);
@@ -241,8 +375,8 @@ public class DeviceControlActivity extends Activity {
         new ExpandableListView.OnChildClickListener() {
             @Override
             public boolean onChildClick(ExpandableListView parent, View v, int groupPosition, int childPosition, long id) {
-                if (mGattCharacteristics != null) {
-                    BluetoothGattCharacteristic characteristic = mGattCharacteristics.get(groupPosition).get(childPosition);
+                if (mGattServicesAdapter != null) {
+                    BluetoothGattCharacteristic characteristic = mGattServicesAdapter.getChild(groupPosition, childPosition);
                     
                     // Characteristic properties from BluetoothGattCharacteristic:
                     // PROPERTY_BROADCAST			Characteristic is broadcastable.
@@ -255,7 +389,7 @@ public class DeviceControlActivity extends Activity {
 	                // PROPERTY_WRITE_NO_RESPONSE	Characteristic can be written without response
                     
                     final int charaProp = characteristic.getProperties();
-                    if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
+                    if ((charaProp & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
                 		Log.i(TAG, "OnChildClickListener(): got a readable characteristic !");
                         // If there is an active notification on a characteristic, clear
                         // it first so it doesn't update the data field on the user interface.
@@ -267,8 +401,11 @@ public class DeviceControlActivity extends Activity {
                         }
                         mBluetoothLeService.readCharacteristic(characteristic);
                     }
-                    if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
+                    if ((charaProp & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
                 		Log.i(TAG, "OnChildClickListener(): got a characteristic with notification support: " + characteristic.getUuid());
+                        // Subscriptions are reference counted, so release ours on the previous one.
+                        if (mNotifyCharacteristic != null)
+                            mBluetoothLeService.setCharacteristicNotification(mNotifyCharacteristic, false);
                     	mNotifyCharacteristic = characteristic;
                         mBluetoothLeService.setCharacteristicNotification(characteristic, true);
                     }
@@ -278,8 +415,37 @@ public class DeviceControlActivity extends Activity {
             }
     	};
 
+    // Long pressing a characteristic that can be read but not notified starts or stops polling it.
+    private final AdapterView.OnItemLongClickListener servicesListLongClickListener =
+        new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                long packedPosition = mGattServicesList.getExpandableListPosition(position);
+                if (mGattServicesAdapter == null || mBluetoothLeService == null
+                        || ExpandableListView.getPackedPositionType(packedPosition) != ExpandableListView.PACKED_POSITION_TYPE_CHILD)
+                    return false;
+                BluetoothGattCharacteristic characteristic = mGattServicesAdapter.getChild(
+                        ExpandableListView.getPackedPositionGroup(packedPosition), ExpandableListView.getPackedPositionChild(packedPosition));
+                final int charaProp = characteristic.getProperties();
+                if ((charaProp & BluetoothGattCharacteristic.PROPERTY_READ) == 0
+                        || (charaProp & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0)
+                    return false;
+                CharacteristicPoller poller = mBluetoothLeService.getPoller();
+                UUID uuid = characteristic.getUuid();
+                if (poller.isPolling(uuid)) {
+                    poller.remove(uuid);
+                    Toast.makeText(DeviceControlActivity.this, getString(R.string.polling_stopped, uuid), Toast.LENGTH_SHORT).show();
+                } else {
+                    poller.add(uuid, POLL_MIN_MILLIS, POLL_MAX_MILLIS);
+                    Toast.makeText(DeviceControlActivity.this, getString(R.string.polling_started, uuid), Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            }
+        };
+
     private void clearUI() {
-        mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        mGattServicesAdapter = null;
+        mGattServicesList.setAdapter((GattServicesAdapter) null);
         mAttrDataText.setText(R.string.no_data);
         mReceivedSerialText.setText(R.string.no_data);
     }
@@ -297,11 +463,28 @@ public class DeviceControlActivity extends Activity {
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
         mGattServicesList = (ExpandableListView) findViewById(R.id.gatt_services_list);
         mGattServicesList.setOnChildClickListener(servicesListClickListener);
+        mGattServicesList.setOnItemLongClickListener(servicesListLongClickListener);
         mConnectionState = (TextView) findViewById(R.id.connection_state);
         mAttrDataText = (TextView) findViewById(R.id.attr_data);
         mSerialTextToSendField = (EditText) findViewById(R.id.serial_text_to_send);
         mSendButton = (Button) findViewById(R.id.serial_send_button);
         mReceivedSerialText = (TextView) findViewById(R.id.received_serial_text);
+        mSpeedControl = (SeekBar) findViewById(R.id.speed_control);
+        mSpeedControl.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser)
+                    speedSend(progress);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
 
         mSendButton.setEnabled(false);
         mSendButton.setOnClickListener(new OnClickListener() {
@@ -326,6 +509,7 @@ public class DeviceControlActivity extends Activity {
 		});
         
         serialBegin(115200);
+        mVoiceCommandEngine = new VoiceCommandEngine(this);
         
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -352,6 +536,18 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBenchmark != null)
+            mBenchmark.cancel();
+        if (mBulkTransfer != null)
+            mBulkTransfer.cancel();
+        if (mBaudRateTuner != null)
+            mBaudRateTuner.cancel();
+        closeErrorWatch();
+        stopTriggers();
+        stopCapture();
+        closeControlChannel();
+        mVoiceCommandEngine.close();
+        releaseNotifications();
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -366,6 +562,8 @@ public class DeviceControlActivity extends Activity {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_capture_start).setVisible(mSessionRecorder == null);
+        menu.findItem(R.id.menu_capture_stop).setVisible(mSessionRecorder != null);
         return true;
     }
 
@@ -378,6 +576,55 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_speak:
+                Intent speech = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+                speech.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+                speech.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, 3);
+                try {
+                    startActivityForResult(speech, REQUEST_CODE_SPEECH);
+                } catch (ActivityNotFoundException e) {
+                    Toast.makeText(this, R.string.speech_not_supported, Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            case R.id.menu_read_all:
+                readAllCharacteristics();
+                return true;
+            case R.id.menu_send_file:
+                if (mBulkTransfer != null) {
+                    Toast.makeText(this, R.string.transfer_running, Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                Intent pickFile = new Intent(Intent.ACTION_GET_CONTENT);
+                pickFile.setType("*/*");
+                pickFile.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(pickFile, REQUEST_CODE_PICK_FILE);
+                return true;
+            case R.id.menu_capture_start:
+                startCapture();
+                return true;
+            case R.id.menu_capture_stop:
+                stopCapture();
+                return true;
+            case R.id.menu_tune_baud_rate:
+                startBaudRateTuning();
+                return true;
+            case R.id.menu_link_timing:
+                if (mBluetoothLeService != null)
+                    mReceivedSerialText.setText("received: " + mBluetoothLeService.getInboundJitter()
+                            + "\nwritten: " + mBluetoothLeService.getOutboundJitter()
+                            + "\n" + mBluetoothLeService.getLinkMonitor()
+                            + "\n" + mBluetoothLeService.getPoller());
+                return true;
+            case R.id.menu_telemetry:
+                if (mBluetoothLeService != null)
+                    mReceivedSerialText.setText(mBluetoothLeService.getTelemetry().toString());
+                return true;
+            case R.id.menu_benchmark:
+                startBenchmark(false);
+                return true;
+            case R.id.menu_benchmark_simulated:
+                startBenchmark(true);
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -385,6 +632,476 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_CODE_PICK_FILE && resultCode == RESULT_OK && data != null) {
+            startBulkTransfer(data.getData());
+            return;
+        }
+        if (requestCode == REQUEST_CODE_SPEECH && resultCode == RESULT_OK && data != null) {
+            List<String> utterances = data.getStringArrayListExtra(RecognizerIntent.EXTRA_RESULTS);
+            if (utterances != null && !utterances.isEmpty())
+                mVoiceCommandEngine.process(utterances, mVoiceCommandListener);
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    // Results arrive on the engine's delivery thread; commands are sent and results shown on the UI thread.
+    private final VoiceCommandEngine.Listener mVoiceCommandListener = new VoiceCommandEngine.Listener() {
+        @Override
+        public void onCommand(final VoiceCommand command, String utterance, long latencyMillis) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mBluetoothLeService == null)
+                        return; // destroyed since
+                    if (command.getTarget() == VoiceCommand.Target.AT)
+                        commandSend(command.getText());
+                    else if (command.isControl())
+                        controlSend(command.getText());
+                    else
+                        serialSend(command.getText());
+                }
+            });
+            showVoiceResult("voice: '" + utterance + "' -> " + command + " (" + latencyMillis + " ms)");
+        }
+
+        @Override
+        public void onNoCommand(List<String> utterances, long latencyMillis) {
+            showVoiceResult("voice: no command in " + utterances + " (" + latencyMillis + " ms)");
+        }
+
+        private void showVoiceResult(final String text) {
+            Log.i(TAG, "mVoiceCommandListener: " + text);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mReceivedSerialText.setText(text);
+                }
+            });
+        }
+    };
+
+    // Reads every readable characteristic as one batch through the service's value cache and
+    // operation queue, reporting progress and how long each read took.
+    private void readAllCharacteristics() {
+        if (!isConnected() || mGattServicesAdapter == null) {
+            Toast.makeText(this, R.string.read_all_needs_connection, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (mReadAllRemaining > 0) {
+            Toast.makeText(this, R.string.read_all_running, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final GattServicesAdapter adapter = mGattServicesAdapter;
+        final List<BluetoothGattCharacteristic> readable = adapter.getReadableCharacteristics();
+        if (readable.isEmpty())
+            return;
+        final long startNanos = System.nanoTime();
+        final int[] failed = new int[1]; // only touched on the UI thread
+        mReadAllRemaining = readable.size();
+        mReceivedSerialText.setText("read all: 0/" + readable.size());
+
+        GattOperation.Callback callback = new GattOperation.Callback() {
+            @Override
+            public void onComplete(final GattOperation operation, final int status) {
+                // A read dropped before being issued, e.g. on disconnect, has no latency to show.
+                final long micros = operation.getStartedNanos() == 0 ? GattServicesAdapter.NOT_ISSUED
+                        : (System.nanoTime() - operation.getStartedNanos()) / 1000;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (adapter != mGattServicesAdapter)
+                            return; // services were rediscovered or the device disconnected
+                        mReadAllRemaining--;
+                        if (status != BluetoothGatt.GATT_SUCCESS)
+                            failed[0]++;
+                        adapter.setReadResult(operation.getCharacteristic(), status, micros);
+                        adapter.notifyDataSetChanged();
+                        int done = readable.size() - mReadAllRemaining;
+                        if (mReadAllRemaining > 0) {
+                            mReceivedSerialText.setText("read all: " + done + "/" + readable.size()
+                                    + (micros == GattServicesAdapter.NOT_ISSUED ? ", last failed"
+                                            : ", last " + micros / 1000.0 + " ms"));
+                        } else {
+                            mReceivedSerialText.setText("read all: " + done + " characteristics in "
+                                    + (System.nanoTime() - startNanos) / 1000000 + " ms, " + failed[0] + " failed");
+                        }
+                    }
+                });
+            }
+        };
+        for (BluetoothGattCharacteristic characteristic : readable)
+            mBluetoothLeService.readCharacteristic(characteristic, callback);
+    }
+
+    // Streams the chosen file to the Arduino, pausing over disconnects and resuming once the
+    // services are rediscovered.
+    private void startBulkTransfer(Uri uri) {
+        SerialLink link = isConnected() && isCompatibleDfrobotBleDevice()
+                ? mBluetoothLeService.createSerialLink(GattOperation.PRIORITY_BULK, true) : null;
+        if (link == null) {
+            Toast.makeText(this, R.string.transfer_needs_bluno, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            mBulkTransferFile = getContentResolver().openFileDescriptor(uri, "r");
+            FileInputStream in = new FileInputStream(mBulkTransferFile.getFileDescriptor());
+            LinkMonitor monitor = mBluetoothLeService.getLinkMonitor();
+            mBulkTransfer = new BulkTransfer(in.getChannel(), uri.toString(), monitor, new BulkTransfer.Listener() {
+                @Override
+                public void onProgress(final long bytesAcked, final long totalBytes, final double bytesPerSecond, final int window) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mReceivedSerialText.setText(String.format("file: %d/%d bytes, %.0f B/s, window %d",
+                                    bytesAcked, totalBytes, bytesPerSecond, window));
+                        }
+                    });
+                }
+
+                @Override
+                public void onComplete(long totalBytes, long elapsedMillis) {
+                    finishBulkTransfer("file: sent " + totalBytes + " bytes in " + elapsedMillis + " ms");
+                }
+
+                @Override
+                public void onError(String message) {
+                    finishBulkTransfer("file: transfer failed: " + message);
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "startBulkTransfer(): unable to open " + uri, e);
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+            closeBulkTransferFile();
+            return;
+        }
+        mBulkTransfer.start(link);
+        closeErrorWatch(); // the frames are binary
+    }
+
+    private void finishBulkTransfer(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mBulkTransfer = null;
+                closeBulkTransferFile();
+                mReceivedSerialText.setText(message);
+                openErrorWatch();
+            }
+        });
+    }
+
+    private void closeBulkTransferFile() {
+        if (mBulkTransferFile == null)
+            return;
+        try {
+            mBulkTransferFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeBulkTransferFile(): " + e.getMessage());
+        }
+        mBulkTransferFile = null;
+    }
+
+    // Steps the Bluno through the candidate UART rates with the echo sketch on the Arduino, and
+    // remembers the fastest one that works for this device.
+    private void startBaudRateTuning() {
+        if (mBaudRateTuner != null) {
+            Toast.makeText(this, R.string.baud_tuning_running, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        SerialLink commandLink = isConnected() && isCompatibleDfrobotBleDevice() ? mBluetoothLeService.createCommandLink() : null;
+        SerialLink serialLink = commandLink != null ? mBluetoothLeService.createSerialLink() : null;
+        if (serialLink == null) {
+            if (commandLink != null)
+                commandLink.close();
+            Toast.makeText(this, R.string.benchmark_needs_bluno, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        closeErrorWatch(); // the test frames are binary
+        final String address = mDeviceAddress;
+        mBaudRateTuner = new BaudRateTuner(commandLink, serialLink, BaudRateTuner.DEFAULT_RATES, mBaudrate);
+        mReceivedSerialText.setText("baud rate: tuning");
+        mBaudRateTuner.start(new BaudRateTuner.Listener() {
+            @Override
+            public void onRateTested(final BaudRateTuner.RateResult result) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mReceivedSerialText.setText("baud rate: " + result);
+                    }
+                });
+            }
+
+            @Override
+            public void onFinished(final int rate, List<BaudRateTuner.RateResult> results) {
+                if (rate > 0)
+                    BaudRateTuner.saveTunedRate(DeviceControlActivity.this, address, rate);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBaudRateTuner = null;
+                        if (rate > 0) {
+                            serialBegin(rate);
+                            mReceivedSerialText.setText("baud rate: tuned to " + rate);
+                        } else {
+                            mReceivedSerialText.setText("baud rate: no rate passed, staying at " + mBaudrate);
+                        }
+                        openErrorWatch();
+                    }
+                });
+            }
+        });
+    }
+
+    // The device's serial stream looked wrong at its tuned rate on an earlier connection. Tuning
+    // needs the echo sketch, which the Arduino may not be running now, so it is only offered.
+    private void askToRetune() {
+        new AlertDialog.Builder(this)
+                .setMessage(R.string.baud_retune_prompt)
+                .setPositiveButton(R.string.baud_retune_start, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        startBaudRateTuning();
+                    }
+                })
+                .setNegativeButton(R.string.baud_retune_later, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        openErrorWatch();
+                    }
+                })
+                .setCancelable(false)
+                .show();
+    }
+
+    // Binary protocols own the serial stream while they run; the error watch would take their
+    // frames for garbled text.
+    private boolean isBinaryProtocolRunning() {
+        return mBenchmark != null || mBulkTransfer != null || mBaudRateTuner != null;
+    }
+
+    // Watches the serial stream for signs of a wrong baud rate, unless a binary protocol is using it;
+    // the watch is reopened when that finishes.
+    private void openErrorWatch() {
+        closeErrorWatch();
+        if (!isConnected() || !isCompatibleDfrobotBleDevice() || isBinaryProtocolRunning())
+            return;
+        mErrorWatchLink = mBluetoothLeService.createSerialLink();
+        if (mErrorWatchLink == null)
+            return;
+        final String address = mDeviceAddress;
+        mErrorWatchLink.setListener(new BaudRateTuner.ErrorWatch(new BaudRateTuner.ErrorWatch.Listener() {
+            @Override
+            public void onErrorsDetected(int badBytes, int window) {
+                Log.w(TAG, "onErrorsDetected(): " + badBytes + " of " + window + " serial bytes look garbled");
+                if (BaudRateTuner.getTunedRate(DeviceControlActivity.this, address) < 0)
+                    return;
+                BaudRateTuner.markNeedsRetune(DeviceControlActivity.this, address);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DeviceControlActivity.this, R.string.baud_retune_needed, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }));
+    }
+
+    private void closeErrorWatch() {
+        if (mErrorWatchLink == null)
+            return;
+        mErrorWatchLink.close();
+        mErrorWatchLink = null;
+    }
+
+    // Runs the rules in TRIGGERS_FILE, if there is one, on the serial stream. Their actions run
+    // on the service's pipeline thread.
+    private void startTriggers() {
+        stopTriggers();
+        File file = new File(getExternalFilesDir(null), TRIGGERS_FILE);
+        if (!file.exists())
+            return;
+        TriggerEngine engine = new TriggerEngine();
+        int count;
+        try {
+            Reader reader = new FileReader(file);
+            try {
+                count = TriggerRules.load(reader, engine, new TriggerRules.ActionFactory() {
+                    @Override
+                    public TriggerEngine.Action create(String name, final String argument) {
+                        if ("alert".equals(name)) {
+                            return new TriggerEngine.Action() {
+                                @Override
+                                public void onTrigger(final String trigger, double value, long timestampNanos) {
+                                    Log.i(TAG, "onTrigger(): " + trigger + " (" + value + ")");
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            Toast.makeText(DeviceControlActivity.this, getString(R.string.trigger_fired, trigger),
+                                                    Toast.LENGTH_SHORT).show();
+                                        }
+                                    });
+                                }
+                            };
+                        } else if ("mark".equals(name)) {
+                            return new TriggerEngine.Action() {
+                                @Override
+                                public void onTrigger(String trigger, double value, long timestampNanos) {
+                                    SessionRecorder recorder = mSessionRecorder;
+                                    if (recorder != null)
+                                        recorder.mark(Double.isNaN(value) ? trigger : trigger + ": " + value,
+                                                timestampNanos);
+                                }
+                            };
+                        } else if ("send".equals(name) && argument != null) {
+                            return new TriggerEngine.Action() {
+                                @Override
+                                public void onTrigger(String trigger, double value, long timestampNanos) {
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (mBluetoothLeService != null) // not destroyed since
+                                                controlSend(argument);
+                                        }
+                                    });
+                                }
+                            };
+                        }
+                        return null;
+                    }
+                });
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "startTriggers(): unable to load " + file, e);
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
+        Log.i(TAG, "startTriggers(): " + count + " triggers from " + file);
+        mTriggerEngine = engine;
+        mBluetoothLeService.setTriggerEngine(engine);
+    }
+
+    private void stopTriggers() {
+        if (mTriggerEngine == null)
+            return;
+        Log.i(TAG, "stopTriggers(): fired " + mTriggerEngine.getMatchCount() + " times");
+        if (mBluetoothLeService != null)
+            mBluetoothLeService.setTriggerEngine(null);
+        mTriggerEngine = null;
+    }
+
+    // Records everything the service receives until stopCapture().
+    private void startCapture() {
+        if (mBluetoothLeService == null)
+            return;
+        File file = new File(getExternalFilesDir(null), "bluno-capture-" + System.currentTimeMillis() + ".bcap");
+        try {
+            mSessionRecorder = new SessionRecorder(file);
+        } catch (IOException e) {
+            Log.e(TAG, "startCapture(): unable to create " + file, e);
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mSessionRecorder.start(mBluetoothLeService.getDataPublisher());
+        mReceivedSerialText.setText("capture: recording to " + file.getName());
+        invalidateOptionsMenu();
+    }
+
+    // Finishes the capture and exports it as CSV alongside, off the UI thread.
+    private void stopCapture() {
+        final SessionRecorder recorder = mSessionRecorder;
+        if (recorder == null)
+            return;
+        mSessionRecorder = null;
+        invalidateOptionsMenu();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String summary;
+                try {
+                    recorder.stop();
+                    File capture = recorder.getFile();
+                    File csv = new File(capture.getPath().replaceFirst("\\.bcap$", "") + ".csv");
+                    long packets = CaptureExporter.exportCsv(capture, csv, CaptureExporter.ALL, CaptureExporter.ALL);
+                    summary = "capture: " + packets + " packets exported to " + csv;
+                } catch (IOException e) {
+                    Log.e(TAG, "stopCapture(): capture failed", e);
+                    summary = "capture: failed: " + e.getMessage();
+                }
+                final String text = summary;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mReceivedSerialText.setText(text);
+                    }
+                });
+            }
+        }, "CaptureExport").start();
+    }
+
+    // Runs the loopback benchmark against the connected Bluno (which must be running the echo
+    // sketch) or against a simulated one, then exports the results as CSV.
+    private void startBenchmark(boolean simulated) {
+        if (mBenchmark != null) {
+            Toast.makeText(this, R.string.benchmark_running, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final SerialLink link;
+        if (simulated) {
+            link = new SimulatedBlunoLink(0.01, 5000, System.currentTimeMillis());
+        } else {
+            link = isConnected() && isCompatibleDfrobotBleDevice()
+                    ? mBluetoothLeService.createSerialLink(GattOperation.PRIORITY_DEFAULT, true) : null;
+            if (link == null) {
+                Toast.makeText(this, R.string.benchmark_needs_bluno, Toast.LENGTH_SHORT).show();
+                return;
+            }
+        }
+
+        mBenchmark = new BlunoBenchmark(link);
+        if (!simulated)
+            closeErrorWatch(); // the frames are binary
+        mReceivedSerialText.setText("benchmark: starting");
+        mBenchmark.start(new BlunoBenchmark.Listener() {
+            @Override
+            public void onProgress(final int runsCompleted, final int runsTotal, final BlunoBenchmark.Result lastResult) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mReceivedSerialText.setText("benchmark " + runsCompleted + "/" + runsTotal + ":\n" + lastResult);
+                    }
+                });
+            }
+
+            @Override
+            public void onFinished(final List<BlunoBenchmark.Result> results, boolean cancelled) {
+                link.close();
+                String summary;
+                try {
+                    File file = new File(getExternalFilesDir(null), "bluno-benchmark-" + System.currentTimeMillis() + ".csv");
+                    BlunoBenchmark.exportCsv(results, file);
+                    summary = "benchmark: " + results.size() + " runs exported to " + file;
+                } catch (IOException e) {
+                    Log.e(TAG, "onFinished(): unable to export benchmark results", e);
+                    summary = "benchmark: export failed: " + e.getMessage();
+                }
+                final String text = summary;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBenchmark = null;
+                        mReceivedSerialText.setText(text);
+                        openErrorWatch();
+                    }
+                });
+            }
+        });
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -413,39 +1130,17 @@ public class DeviceControlActivity extends Activity {
     }
 
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
-    // In this sample, we populate the data structure that is bound to the ExpandableListView
-    // on the UI.
+    // The ExpandableListView is bound straight to the discovered services; here we only pick
+    // out the Bluno characteristics.
     private void displayGattServices(List<BluetoothGattService> gattServices) {
         if (gattServices == null)
         	return;
         
-        String unknownServiceString = getResources().getString(R.string.unknown_service);
-        String unknownCharacteristicString = getResources().getString(R.string.unknown_characteristic);
-        
-        ArrayList<HashMap<String, String>> displayedGattServiceData = new ArrayList<HashMap<String, String>>();
-        ArrayList<ArrayList<HashMap<String, String>>> displayedGattCharacteristicData = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
-
         // Loops through available GATT Services.
         for (BluetoothGattService currentService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            String currentServiceUuid = currentService.getUuid().toString();
-            currentServiceData.put(LIST_NAME, BlunoGattAttributes.lookup(currentServiceUuid, unknownServiceString));
-            currentServiceData.put(LIST_UUID, currentServiceUuid);
-            displayedGattServiceData.add(currentServiceData);
-
-            ArrayList<HashMap<String, String>> currentGattCharacteristicGroupData = new ArrayList<HashMap<String, String>>();
-            ArrayList<BluetoothGattCharacteristic> gattCharacteristicsList = new ArrayList<BluetoothGattCharacteristic>();
-
             // Loops through available Characteristics.
             for (BluetoothGattCharacteristic currentCharacteristic : currentService.getCharacteristics()) {
-                gattCharacteristicsList.add(currentCharacteristic);
-                HashMap<String, String> currentCharacteristicData = new HashMap<String, String>();
                 String currentCharacteristicUuid = currentCharacteristic.getUuid().toString();
-                currentCharacteristicData.put(LIST_NAME, BlunoGattAttributes.lookup(currentCharacteristicUuid, unknownCharacteristicString));
-                currentCharacteristicData.put(LIST_UUID, currentCharacteristicUuid);
-                currentGattCharacteristicGroupData.add(currentCharacteristicData);
-                
                 if(isBlunoModelNumberCharacteristic(currentCharacteristicUuid)){
                 	mModelNumberCharacteristic = currentCharacteristic;
                 }
@@ -456,37 +1151,39 @@ public class DeviceControlActivity extends Activity {
                 	mCommandCharacteristic = currentCharacteristic;
                 }
             }
-            mGattCharacteristics.add(gattCharacteristicsList);
-            displayedGattCharacteristicData.add(currentGattCharacteristicGroupData);
         }
 
         if (isCompatibleDfrobotBleDevice()) {
-        	mBluetoothLeService.setCharacteristicNotification(mModelNumberCharacteristic, true);
+        	if (!mBlunoSubscribed) {
+        		mBluetoothLeService.setCharacteristicNotification(mModelNumberCharacteristic, true);
+        		mBluetoothLeService.setCharacteristicNotification(mCommandCharacteristic, true);
+        		mBluetoothLeService.setCharacteristicNotification(mSerialPortCharacteristic, true);
+        		mBlunoSubscribed = true;
+        	}
         	mBluetoothLeService.readCharacteristic(mModelNumberCharacteristic);
-
-        	mBluetoothLeService.setCharacteristicNotification(mCommandCharacteristic, true);
-        	mBluetoothLeService.readCharacteristic(mSerialPortCharacteristic);
-
-        	mBluetoothLeService.setCharacteristicNotification(mSerialPortCharacteristic, true);
         	mBluetoothLeService.readCharacteristic(mSerialPortCharacteristic);
 		} else {
 			Toast.makeText(this.getApplicationContext(), "This is not a compatible DFRobot BLE device",Toast.LENGTH_SHORT).show();
 		}
         
-        SimpleExpandableListAdapter gattServiceAdapter = new SimpleExpandableListAdapter(
-                this,
-                
-                displayedGattServiceData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[] {LIST_NAME, LIST_UUID},
-                new int[] { android.R.id.text1, android.R.id.text2 },
-                
-                displayedGattCharacteristicData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[] {LIST_NAME, LIST_UUID},
-                new int[] { android.R.id.text1, android.R.id.text2 }
-        );
-        mGattServicesList.setAdapter(gattServiceAdapter);
+        mGattServicesAdapter = new GattServicesAdapter(this, gattServices);
+        mReadAllRemaining = 0;
+        mGattServicesList.setAdapter(mGattServicesAdapter);
+    }
+
+    private void releaseNotifications() {
+        if (mBluetoothLeService == null)
+            return;
+        if (mNotifyCharacteristic != null) {
+            mBluetoothLeService.setCharacteristicNotification(mNotifyCharacteristic, false);
+            mNotifyCharacteristic = null;
+        }
+        if (mBlunoSubscribed) {
+            mBluetoothLeService.setCharacteristicNotification(mModelNumberCharacteristic, false);
+            mBluetoothLeService.setCharacteristicNotification(mCommandCharacteristic, false);
+            mBluetoothLeService.setCharacteristicNotification(mSerialPortCharacteristic, false);
+            mBlunoSubscribed = false;
+        }
     }
 
     private boolean isBlunoModelNumberCharacteristic(String uuid) {
@@ -518,6 +1215,7 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CHARACTERISTIC_WRITE_COMPLETE);
+        intentFilter.addAction(BluetoothLeService.ACTION_LINK_QUALITY);
         return intentFilter;
     }
 }
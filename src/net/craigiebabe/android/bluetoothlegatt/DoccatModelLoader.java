@@ -0,0 +1,172 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import opennlp.maxent.io.BinaryGISModelReader;
+import opennlp.maxent.io.BinaryGISModelWriter;
+import opennlp.model.AbstractModel;
+import opennlp.tools.doccat.DoccatModel;
+
+/**
+ * Process-wide, lazily loaded copy of the document categorizer model in {@code res/raw/trainer.bin}.
+ *
+ * The first {@link #getModel()} starts loading on a background thread and returns a future, so
+ * neither startup nor the first voice command blocks on it. A cold load unpacks the model zip
+ * and validates its manifest, then writes the bare maxent model to app storage as a snapshot;
+ * warm loads (later launches of the same app version) read the snapshot directly, skipping the
+ * zip and artifact parsing. Load times are logged and kept in {@link #getLoadMillis()}.
+ */
+public class DoccatModelLoader {
+    private final static String TAG = DoccatModelLoader.class.getSimpleName();
+
+    private static final String SNAPSHOT_PREFIX = "doccat-snapshot-";
+    private static final int SNAPSHOT_MAGIC = 0x44434d31; // "DCM1"
+
+    private static DoccatModelLoader sInstance;
+
+    public static synchronized DoccatModelLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new DoccatModelLoader(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private Future<DoccatModel> mModel;
+    private volatile long mLoadMillis = -1;
+    private volatile boolean mWarm;
+
+    private DoccatModelLoader(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return The model, loading it in the background on first use.
+     */
+    public synchronized Future<DoccatModel> getModel() {
+        if (mModel == null) {
+            mModel = mExecutor.submit(new Callable<DoccatModel>() {
+                @Override
+                public DoccatModel call() throws IOException {
+                    return load();
+                }
+            });
+        }
+        return mModel;
+    }
+
+    /**
+     * @return How long the load took, or -1 if it has not finished.
+     */
+    public long getLoadMillis() {
+        return mLoadMillis;
+    }
+
+    /**
+     * @return true if the model was loaded from the snapshot rather than the resource.
+     */
+    public boolean wasWarmLoad() {
+        return mWarm;
+    }
+
+    private DoccatModel load() throws IOException {
+        long startNanos = System.nanoTime();
+        File snapshot = getSnapshotFile();
+        DoccatModel model = null;
+        if (snapshot.exists()) {
+            try {
+                model = readSnapshot(snapshot);
+                mWarm = true;
+            } catch (IOException e) {
+                Log.w(TAG, "load(): discarding unreadable snapshot: " + e.getMessage());
+                snapshot.delete();
+            }
+        }
+        if (model == null) {
+            InputStream in = mContext.getResources().openRawResource(R.raw.trainer);
+            try {
+                model = new DoccatModel(in);
+            } finally {
+                in.close();
+            }
+            mWarm = false;
+        }
+        mLoadMillis = (System.nanoTime() - startNanos) / 1000000;
+        Log.i(TAG, "load(): " + (mWarm ? "warm" : "cold") + " load took " + mLoadMillis + " ms");
+
+        if (!mWarm)
+            writeSnapshot(model, snapshot);
+        return model;
+    }
+
+    private static DoccatModel readSnapshot(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC)
+                throw new IOException("bad magic");
+            String language = in.readUTF();
+            AbstractModel maxentModel = new BinaryGISModelReader(in).getModel();
+            return new DoccatModel(language, maxentModel);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Written to a temporary file and renamed, so a crash never leaves a truncated snapshot.
+    private void writeSnapshot(DoccatModel model, File file) {
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeUTF(model.getLanguage());
+                new BinaryGISModelWriter(model.getChunkerModel(), out).persist();
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file))
+                throw new IOException("unable to rename " + temporary);
+            deleteStaleSnapshots(file);
+        } catch (IOException e) {
+            Log.w(TAG, "writeSnapshot(): " + e.getMessage());
+            temporary.delete();
+        }
+    }
+
+    private void deleteStaleSnapshots(File current) {
+        File[] files = mContext.getFilesDir().listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith(SNAPSHOT_PREFIX) && !file.equals(current))
+                file.delete();
+        }
+    }
+
+    // The snapshot is tied to the installed APK, so an update with a retrained model invalidates it.
+    private File getSnapshotFile() {
+        long version;
+        try {
+            version = mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            version = 0;
+        }
+        return new File(mContext.getFilesDir(), SNAPSHOT_PREFIX + version + ".bin");
+    }
+}
@@ -0,0 +1,311 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.Arrays;
+
+/**
+ * A single GATT request (read, write, ...) waiting its turn in a {@link GattOperationQueue}.
+ *
+ * Android only allows one outstanding GATT request per connection: issuing a second one before
+ * the first one's callback fires makes it fail silently. Operations therefore carry everything
+ * they need (e.g. the value to write) and are only applied to the shared
+ * {@code BluetoothGattCharacteristic} when they reach the head of the queue.
+ */
+public abstract class GattOperation {
+
+    public interface Callback {
+        /**
+         * @param operation The completed operation.
+         * @param status {@code BluetoothGatt.GATT_SUCCESS} or the failure status.
+         */
+        void onComplete(GattOperation operation, int status);
+    }
+
+    public static final int TYPE_READ = 1;
+    public static final int TYPE_WRITE = 2;
+    /** Descriptor writes are matched by the descriptor's characteristic. */
+    public static final int TYPE_DESCRIPTOR_WRITE = 3;
+    /** Not tied to a characteristic. */
+    public static final int TYPE_READ_RSSI = 4;
+    /** Completion of a whole reliable write transaction; see {@link ReliableWriteBatch}. */
+    public static final int TYPE_RELIABLE_WRITE = 5;
+
+    /** Returned by {@link #advance} when the operation has issued another request. */
+    static final int STEP_PENDING = Integer.MIN_VALUE;
+
+    // Lanes of the GattOperationQueue, most urgent first.
+    /** Commands that must not wait behind data, e.g. stop/steer or AT commands. */
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_DEFAULT = 1;
+    /** Bulk data that may be held back for anything else, e.g. file transfer chunks. */
+    public static final int PRIORITY_BULK = 2;
+    static final int PRIORITY_COUNT = 3;
+
+    private final int mType;
+    private int mPriority = PRIORITY_DEFAULT;
+    protected final BluetoothGattCharacteristic mCharacteristic;
+    private final Callback mCallback;
+    long mEnqueuedNanos;
+    long mStartedNanos;
+    long mIssuedRealtimeNanos;
+    long mCompletedRealtimeNanos;
+    private byte[] mValue;
+
+    protected GattOperation(int type, BluetoothGattCharacteristic characteristic, Callback callback) {
+        mType = type;
+        mCharacteristic = characteristic;
+        mCallback = callback;
+    }
+
+    /**
+     * Issues the request on the given connection.
+     *
+     * @return true if the request was accepted by the stack, in which case a matching
+     *         {@code BluetoothGattCallback} call will complete it.
+     */
+    abstract boolean execute(BluetoothGatt gatt);
+
+    /**
+     * @return true if a GATT callback of the given type for the given characteristic completes this operation.
+     */
+    boolean matches(int type, BluetoothGattCharacteristic characteristic) {
+        return type == mType && (mCharacteristic == null || characteristic == null
+                || mCharacteristic.getUuid().equals(characteristic.getUuid()));
+    }
+
+    /**
+     * Called for each matching GATT callback before the operation is completed. Operations made
+     * of several requests issue the next one here.
+     *
+     * @return {@link #STEP_PENDING} if another request was issued, otherwise the status to
+     *         complete the operation with.
+     */
+    int advance(BluetoothGatt gatt, int type, BluetoothGattCharacteristic characteristic, int status) {
+        return status;
+    }
+
+    /**
+     * Called when the operation is given up on while in progress, e.g. on timeout.
+     */
+    void abort(BluetoothGatt gatt) {
+    }
+
+    void complete(int status) {
+        if (mCallback != null)
+            mCallback.onComplete(this, status);
+    }
+
+    /**
+     * Completes a read from the value cache, without issuing it.
+     *
+     * @param timestampNanos When the value was taken, in {@code SystemClock.elapsedRealtimeNanos()} time.
+     */
+    void completeFromCache(byte[] value, long timestampNanos) {
+        mEnqueuedNanos = System.nanoTime();
+        mStartedNanos = mEnqueuedNanos;
+        mIssuedRealtimeNanos = timestampNanos;
+        mCompletedRealtimeNanos = timestampNanos;
+        mValue = value;
+        complete(BluetoothGatt.GATT_SUCCESS);
+    }
+
+    /**
+     * Completes a read that joined another read in flight, with that read's timings.
+     *
+     * @param value The value read, or null if the read failed.
+     */
+    void completeJoined(GattOperation read, byte[] value, int status) {
+        mEnqueuedNanos = read.mEnqueuedNanos;
+        mStartedNanos = read.mStartedNanos;
+        mIssuedRealtimeNanos = read.mIssuedRealtimeNanos;
+        mCompletedRealtimeNanos = read.mCompletedRealtimeNanos;
+        mValue = value;
+        complete(status);
+    }
+
+    /**
+     * @param priority One of the {@code PRIORITY_*} constants.
+     * @return This operation.
+     */
+    public GattOperation setPriority(int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT)
+            throw new IllegalArgumentException("Unknown priority: " + priority);
+        mPriority = priority;
+        return this;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return The characteristic operated on, or null for operations on the connection itself.
+     */
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    public boolean hasCallback() {
+        return mCallback != null;
+    }
+
+    /**
+     * @return The value of a read made through {@code BluetoothLeService#readCharacteristic},
+     *         which is not left on the shared characteristic, or null if it failed. Null for
+     *         other operations.
+     */
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return Nanoseconds ({@code System.nanoTime()}) spent queued before being issued.
+     */
+    public long getQueuedNanos() {
+        return mStartedNanos - mEnqueuedNanos;
+    }
+
+    /**
+     * @return {@code System.nanoTime()} at which the operation was issued to the stack.
+     */
+    public long getStartedNanos() {
+        return mStartedNanos;
+    }
+
+    /**
+     * @return {@code SystemClock.elapsedRealtimeNanos()} at which the operation was issued to the
+     *         stack, comparable with {@link BlunoPacket#getTimestampNanos()}.
+     */
+    public long getIssuedRealtimeNanos() {
+        return mIssuedRealtimeNanos;
+    }
+
+    /**
+     * @return {@code SystemClock.elapsedRealtimeNanos()} at which the completing callback (or
+     *         failure) arrived, or 0 while the operation is pending.
+     */
+    public long getCompletedRealtimeNanos() {
+        return mCompletedRealtimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        String type;
+        switch (mType) {
+            case TYPE_READ: type = "read"; break;
+            case TYPE_WRITE: type = "write"; break;
+            case TYPE_DESCRIPTOR_WRITE: type = "descriptor write"; break;
+            case TYPE_READ_RSSI: type = "RSSI read"; break;
+            case TYPE_RELIABLE_WRITE: type = "reliable write"; break;
+            default: type = "operation " + mType;
+        }
+        return mCharacteristic == null ? type : type + " " + mCharacteristic.getUuid();
+    }
+
+    /**
+     * Reads the characteristic; the value is available from the characteristic on completion,
+     * or from {@link #getValue()} when read through {@code BluetoothLeService#readCharacteristic}.
+     */
+    public static GattOperation read(BluetoothGattCharacteristic characteristic, Callback callback) {
+        return new GattOperation(TYPE_READ, characteristic, callback) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(mCharacteristic);
+            }
+        };
+    }
+
+    /**
+     * Writes the given value, with the given {@code BluetoothGattCharacteristic.WRITE_TYPE_*}.
+     */
+    public static GattOperation write(BluetoothGattCharacteristic characteristic, byte[] value,
+                                      final int writeType, Callback callback) {
+        final byte[] data = value.clone();
+        return new GattOperation(TYPE_WRITE, characteristic, callback) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                mCharacteristic.setValue(data);
+                mCharacteristic.setWriteType(writeType);
+                return gatt.writeCharacteristic(mCharacteristic);
+            }
+        };
+    }
+
+    /**
+     * Writes a value longer than one write allows as consecutive writes of at most chunkSize
+     * bytes, with the given {@code BluetoothGattCharacteristic.WRITE_TYPE_*}. The writes form one
+     * operation, so nothing else reaches the characteristic between them and the receiver sees
+     * the value whole.
+     */
+    public static GattOperation writeChunked(BluetoothGattCharacteristic characteristic, byte[] value,
+                                             final int chunkSize, final int writeType, Callback callback) {
+        final byte[] data = value.clone();
+        return new GattOperation(TYPE_WRITE, characteristic, callback) {
+            private int mOffset; // start of the chunk in flight
+
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                mOffset = 0;
+                return writeChunk(gatt);
+            }
+
+            @Override
+            int advance(BluetoothGatt gatt, int type, BluetoothGattCharacteristic characteristic, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS)
+                    return status;
+                mOffset += chunkSize;
+                if (mOffset >= data.length)
+                    return status;
+                return writeChunk(gatt) ? STEP_PENDING : BluetoothGatt.GATT_FAILURE;
+            }
+
+            private boolean writeChunk(BluetoothGatt gatt) {
+                mCharacteristic.setValue(Arrays.copyOfRange(data, mOffset, Math.min(data.length, mOffset + chunkSize)));
+                mCharacteristic.setWriteType(writeType);
+                return gatt.writeCharacteristic(mCharacteristic);
+            }
+        };
+    }
+
+    /**
+     * Writes the given value to a descriptor, e.g. the client characteristic configuration.
+     */
+    public static GattOperation writeDescriptor(final BluetoothGattDescriptor descriptor, byte[] value, Callback callback) {
+        final byte[] data = value.clone();
+        return new GattOperation(TYPE_DESCRIPTOR_WRITE, descriptor.getCharacteristic(), callback) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                descriptor.setValue(data);
+                return gatt.writeDescriptor(descriptor);
+            }
+        };
+    }
+
+    /**
+     * Reads the connection's received signal strength; the value is passed to
+     * {@code BluetoothGattCallback#onReadRemoteRssi} before the operation completes.
+     */
+    public static GattOperation readRemoteRssi(Callback callback) {
+        return new GattOperation(TYPE_READ_RSSI, null, callback) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readRemoteRssi();
+            }
+        };
+    }
+
+    /**
+     * Writes the characteristic's current value with its current write type.
+     */
+    public static GattOperation write(BluetoothGattCharacteristic characteristic, Callback callback) {
+        byte[] value = characteristic.getValue();
+        return write(characteristic, value == null ? new byte[0] : value, characteristic.getWriteType(), callback);
+    }
+}
@@ -0,0 +1,318 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes {@link GattOperation}s on a single {@code BluetoothGatt} connection, issuing the next
+ * one as soon as the current one completes. Most operations are a single request completed by its
+ * {@code BluetoothGattCallback}; some (chunked writes, {@link ReliableWriteBatch}es) issue a
+ * request per callback and only complete with the callback for their last one.
+ *
+ * Operations wait in one lane per priority and the next one is always taken from the most
+ * urgent non-empty lane, so a control command only ever waits for the operation already in
+ * progress, however much bulk data is queued. Operations are the unit of preemption: one made of
+ * several requests keeps the connection until it completes, so its requests are never
+ * interleaved with anything else. The time control operations take from enqueue to completion
+ * is recorded in {@link #getControlLatency()}.
+ *
+ * The bulk lane can be slowed down or held with {@link #setBulkInterval(long)}, e.g. while the
+ * link is weak, without holding up anything more urgent.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    // If the stack never calls back (e.g. the link dropped mid-request) give up on the operation.
+    private static final long OPERATION_TIMEOUT_MILLIS = 5000;
+
+    /** Bulk interval that holds bulk operations until the interval is changed. */
+    public static final long BULK_HELD = -1;
+    // While bulk operations are held, the oldest are failed beyond this many.
+    private static final int MAX_HELD_BULK = 64;
+
+    private final Handler mHandler;
+    private final List<ArrayDeque<GattOperation>> mLanes = new ArrayList<ArrayDeque<GattOperation>>();
+    private final LatencyHistogram mControlLatency = new LatencyHistogram();
+    private BluetoothGatt mGatt;
+    private GattOperation mCurrent;
+    private TimeoutRunnable mTimeout;
+    private GattOperation.Callback mObserver;
+    private long mBulkIntervalNanos;
+    private long mNextBulkNanos;
+    private boolean mBulkWakeupPosted;
+    private long mIssuedCount;
+
+    private final Runnable mBulkWakeup = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                mBulkWakeupPosted = false;
+            }
+            next();
+        }
+    };
+
+    private final class TimeoutRunnable implements Runnable {
+        private final GattOperation mOperation;
+
+        TimeoutRunnable(GattOperation operation) {
+            mOperation = operation;
+        }
+
+        @Override
+        public void run() {
+            BluetoothGatt gatt;
+            synchronized (GattOperationQueue.this) {
+                // The callback may have raced this timeout, or moved the operation on a step.
+                if (mCurrent != mOperation || mTimeout != this)
+                    return;
+                mCurrent = null;
+                mTimeout = null;
+                gatt = mGatt;
+            }
+            Log.w(TAG, "TimeoutRunnable.run(): operation timed out: " + mOperation);
+            if (gatt != null)
+                mOperation.abort(gatt);
+            complete(mOperation, BluetoothGatt.GATT_FAILURE);
+            next();
+        }
+    }
+
+    public GattOperationQueue(Looper looper) {
+        mHandler = new Handler(looper);
+        for (int i = 0; i < GattOperation.PRIORITY_COUNT; i++)
+            mLanes.add(new ArrayDeque<GattOperation>());
+    }
+
+    /**
+     * Sets the connection operations are issued on. Setting null (on disconnect) fails
+     * everything pending.
+     */
+    public void setGatt(BluetoothGatt gatt) {
+        synchronized (this) {
+            mGatt = gatt;
+        }
+        if (gatt == null)
+            clear();
+        else
+            next();
+    }
+
+    public void enqueue(GattOperation operation) {
+        operation.mEnqueuedNanos = System.nanoTime();
+        GattOperation dropped = null;
+        synchronized (this) {
+            ArrayDeque<GattOperation> lane = mLanes.get(operation.getPriority());
+            lane.offer(operation);
+            if (operation.getPriority() == GattOperation.PRIORITY_BULK && mBulkIntervalNanos == BULK_HELD
+                    && lane.size() > MAX_HELD_BULK)
+                dropped = lane.poll();
+        }
+        if (dropped != null)
+            complete(dropped, BluetoothGatt.GATT_FAILURE);
+        next();
+    }
+
+    /**
+     * Limits how often bulk operations are issued.
+     *
+     * @param millis Minimum time between the start of one bulk operation and the next, 0 for no
+     *               limit, or {@link #BULK_HELD} to issue none until called again.
+     */
+    public void setBulkInterval(long millis) {
+        synchronized (this) {
+            mBulkIntervalNanos = millis <= 0 ? millis : millis * 1000000;
+        }
+        next();
+    }
+
+    /**
+     * Sets a callback told about every operation completed by this queue, before the operation's
+     * own callback. Used for link statistics.
+     */
+    public synchronized void setObserver(GattOperation.Callback observer) {
+        mObserver = observer;
+    }
+
+    /**
+     * Called from the {@code BluetoothGattCallback} when a request completes. An operation made
+     * of several requests stays current until its last one completes.
+     *
+     * @return The operation that was completed, or null if the callback was for a request not
+     *         issued through this queue.
+     */
+    public GattOperation onOperationComplete(int type, BluetoothGattCharacteristic characteristic, int status) {
+        GattOperation completed;
+        BluetoothGatt gatt;
+        synchronized (this) {
+            if (mCurrent == null || !mCurrent.matches(type, characteristic))
+                return null;
+            completed = mCurrent;
+            gatt = mGatt;
+        }
+        if (gatt != null)
+            status = completed.advance(gatt, type, characteristic, status);
+        TimeoutRunnable timeout;
+        if (status == GattOperation.STEP_PENDING) {
+            // A multi-step operation issued its next request; give that one its own timeout.
+            TimeoutRunnable next = new TimeoutRunnable(completed);
+            synchronized (this) {
+                if (mCurrent != completed)
+                    return completed; // timed out meanwhile
+                timeout = mTimeout;
+                mTimeout = next;
+            }
+            if (timeout != null)
+                mHandler.removeCallbacks(timeout);
+            mHandler.postDelayed(next, OPERATION_TIMEOUT_MILLIS);
+            return completed;
+        }
+        synchronized (this) {
+            if (mCurrent != completed)
+                return completed; // timed out meanwhile
+            mCurrent = null;
+            timeout = mTimeout;
+            mTimeout = null;
+        }
+        if (timeout != null)
+            mHandler.removeCallbacks(timeout);
+        complete(completed, status);
+        next();
+        return completed;
+    }
+
+    /**
+     * Fails the current and all pending operations.
+     */
+    public void clear() {
+        List<GattOperation> failed = new ArrayList<GattOperation>();
+        synchronized (this) {
+            if (mCurrent != null)
+                failed.add(mCurrent);
+            mCurrent = null;
+            mTimeout = null;
+            for (ArrayDeque<GattOperation> lane : mLanes) {
+                failed.addAll(lane);
+                lane.clear();
+            }
+        }
+        for (GattOperation operation : failed)
+            complete(operation, BluetoothGatt.GATT_FAILURE);
+    }
+
+    public synchronized int size() {
+        int size = mCurrent == null ? 0 : 1;
+        for (ArrayDeque<GattOperation> lane : mLanes)
+            size += lane.size();
+        return size;
+    }
+
+    /**
+     * @return Number of operations waiting in the given priority lane.
+     */
+    public synchronized int size(int priority) {
+        return mLanes.get(priority).size();
+    }
+
+    /**
+     * @return Number of operations issued to the stack so far, for keeping to a budget of
+     *         operations per second.
+     */
+    public synchronized long getIssuedCount() {
+        return mIssuedCount;
+    }
+
+    /**
+     * @return Enqueue-to-completion latency of {@link GattOperation#PRIORITY_CONTROL} operations,
+     *         in microseconds. Its maximum is the worst case seen.
+     */
+    public LatencyHistogram getControlLatency() {
+        return mControlLatency;
+    }
+
+    private void complete(GattOperation operation, int status) {
+        operation.mCompletedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+        GattOperation.Callback observer;
+        synchronized (this) {
+            observer = mObserver;
+        }
+        if (observer != null)
+            observer.onComplete(operation, status);
+        if (operation.getPriority() == GattOperation.PRIORITY_CONTROL) {
+            long micros = (System.nanoTime() - operation.mEnqueuedNanos) / 1000;
+            if (micros > mControlLatency.getMax())
+                Log.i(TAG, "complete(): new worst case control latency: " + micros + " us");
+            mControlLatency.record(micros);
+        }
+        operation.complete(status);
+    }
+
+    // Takes the next operation from the most urgent non-empty lane the bulk interval allows,
+    // arranging to be woken when a throttled bulk operation becomes due. Caller holds the lock.
+    private GattOperation poll() {
+        for (int priority = 0; priority < mLanes.size(); priority++) {
+            ArrayDeque<GattOperation> lane = mLanes.get(priority);
+            if (lane.isEmpty())
+                continue;
+            if (priority == GattOperation.PRIORITY_BULK && mBulkIntervalNanos != 0) {
+                if (mBulkIntervalNanos == BULK_HELD)
+                    return null;
+                long now = System.nanoTime();
+                if (now < mNextBulkNanos) {
+                    if (!mBulkWakeupPosted) {
+                        mBulkWakeupPosted = true;
+                        mHandler.postDelayed(mBulkWakeup, (mNextBulkNanos - now) / 1000000 + 1);
+                    }
+                    return null;
+                }
+                mNextBulkNanos = now + mBulkIntervalNanos;
+            }
+            return lane.poll();
+        }
+        return null;
+    }
+
+    private void next() {
+        for (;;) {
+            GattOperation operation;
+            BluetoothGatt gatt;
+            synchronized (this) {
+                if (mCurrent != null || mGatt == null)
+                    return;
+                operation = poll();
+                if (operation == null)
+                    return;
+                mCurrent = operation;
+                gatt = mGatt;
+                // Stamped with the count, so whoever reads the count sees the stamp too.
+                operation.mIssuedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+                mIssuedCount++;
+            }
+            operation.mStartedNanos = System.nanoTime();
+            // Armed before issuing, since the callback can arrive before execute() returns.
+            TimeoutRunnable timeout = new TimeoutRunnable(operation);
+            synchronized (this) {
+                mTimeout = timeout;
+            }
+            mHandler.postDelayed(timeout, OPERATION_TIMEOUT_MILLIS);
+            if (operation.execute(gatt))
+                return;
+
+            mHandler.removeCallbacks(timeout);
+            Log.w(TAG, "next(): stack refused " + operation);
+            synchronized (this) {
+                mCurrent = null;
+                mTimeout = null;
+            }
+            complete(operation, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+}
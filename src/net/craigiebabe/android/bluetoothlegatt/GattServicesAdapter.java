@@ -0,0 +1,228 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Expandable list of the discovered GATT services (groups) and their characteristics (children).
+ *
+ * Rows are bound straight from the {@link BluetoothGattService} tree, so nothing is copied when
+ * services are discovered and the text of a row is only built when it scrolls into view. A
+ * characteristic row shows its decoded properties, its descriptors, its last value and, once read
+ * through {@link #setReadResult(BluetoothGattCharacteristic, int, long)}, how long the read took.
+ */
+public class GattServicesAdapter extends BaseExpandableListAdapter {
+
+    private static final long NOT_READ = -1;
+    /** The latency of a read that failed without being issued, e.g. dropped on disconnect. */
+    public static final long NOT_ISSUED = -2;
+
+    private final List<BluetoothGattService> mServices;
+    private final LayoutInflater mInflater;
+    private final String mUnknownService;
+    private final String mUnknownCharacteristic;
+    // Read results by flat characteristic index: mGroupOffsets[group] + child.
+    private final int[] mGroupOffsets;
+    private final long[] mReadMicros;
+    private final int[] mReadStatus;
+
+    public GattServicesAdapter(Context context, List<BluetoothGattService> services) {
+        mServices = services;
+        mInflater = LayoutInflater.from(context);
+        mUnknownService = context.getString(R.string.unknown_service);
+        mUnknownCharacteristic = context.getString(R.string.unknown_characteristic);
+
+        mGroupOffsets = new int[services.size()];
+        int count = 0;
+        for (int i = 0; i < services.size(); i++) {
+            mGroupOffsets[i] = count;
+            count += services.get(i).getCharacteristics().size();
+        }
+        mReadMicros = new long[count];
+        mReadStatus = new int[count];
+        Arrays.fill(mReadMicros, NOT_READ);
+    }
+
+    /**
+     * @return Every characteristic with the read property, in display order.
+     */
+    public List<BluetoothGattCharacteristic> getReadableCharacteristics() {
+        List<BluetoothGattCharacteristic> readable = new ArrayList<BluetoothGattCharacteristic>();
+        for (BluetoothGattService service : mServices) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) != 0)
+                    readable.add(characteristic);
+            }
+        }
+        return readable;
+    }
+
+    /**
+     * Records the outcome of a read for display. Call on the UI thread, then
+     * {@link #notifyDataSetChanged()}.
+     *
+     * @param micros How long the read took, or {@link #NOT_ISSUED}.
+     */
+    public void setReadResult(BluetoothGattCharacteristic characteristic, int status, long micros) {
+        int index = indexOf(characteristic);
+        if (index < 0)
+            return;
+        mReadStatus[index] = status;
+        mReadMicros[index] = micros;
+    }
+
+    @Override
+    public int getGroupCount() {
+        return mServices.size();
+    }
+
+    @Override
+    public int getChildrenCount(int groupPosition) {
+        return mServices.get(groupPosition).getCharacteristics().size();
+    }
+
+    @Override
+    public BluetoothGattService getGroup(int groupPosition) {
+        return mServices.get(groupPosition);
+    }
+
+    @Override
+    public BluetoothGattCharacteristic getChild(int groupPosition, int childPosition) {
+        return mServices.get(groupPosition).getCharacteristics().get(childPosition);
+    }
+
+    @Override
+    public long getGroupId(int groupPosition) {
+        return groupPosition;
+    }
+
+    @Override
+    public long getChildId(int groupPosition, int childPosition) {
+        return mGroupOffsets[groupPosition] + childPosition;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public boolean isChildSelectable(int groupPosition, int childPosition) {
+        return true;
+    }
+
+    @Override
+    public View getGroupView(int groupPosition, boolean isExpanded, View view, ViewGroup parent) {
+        ViewHolder viewHolder = getViewHolder(view, parent);
+        String uuid = getGroup(groupPosition).getUuid().toString();
+        viewHolder.name.setText(BlunoGattAttributes.lookup(uuid, mUnknownService));
+        viewHolder.details.setText(uuid);
+        return viewHolder.view;
+    }
+
+    @Override
+    public View getChildView(int groupPosition, int childPosition, boolean isLastChild, View view, ViewGroup parent) {
+        ViewHolder viewHolder = getViewHolder(view, parent);
+        BluetoothGattCharacteristic characteristic = getChild(groupPosition, childPosition);
+        String uuid = characteristic.getUuid().toString();
+        viewHolder.name.setText(BlunoGattAttributes.lookup(uuid, mUnknownCharacteristic));
+
+        StringBuilder details = new StringBuilder(uuid);
+        details.append("\n").append(describeProperties(characteristic.getProperties()));
+        for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+            String descriptorUuid = descriptor.getUuid().toString();
+            details.append("\n  ").append(BlunoGattAttributes.lookup(descriptorUuid, descriptorUuid));
+            if (descriptor.getValue() != null)
+                details.append(": ").append(describeValue(descriptor.getValue()));
+        }
+        int index = mGroupOffsets[groupPosition] + childPosition;
+        if (mReadMicros[index] != NOT_READ) {
+            details.append("\nread ").append(mReadStatus[index] == BluetoothGatt.GATT_SUCCESS ? "ok" : "failed (" + mReadStatus[index] + ")");
+            if (mReadMicros[index] != NOT_ISSUED)
+                details.append(" in ").append(mReadMicros[index] / 1000.0).append(" ms");
+        }
+        if (characteristic.getValue() != null)
+            details.append("\nvalue: ").append(describeValue(characteristic.getValue()));
+        viewHolder.details.setText(details);
+        return viewHolder.view;
+    }
+
+    private ViewHolder getViewHolder(View view, ViewGroup parent) {
+        // General ListView optimization code.
+        if (view != null)
+            return (ViewHolder) view.getTag();
+        ViewHolder viewHolder = new ViewHolder();
+        viewHolder.view = mInflater.inflate(android.R.layout.simple_expandable_list_item_2, parent, false);
+        viewHolder.name = (TextView) viewHolder.view.findViewById(android.R.id.text1);
+        viewHolder.details = (TextView) viewHolder.view.findViewById(android.R.id.text2);
+        viewHolder.view.setTag(viewHolder);
+        return viewHolder;
+    }
+
+    private int indexOf(BluetoothGattCharacteristic characteristic) {
+        for (int group = 0; group < mServices.size(); group++) {
+            int child = mServices.get(group).getCharacteristics().indexOf(characteristic);
+            if (child >= 0)
+                return mGroupOffsets[group] + child;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The properties bit field as names, e.g. "READ WRITE_NO_RESPONSE NOTIFY".
+     */
+    public static String describeProperties(int properties) {
+        StringBuilder text = new StringBuilder();
+        appendIfSet(text, properties, BluetoothGattCharacteristic.PROPERTY_BROADCAST, "BROADCAST");
+        appendIfSet(text, properties, BluetoothGattCharacteristic.PROPERTY_READ, "READ");
+        appendIfSet(text, properties, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, "WRITE_NO_RESPONSE");
+        appendIfSet(text, properties, BluetoothGattCharacteristic.PROPERTY_WRITE, "WRITE");
+        appendIfSet(text, properties, BluetoothGattCharacteristic.PROPERTY_NOTIFY, "NOTIFY");
+        appendIfSet(text, properties, BluetoothGattCharacteristic.PROPERTY_INDICATE, "INDICATE");
+        appendIfSet(text, properties, BluetoothGattCharacteristic.PROPERTY_SIGNED_WRITE, "SIGNED_WRITE");
+        appendIfSet(text, properties, BluetoothGattCharacteristic.PROPERTY_EXTENDED_PROPS, "EXTENDED_PROPS");
+        return text.length() == 0 ? "NONE" : text.toString();
+    }
+
+    private static void appendIfSet(StringBuilder text, int properties, int property, String name) {
+        if ((properties & property) == 0)
+            return;
+        if (text.length() > 0)
+            text.append(' ');
+        text.append(name);
+    }
+
+    // Hex, plus the text if it is all printable (most Bluno values are).
+    private static String describeValue(byte[] value) {
+        if (value.length == 0)
+            return "(empty)";
+        StringBuilder hex = new StringBuilder(value.length * 3);
+        boolean printable = true;
+        for (byte b : value) {
+            hex.append(String.format("%02X ", b));
+            if ((b < 0x20 || b > 0x7e) && b != '\r' && b != '\n')
+                printable = false;
+        }
+        if (printable)
+            hex.append("\"").append(new String(value).trim()).append("\"");
+        return hex.toString().trim();
+    }
+
+    static class ViewHolder {
+        View view;
+        TextView name;
+        TextView details;
+    }
+}
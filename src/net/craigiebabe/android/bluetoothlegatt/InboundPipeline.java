@@ -0,0 +1,302 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves the processing of received values off the Bluetooth binder thread.
+ *
+ * The GATT callback only copies each value into a {@link PacketRing} with {@link #offer}; a
+ * dedicated thread drains the ring, turns values into {@link BlunoPacket}s and hands every one
+ * to {@link Listener#onPacket} (metrics, publishing to subscribers, capture). What the user
+ * sees only needs the latest value, so values to display are coalesced per characteristic and
+ * passed to {@link Listener#onDisplay} at most once every {@link #DISPLAY_INTERVAL_MILLIS}:
+ * formatting and UI updates then cost the same whatever the notification rate.
+ *
+ * Consumers that want every value get them in batches through {@link Listener#onBatch}, so the
+ * cost of waking them is paid per batch rather than per value. A batch is delivered once it
+ * holds the maximum number of packets or its time window, counted from its first packet, has
+ * passed. Values from bypass characteristics (e.g. command responses) are delivered at once, in
+ * a batch of their own after whatever was pending.
+ */
+class InboundPipeline {
+    private final static String TAG = InboundPipeline.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    /** One display frame. */
+    public static final long DISPLAY_INTERVAL_MILLIS = 16;
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 10;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+    interface Listener {
+        /**
+         * Called on the pipeline thread for every value, in arrival order.
+         *
+         * @param notification Whether the value was notified, rather than read.
+         */
+        void onPacket(BlunoPacket packet, boolean notification);
+
+        /**
+         * Called on the pipeline thread with values gathered since the last batch, in arrival order.
+         * The list is only valid during the call.
+         */
+        void onBatch(List<BlunoPacket> batch);
+
+        /**
+         * Called on the pipeline thread with the latest value to display for a characteristic.
+         */
+        void onDisplay(BluetoothGattCharacteristic characteristic, BlunoPacket packet);
+    }
+
+    private final PacketRing mRing;
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final AtomicInteger mWip = new AtomicInteger();
+    private final Set<UUID> mBatchBypass = new CopyOnWriteArraySet<UUID>();
+    private final Map<UUID, Integer> mBatchBypassCounts = new HashMap<UUID, Integer>(); // guarded by itself
+    private volatile long mBatchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+    private volatile int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    // Pipeline thread only.
+    private final Map<BluetoothGattCharacteristic, BlunoPacket> mPendingDisplay =
+            new LinkedHashMap<BluetoothGattCharacteristic, BlunoPacket>();
+    private boolean mDisplayScheduled;
+    private long mLastDisplayMillis;
+    private final List<BlunoPacket> mBatch = new ArrayList<BlunoPacket>();
+    private boolean mBatchScheduled;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            int missed = 1;
+            for (;;) {
+                PacketRing.Slot slot;
+                while ((slot = mRing.peek()) != null) {
+                    BluetoothGattCharacteristic characteristic = slot.mCharacteristic;
+                    BlunoPacket packet = new BlunoPacket(characteristic.getUuid(), slot.mValue, 0, slot.mLength,
+                            slot.mTimestampNanos);
+                    boolean notification = slot.mNotification;
+                    boolean display = slot.mDisplay;
+                    mRing.release();
+                    try {
+                        mListener.onPacket(packet, notification);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "mDrain.run(): listener failed on " + packet, e);
+                    }
+                    if (display)
+                        mPendingDisplay.put(characteristic, packet);
+                    addToBatch(packet);
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0)
+                    break;
+            }
+            if (!mBatch.isEmpty()) {
+                long window = mBatchWindowMillis;
+                if (window <= 0) {
+                    flushBatch(); // no window: a batch is whatever arrived together
+                } else if (!mBatchScheduled) {
+                    mBatchScheduled = true;
+                    mHandler.postDelayed(mFlush, window);
+                }
+            }
+            scheduleDisplay();
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushBatch();
+        }
+    };
+
+    private final Runnable mDisplay = new Runnable() {
+        @Override
+        public void run() {
+            mDisplayScheduled = false;
+            mLastDisplayMillis = SystemClock.uptimeMillis();
+            List<Map.Entry<BluetoothGattCharacteristic, BlunoPacket>> pending =
+                    new ArrayList<Map.Entry<BluetoothGattCharacteristic, BlunoPacket>>(mPendingDisplay.entrySet());
+            mPendingDisplay.clear();
+            for (Map.Entry<BluetoothGattCharacteristic, BlunoPacket> entry : pending) {
+                try {
+                    mListener.onDisplay(entry.getKey(), entry.getValue());
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "mDisplay.run(): listener failed on " + entry.getValue(), e);
+                }
+            }
+        }
+    };
+
+    // Pipeline thread only.
+    private void scheduleDisplay() {
+        if (!mPendingDisplay.isEmpty() && !mDisplayScheduled) {
+            mDisplayScheduled = true;
+            long delay = mLastDisplayMillis + DISPLAY_INTERVAL_MILLIS - SystemClock.uptimeMillis();
+            mHandler.postDelayed(mDisplay, Math.max(0, delay));
+        }
+    }
+
+    // Pipeline thread only.
+    private void addToBatch(BlunoPacket packet) {
+        if (mBatchBypass.contains(packet.getCharacteristicUuid())) {
+            flushBatch();
+            mBatch.add(packet);
+            flushBatch();
+            return;
+        }
+        mBatch.add(packet);
+        if (mBatch.size() >= mMaxBatchSize)
+            flushBatch();
+    }
+
+    // Pipeline thread only.
+    private void flushBatch() {
+        if (mBatchScheduled) {
+            mBatchScheduled = false;
+            mHandler.removeCallbacks(mFlush);
+        }
+        if (mBatch.isEmpty())
+            return;
+        try {
+            mListener.onBatch(mBatch);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "flushBatch(): listener failed on a batch of " + mBatch.size(), e);
+        }
+        mBatch.clear();
+    }
+
+    /**
+     * Starts the pipeline thread.
+     *
+     * @param capacity Number of values that can wait in the ring before new ones are dropped.
+     */
+    InboundPipeline(int capacity, Listener listener) {
+        mRing = new PacketRing(capacity);
+        mListener = listener;
+        mThread = new HandlerThread("BlunoPipeline");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues a value for processing. Call it from the GATT callback (the single producer); it
+     * copies the value and never blocks.
+     *
+     * @param timestampNanos Arrival time, in {@code SystemClock.elapsedRealtimeNanos()} time.
+     * @param notification Whether the value was notified, rather than read.
+     * @param display Whether the value should be passed to {@link Listener#onDisplay}.
+     * @return false if the pipeline is backed up and the value was dropped.
+     */
+    boolean offer(BluetoothGattCharacteristic characteristic, byte[] value, long timestampNanos,
+                  boolean notification, boolean display) {
+        boolean accepted = mRing.offer(characteristic, value, timestampNanos, notification, display);
+        if (mWip.getAndIncrement() == 0)
+            mHandler.post(mDrain);
+        return accepted;
+    }
+
+    /**
+     * Has a value displayed, coalesced with the others, without passing it to
+     * {@link Listener#onPacket} or a batch: for values that have already been through the
+     * pipeline, such as polled values found to have changed.
+     *
+     * @param timestampNanos Arrival time, in {@code SystemClock.elapsedRealtimeNanos()} time.
+     */
+    void display(final BluetoothGattCharacteristic characteristic, byte[] value, long timestampNanos) {
+        final BlunoPacket packet = new BlunoPacket(characteristic.getUuid(), value, timestampNanos);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingDisplay.put(characteristic, packet);
+                scheduleDisplay();
+            }
+        });
+    }
+
+    /**
+     * Sets when batches are delivered. Takes effect from the next batch.
+     *
+     * @param windowMillis Longest a value waits for its batch to fill, e.g. 5 to 50 ms; 0 to
+     *                     only batch values that arrive together.
+     * @param maxSize Number of values that fill a batch.
+     */
+    void setBatching(long windowMillis, int maxSize) {
+        if (windowMillis < 0 || maxSize < 1)
+            throw new IllegalArgumentException("Bad batching: " + windowMillis + " ms, " + maxSize + " packets");
+        mBatchWindowMillis = windowMillis;
+        mMaxBatchSize = maxSize;
+    }
+
+    /**
+     * Has values from a characteristic delivered as soon as they arrive rather than batched.
+     * Bypasses are counted: the characteristic is batched again once each has been removed.
+     */
+    void addBatchBypass(UUID characteristicUuid) {
+        synchronized (mBatchBypassCounts) {
+            Integer count = mBatchBypassCounts.get(characteristicUuid);
+            mBatchBypassCounts.put(characteristicUuid, count == null ? 1 : count + 1);
+            mBatchBypass.add(characteristicUuid);
+        }
+    }
+
+    void removeBatchBypass(UUID characteristicUuid) {
+        synchronized (mBatchBypassCounts) {
+            Integer count = mBatchBypassCounts.get(characteristicUuid);
+            if (count == null)
+                return;
+            if (count > 1) {
+                mBatchBypassCounts.put(characteristicUuid, count - 1);
+            } else {
+                mBatchBypassCounts.remove(characteristicUuid);
+                mBatchBypass.remove(characteristicUuid);
+            }
+        }
+    }
+
+    /**
+     * @return Number of values dropped because the pipeline thread fell behind.
+     */
+    long getDroppedCount() {
+        return mRing.getDroppedCount();
+    }
+
+    /**
+     * Stops the pipeline thread once the values already queued have been processed. The batch
+     * and display updates still waiting out their interval are delivered at once rather than
+     * dropped with the thread's delayed messages.
+     *
+     * @param last Run on the pipeline thread after everything has been delivered, e.g. to
+     *             complete the consumers; may be null.
+     */
+    void quit(final Runnable last) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushBatch();
+                if (mDisplayScheduled) {
+                    mHandler.removeCallbacks(mDisplay);
+                    mDisplay.run();
+                }
+                if (last != null)
+                    last.run();
+            }
+        });
+        mThread.quitSafely();
+    }
+}
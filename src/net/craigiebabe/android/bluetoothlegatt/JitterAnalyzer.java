@@ -0,0 +1,133 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+/**
+ * Timing analysis of a stream of packets from their arrival timestamps: inter-arrival time
+ * distribution, jitter, bursts and the effective connection interval.
+ *
+ * Several notifications sent in one BLE connection event reach the app within a fraction of a
+ * millisecond of each other, so packets closer together than the burst gap are counted as one
+ * burst (one connection event), and the spacing between bursts shows the connection interval
+ * the link is actually running at. Jitter is the RFC 3550 estimator applied to successive
+ * inter-arrival times: a running mean of how much each one differs from the previous one.
+ */
+public class JitterAnalyzer {
+
+    /** Packets closer than this are taken to share a connection event (the shortest interval is 7.5 ms). */
+    public static final long DEFAULT_BURST_GAP_MICROS = 2000;
+    // Sparse traffic leaves idle connection events, making some gaps multiples of the interval,
+    // so the interval is estimated from the low end of the gap distribution.
+    private static final double CONNECTION_INTERVAL_PERCENTILE = 10;
+
+    private final long mBurstGapMicros;
+    private final LatencyHistogram mInterArrival = new LatencyHistogram();
+    private final LatencyHistogram mBurstGaps = new LatencyHistogram();
+    private long mCount;
+    private long mLastNanos;
+    private long mLastInterArrivalMicros = -1;
+    private double mJitterMicros;
+    private long mBurstStartNanos;
+    private int mBurstSize;
+    private long mBursts;
+    private int mMaxBurstSize;
+
+    public JitterAnalyzer() {
+        this(DEFAULT_BURST_GAP_MICROS);
+    }
+
+    public JitterAnalyzer(long burstGapMicros) {
+        mBurstGapMicros = burstGapMicros;
+    }
+
+    /**
+     * @param timestampNanos Arrival time, e.g. {@link BlunoPacket#getTimestampNanos()}. Timestamps
+     *                       must not go backwards.
+     */
+    public synchronized void record(long timestampNanos) {
+        mCount++;
+        if (mCount == 1) {
+            startBurst(timestampNanos);
+            mLastNanos = timestampNanos;
+            return;
+        }
+        long interArrivalMicros = Math.max(0, (timestampNanos - mLastNanos) / 1000);
+        mLastNanos = timestampNanos;
+        mInterArrival.record(interArrivalMicros);
+        if (mLastInterArrivalMicros >= 0)
+            mJitterMicros += (Math.abs(interArrivalMicros - mLastInterArrivalMicros) - mJitterMicros) / 16;
+        mLastInterArrivalMicros = interArrivalMicros;
+
+        if (interArrivalMicros < mBurstGapMicros) {
+            mBurstSize++;
+            mMaxBurstSize = Math.max(mMaxBurstSize, mBurstSize);
+        } else {
+            mBurstGaps.record((timestampNanos - mBurstStartNanos) / 1000);
+            startBurst(timestampNanos);
+        }
+    }
+
+    public synchronized void reset() {
+        mInterArrival.reset();
+        mBurstGaps.reset();
+        mCount = 0;
+        mLastInterArrivalMicros = -1;
+        mJitterMicros = 0;
+        mBursts = 0;
+        mBurstSize = 0;
+        mMaxBurstSize = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return Distribution of times between consecutive packets, in microseconds.
+     */
+    public LatencyHistogram getInterArrival() {
+        return mInterArrival;
+    }
+
+    public synchronized double getJitterMicros() {
+        return mJitterMicros;
+    }
+
+    /**
+     * @return Number of bursts (connection events with at least one packet).
+     */
+    public synchronized long getBurstCount() {
+        return mBursts;
+    }
+
+    public synchronized int getMaxBurstSize() {
+        return mMaxBurstSize;
+    }
+
+    public synchronized double getMeanBurstSize() {
+        return mBursts == 0 ? 0 : (double) mCount / mBursts;
+    }
+
+    /**
+     * @return Estimated connection interval in microseconds, or 0 before two bursts have been seen.
+     */
+    public long getEffectiveConnectionIntervalMicros() {
+        return mBurstGaps.getCount() == 0 ? 0 : mBurstGaps.getPercentile(CONNECTION_INTERVAL_PERCENTILE);
+    }
+
+    private void startBurst(long timestampNanos) {
+        mBursts++;
+        mBurstStartNanos = timestampNanos;
+        mBurstSize = 1;
+        mMaxBurstSize = Math.max(mMaxBurstSize, 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mCount < 2)
+            return mCount + " packets";
+        return String.format("%d packets, inter-arrival p50 %.1f ms p99 %.1f ms, jitter %.2f ms, "
+                        + "%d bursts (mean %.1f, max %d), connection interval ~%.1f ms",
+                mCount, mInterArrival.getPercentile(50) / 1000.0, mInterArrival.getPercentile(99) / 1000.0,
+                mJitterMicros / 1000.0, mBursts, getMeanBurstSize(), mMaxBurstSize,
+                getEffectiveConnectionIntervalMicros() / 1000.0);
+    }
+}
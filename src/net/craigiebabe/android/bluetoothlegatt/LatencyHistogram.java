@@ -0,0 +1,107 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size log-linear histogram of latencies in microseconds. Each power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, so any recorded value is reported within 12.5% of its
+ * true value while recording stays a constant-time, allocation-free array increment.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 64 * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    public synchronized void record(long micros) {
+        if (micros < 0)
+            micros = 0;
+        mCounts[indexOf(micros)]++;
+        mCount++;
+        mSum += micros;
+        if (micros < mMin)
+            mMin = micros;
+        if (micros > mMax)
+            mMax = micros;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * @param percentile 0..100
+     * @return Upper bound of the bucket holding the given percentile, clamped to the recorded maximum.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * mCount);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), mMax);
+        }
+        return mMax;
+    }
+
+    /**
+     * @return Non-empty buckets as "upperBoundMicros:count" pairs separated by spaces.
+     */
+    public synchronized String toBucketString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mCounts[i] == 0)
+                continue;
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(upperBoundOf(i)).append(':').append(mCounts[i]);
+        }
+        return sb.toString();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return (1L << magnitude) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,256 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Watches the health of a connection and backs off bulk traffic before the link collapses.
+ *
+ * While started, the RSSI is read through the {@link GattOperationQueue} every
+ * {@link #POLL_INTERVAL_MILLIS}, and the queue reports every write issued on the link when it
+ * completes; write failures and retries (reported by protocols that resend, see
+ * {@link #onRetry()}) are counted per interval. An interval without writes decays the rates
+ * toward zero. The smoothed RSSI, failure rate and retry rate are combined into a score from 0
+ * to 100, which maps to a {@link Quality}. A {@link Quality#FAIR} link has bulk operations
+ * spaced out and a {@link Quality#POOR} one has them held altogether, so what bandwidth is left
+ * goes to control and default priority traffic.
+ */
+public class LinkMonitor {
+    private final static String TAG = LinkMonitor.class.getSimpleName();
+
+    public enum Quality { GOOD, FAIR, POOR }
+
+    public interface Listener {
+        /**
+         * Called on the monitor's looper when the quality changes.
+         */
+        void onQualityChanged(Quality quality, int score);
+    }
+
+    public static final long POLL_INTERVAL_MILLIS = 1000;
+    /** Spacing of bulk operations while the link is only {@link Quality#FAIR}. */
+    public static final long FAIR_BULK_INTERVAL_MILLIS = 50;
+
+    // RSSI mapped linearly onto 0..1 between these.
+    private static final int RSSI_FLOOR = -95;
+    private static final int RSSI_CEILING = -60;
+    private static final double SMOOTHING = 0.3;
+    private static final int GOOD_SCORE = 70;
+    private static final int POOR_SCORE = 40;
+    // Scores must clear a threshold by this much to change quality, so it doesn't flap.
+    private static final int HYSTERESIS = 5;
+
+    private final GattOperationQueue mQueue;
+    private final Handler mHandler;
+    private Listener mListener;
+
+    // Guarded by this.
+    private boolean mStarted;
+    private boolean mRssiPending;
+    private double mRssi = Double.NaN;
+    private int mWrites;
+    private int mFailures;
+    private int mRetries;
+    private long mTotalWrites;
+    private long mTotalFailures;
+    private long mTotalRetries;
+    private double mFailureRate;
+    private double mRetryRate;
+    private int mScore = 100;
+    private Quality mQuality = Quality.GOOD;
+
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LinkMonitor.this) {
+                if (!mStarted)
+                    return;
+                update();
+                if (mRssiPending)
+                    return; // still waiting for the last one; the link may be struggling
+                mRssiPending = true;
+            }
+            mQueue.enqueue(GattOperation.readRemoteRssi(new GattOperation.Callback() {
+                @Override
+                public void onComplete(GattOperation operation, int status) {
+                    synchronized (LinkMonitor.this) {
+                        mRssiPending = false;
+                    }
+                }
+            }));
+        }
+    };
+
+    public LinkMonitor(GattOperationQueue queue, Looper looper) {
+        mQueue = queue;
+        mHandler = new Handler(looper);
+        queue.setObserver(new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                // Writes the queue failed without issuing (e.g. dropped while bulk is held) say
+                // nothing about the link.
+                if (operation.getType() == GattOperation.TYPE_WRITE && operation.getIssuedRealtimeNanos() != 0)
+                    onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts polling, with the link assumed good until shown otherwise. Call it on connect.
+     */
+    public void start() {
+        synchronized (this) {
+            mStarted = true;
+            mRssiPending = false;
+            mRssi = Double.NaN;
+            mWrites = mFailures = mRetries = 0;
+            mTotalWrites = mTotalFailures = mTotalRetries = 0;
+            mFailureRate = mRetryRate = 0;
+        }
+        setQuality(Quality.GOOD, 100);
+        mHandler.removeCallbacks(mPoll);
+        mHandler.post(mPoll);
+    }
+
+    /**
+     * Stops polling. Call it on disconnect.
+     */
+    public void stop() {
+        synchronized (this) {
+            mStarted = false;
+        }
+        mHandler.removeCallbacks(mPoll);
+        mQueue.setBulkInterval(0);
+    }
+
+    /**
+     * Called from {@code BluetoothGattCallback#onReadRemoteRssi}.
+     */
+    public synchronized void onRssi(int rssi, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS)
+            return;
+        mRssi = Double.isNaN(mRssi) ? rssi : mRssi + SMOOTHING * (rssi - mRssi);
+    }
+
+    public synchronized void onWriteComplete(boolean success) {
+        mWrites++;
+        mTotalWrites++;
+        if (!success) {
+            mFailures++;
+            mTotalFailures++;
+        }
+    }
+
+    /**
+     * Counts a write that had to be repeated because an earlier attempt was lost.
+     */
+    public synchronized void onRetry() {
+        mRetries++;
+        mTotalRetries++;
+    }
+
+    public synchronized int getScore() {
+        return mScore;
+    }
+
+    public synchronized Quality getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return Smoothed RSSI in dBm, or NaN before the first reading.
+     */
+    public synchronized double getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * @return Smoothed fraction of writes that failed.
+     */
+    public synchronized double getFailureRate() {
+        return mFailureRate;
+    }
+
+    /**
+     * @return Smoothed retries per write.
+     */
+    public synchronized double getRetryRate() {
+        return mRetryRate;
+    }
+
+    // Folds the interval just ended into the smoothed figures and rescores. Caller holds the lock.
+    private void update() {
+        if (mWrites > 0) {
+            mFailureRate += SMOOTHING * ((double) mFailures / mWrites - mFailureRate);
+            mRetryRate += SMOOTHING * ((double) mRetries / mWrites - mRetryRate);
+        } else {
+            // Nothing was written, e.g. because a poor link has bulk held: let the rates decay
+            // so the link can recover to where bulk writes are let through and measured again.
+            mFailureRate -= SMOOTHING * mFailureRate;
+            mRetryRate -= SMOOTHING * mRetryRate;
+        }
+        mWrites = mFailures = mRetries = 0;
+
+        double signal = Double.isNaN(mRssi) ? 1
+                : Math.max(0, Math.min(1, (mRssi - RSSI_FLOOR) / (RSSI_CEILING - RSSI_FLOOR)));
+        int score = (int) Math.round(100 * signal * (1 - mFailureRate) * (1 - 0.5 * Math.min(1, mRetryRate)));
+
+        Quality quality = mQuality;
+        if (score >= GOOD_SCORE + (quality == Quality.GOOD ? -HYSTERESIS : HYSTERESIS))
+            quality = Quality.GOOD;
+        else if (score < POOR_SCORE + (quality == Quality.POOR ? HYSTERESIS : -HYSTERESIS))
+            quality = Quality.POOR;
+        else
+            quality = Quality.FAIR;
+        mScore = score;
+        if (quality != mQuality) {
+            final Quality changed = quality;
+            final int changedScore = score;
+            // Outside the lock: applying it calls into the queue and the listener.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    setQuality(changed, changedScore);
+                }
+            });
+        }
+        mHandler.postDelayed(mPoll, POLL_INTERVAL_MILLIS);
+    }
+
+    private void setQuality(Quality quality, int score) {
+        Listener listener;
+        synchronized (this) {
+            if (!mStarted)
+                return; // stopped since the change was posted
+            mQuality = quality;
+            listener = mListener;
+        }
+        Log.i(TAG, "setQuality(): link " + quality + " (" + score + ")");
+        switch (quality) {
+            case GOOD:
+                mQueue.setBulkInterval(0);
+                break;
+            case FAIR:
+                mQueue.setBulkInterval(FAIR_BULK_INTERVAL_MILLIS);
+                break;
+            case POOR:
+                mQueue.setBulkInterval(GattOperationQueue.BULK_HELD);
+                break;
+        }
+        if (listener != null)
+            listener.onQualityChanged(quality, score);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("link %s (%d): rssi %.0f dBm, write failures %.1f%%, retries %.2f/write; "
+                        + "%d writes, %d failed, %d retried",
+                mQuality, mScore, mRssi, 100 * mFailureRate, mRetryRate, mTotalWrites, mTotalFailures, mTotalRetries);
+    }
+}
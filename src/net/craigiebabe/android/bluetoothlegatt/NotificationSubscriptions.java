@@ -0,0 +1,199 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reference-counted notification subscriptions, keeping each characteristic's Client
+ * Characteristic Configuration descriptor (CCCD) in step with whether anyone is subscribed.
+ *
+ * The first subscriber to a characteristic enables notifications (or indications, if that is all
+ * the characteristic supports) and the last one to leave disables them; subscribing when already
+ * enabled, or unsubscribing while others remain, writes nothing. CCCD writes go through the
+ * {@link GattOperationQueue}. Subscriptions are kept by service and characteristic UUID across
+ * disconnects, and when services are rediscovered every one still held is re-enabled in a single
+ * batch of queued writes.
+ */
+public class NotificationSubscriptions {
+    private final static String TAG = NotificationSubscriptions.class.getSimpleName();
+
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString(BlunoGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    private class Subscription implements GattOperation.Callback {
+        final UUID mService;
+        final UUID mCharacteristicUuid;
+        BluetoothGattCharacteristic mCharacteristic; // null while disconnected
+        int mSubscribers;
+        boolean mEnabled; // as last written to the device
+        boolean mWriting;
+
+        Subscription(UUID service, UUID characteristic) {
+            mService = service;
+            mCharacteristicUuid = characteristic;
+        }
+
+        // Called on the queue's callback thread once the CCCD write finishes.
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            List<GattOperation> writes = new ArrayList<GattOperation>(1);
+            synchronized (NotificationSubscriptions.this) {
+                if (operation.getCharacteristic() != mCharacteristic)
+                    return; // written before a disconnect
+                mWriting = false;
+                if (status == BluetoothGatt.GATT_SUCCESS)
+                    mEnabled = !mEnabled;
+                else
+                    Log.w(TAG, "Subscription.onComplete(): CCCD write failed for " + mCharacteristicUuid + ": " + status);
+                // Subscribers may have come or gone while the write was in flight.
+                if (status == BluetoothGatt.GATT_SUCCESS)
+                    sync(this, writes);
+            }
+            enqueue(writes);
+        }
+    }
+
+    private final GattOperationQueue mQueue;
+    private final Map<String, Subscription> mSubscriptions = new HashMap<String, Subscription>();
+    private BluetoothGatt mGatt;
+    private int mWritesSkipped;
+
+    public NotificationSubscriptions(GattOperationQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Adds a subscriber to a characteristic, enabling notifications if it is the first.
+     */
+    public void subscribe(BluetoothGattCharacteristic characteristic) {
+        List<GattOperation> writes = new ArrayList<GattOperation>(1);
+        synchronized (this) {
+            Subscription subscription = get(characteristic, true);
+            subscription.mCharacteristic = mGatt == null ? null : characteristic;
+            subscription.mSubscribers++;
+            sync(subscription, writes);
+            if (writes.isEmpty())
+                mWritesSkipped++;
+        }
+        enqueue(writes);
+    }
+
+    /**
+     * Removes a subscriber from a characteristic, disabling notifications if it was the last.
+     */
+    public void unsubscribe(BluetoothGattCharacteristic characteristic) {
+        List<GattOperation> writes = new ArrayList<GattOperation>(1);
+        synchronized (this) {
+            Subscription subscription = get(characteristic, false);
+            if (subscription == null || subscription.mSubscribers == 0) {
+                Log.w(TAG, "unsubscribe(): not subscribed to " + characteristic.getUuid());
+                return;
+            }
+            subscription.mSubscribers--;
+            sync(subscription, writes);
+            if (writes.isEmpty())
+                mWritesSkipped++;
+            if (subscription.mSubscribers == 0 && !subscription.mEnabled && !subscription.mWriting)
+                mSubscriptions.remove(key(subscription.mService, subscription.mCharacteristicUuid));
+        }
+        enqueue(writes);
+    }
+
+    /**
+     * @return The number of subscribers to the characteristic.
+     */
+    public synchronized int getSubscriberCount(BluetoothGattCharacteristic characteristic) {
+        Subscription subscription = get(characteristic, false);
+        return subscription == null ? 0 : subscription.mSubscribers;
+    }
+
+    /**
+     * @return How many subscribe and unsubscribe calls needed no immediate CCCD write.
+     */
+    public synchronized int getWritesSkipped() {
+        return mWritesSkipped;
+    }
+
+    /**
+     * Sets the connection whose services have just been discovered, restoring every subscription
+     * on it, or null on disconnect.
+     */
+    public void setGatt(BluetoothGatt gatt) {
+        List<GattOperation> writes = new ArrayList<GattOperation>();
+        synchronized (this) {
+            mGatt = gatt;
+            for (Subscription subscription : new ArrayList<Subscription>(mSubscriptions.values())) {
+                // The device forgets its CCCDs on disconnect (unless bonded, which the Bluno isn't).
+                subscription.mEnabled = false;
+                subscription.mWriting = false;
+                subscription.mCharacteristic = gatt == null ? null : find(gatt, subscription);
+                if (subscription.mSubscribers == 0)
+                    mSubscriptions.remove(key(subscription.mService, subscription.mCharacteristicUuid));
+                else if (subscription.mCharacteristic != null)
+                    sync(subscription, writes);
+            }
+        }
+        if (!writes.isEmpty())
+            Log.i(TAG, "setGatt(): restoring " + writes.size() + " subscriptions");
+        enqueue(writes);
+    }
+
+    // Brings the device in line with the subscriber count. Caller holds the lock.
+    private void sync(Subscription subscription, List<GattOperation> writes) {
+        boolean wanted = subscription.mSubscribers > 0;
+        if (subscription.mWriting || subscription.mCharacteristic == null)
+            return;
+        if (wanted == subscription.mEnabled)
+            return;
+        BluetoothGattCharacteristic characteristic = subscription.mCharacteristic;
+        mGatt.setCharacteristicNotification(characteristic, wanted);
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        if (descriptor == null) {
+            // Nothing to write; the device decides whether to notify.
+            subscription.mEnabled = wanted;
+            return;
+        }
+        byte[] value;
+        if (!wanted)
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0)
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        else
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        subscription.mWriting = true;
+        writes.add(GattOperation.writeDescriptor(descriptor, value, subscription));
+    }
+
+    private void enqueue(List<GattOperation> writes) {
+        for (GattOperation write : writes)
+            mQueue.enqueue(write);
+    }
+
+    private Subscription get(BluetoothGattCharacteristic characteristic, boolean create) {
+        UUID service = characteristic.getService().getUuid();
+        String key = key(service, characteristic.getUuid());
+        Subscription subscription = mSubscriptions.get(key);
+        if (subscription == null && create) {
+            subscription = new Subscription(service, characteristic.getUuid());
+            mSubscriptions.put(key, subscription);
+        }
+        return subscription;
+    }
+
+    private static BluetoothGattCharacteristic find(BluetoothGatt gatt, Subscription subscription) {
+        BluetoothGattService service = gatt.getService(subscription.mService);
+        return service == null ? null : service.getCharacteristic(subscription.mCharacteristicUuid);
+    }
+
+    private static String key(UUID service, UUID characteristic) {
+        return service + "/" + characteristic;
+    }
+}
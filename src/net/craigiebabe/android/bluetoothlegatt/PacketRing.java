@@ -0,0 +1,111 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer, single-consumer ring of raw characteristic values, the hand-off
+ * from the GATT callback to {@link InboundPipeline}.
+ *
+ * Slots and their value buffers are allocated up front and reused, so {@link #offer} does no
+ * more than copy the value and publish the slot: no locks, no allocation (unless a value is
+ * longer than any seen before) and it never blocks. When the ring is full the value is dropped
+ * and counted. The producer and consumer each own one index and only read the other's, which is
+ * published with an ordered write once the slot it covers is ready.
+ */
+class PacketRing {
+
+    // Enough for a typical 20 byte notification; buffers grow for longer values.
+    private static final int INITIAL_SLOT_SIZE = 20;
+
+    static final class Slot {
+        BluetoothGattCharacteristic mCharacteristic;
+        byte[] mValue = new byte[INITIAL_SLOT_SIZE];
+        int mLength;
+        long mTimestampNanos;
+        boolean mNotification;
+        boolean mDisplay;
+    }
+
+    private final Slot[] mSlots;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong(); // next slot to consume; written by the consumer
+    private final AtomicLong mTail = new AtomicLong(); // next slot to fill; written by the producer
+    private volatile long mDropped;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two.
+     */
+    PacketRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            mSlots[i] = new Slot();
+        mMask = size - 1;
+    }
+
+    /**
+     * Copies a value into the ring. Producer thread only.
+     *
+     * @param notification Whether the value was notified, rather than read.
+     * @param display Whether the value should also be shown to the user.
+     * @return false if the ring was full and the value was dropped.
+     */
+    boolean offer(BluetoothGattCharacteristic characteristic, byte[] value, long timestampNanos,
+                  boolean notification, boolean display) {
+        long tail = mTail.get();
+        if (tail - mHead.get() == mSlots.length) {
+            mDropped++; // only the producer writes it
+            return false;
+        }
+        Slot slot = mSlots[(int) tail & mMask];
+        int length = value == null ? 0 : value.length;
+        if (slot.mValue.length < length)
+            slot.mValue = new byte[length];
+        if (length > 0)
+            System.arraycopy(value, 0, slot.mValue, 0, length);
+        slot.mLength = length;
+        slot.mCharacteristic = characteristic;
+        slot.mTimestampNanos = timestampNanos;
+        slot.mNotification = notification;
+        slot.mDisplay = display;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * @return The oldest filled slot, or null if the ring is empty. Consumer thread only; the slot
+     *         stays valid until {@link #release()}.
+     */
+    Slot peek() {
+        long head = mHead.get();
+        if (head == mTail.get())
+            return null;
+        return mSlots[(int) head & mMask];
+    }
+
+    /**
+     * Hands the slot returned by {@link #peek()} back to the producer. Consumer thread only.
+     */
+    void release() {
+        long head = mHead.get();
+        mSlots[(int) head & mMask].mCharacteristic = null;
+        mHead.lazySet(head + 1);
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return Number of values dropped because the ring was full.
+     */
+    long getDroppedCount() {
+        return mDropped;
+    }
+}
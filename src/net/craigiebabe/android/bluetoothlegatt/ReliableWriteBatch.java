@@ -0,0 +1,151 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several characteristic writes applied as one transaction: either the device commits them all
+ * or none.
+ *
+ * The batch runs as a single {@link GattOperation}, so nothing else on the connection can slip
+ * in between its writes. It opens a reliable write with {@code beginReliableWrite()}; each
+ * write is queued on the device as a prepared write, and none is applied until
+ * {@code executeReliableWrite()} commits them together once every write has succeeded. Any
+ * failed write aborts the transaction.
+ *
+ * The device echoes each prepared write back, but Android neither passes the echo to the app
+ * nor compares it with what was sent, so the echo is not verified: a value damaged on its way
+ * to the device is committed as the device received it. The transaction protects against a
+ * link dropped part way through, not against corruption; callers that need that can read the
+ * values back once the batch has completed.
+ *
+ * The writes go out as {@code WRITE_TYPE_DEFAULT}, as prepared writes must; each
+ * characteristic's own write type is put back once the batch is over. A prepared write carries
+ * at most {@link #MAX_VALUE_LENGTH} bytes, so longer values must be added in pieces.
+ */
+public class ReliableWriteBatch extends GattOperation {
+    private final static String TAG = ReliableWriteBatch.class.getSimpleName();
+
+    /** Longest value a prepared write carries on a connection with the default MTU. */
+    public static final int MAX_VALUE_LENGTH = 18;
+
+    private final List<BluetoothGattCharacteristic> mCharacteristics = new ArrayList<BluetoothGattCharacteristic>();
+    private final List<byte[]> mValues = new ArrayList<byte[]>();
+    private int mNext; // index of the next write to issue
+    private int mFailedIndex = -1;
+    private int[] mWriteTypes; // of each characteristic before the batch, while it runs
+
+    /**
+     * @param callback Told once the transaction has been committed or abandoned.
+     */
+    public ReliableWriteBatch(Callback callback) {
+        super(TYPE_RELIABLE_WRITE, null, callback);
+    }
+
+    /**
+     * Adds a write to the batch. Must not be called once the batch has been enqueued.
+     *
+     * @param value At most {@link #MAX_VALUE_LENGTH} bytes.
+     * @return This batch.
+     */
+    public ReliableWriteBatch add(BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (value.length > MAX_VALUE_LENGTH)
+            throw new IllegalArgumentException("Value of " + value.length + " bytes is too long for a prepared write");
+        mCharacteristics.add(characteristic);
+        mValues.add(value.clone());
+        return this;
+    }
+
+    public int size() {
+        return mCharacteristics.size();
+    }
+
+    /**
+     * @return Index of the write which failed, or -1.
+     */
+    public int getFailedIndex() {
+        return mFailedIndex;
+    }
+
+    @Override
+    boolean execute(BluetoothGatt gatt) {
+        if (mCharacteristics.isEmpty() || !gatt.beginReliableWrite())
+            return false;
+        mWriteTypes = new int[mCharacteristics.size()];
+        for (int i = 0; i < mWriteTypes.length; i++)
+            mWriteTypes[i] = mCharacteristics.get(i).getWriteType();
+        mNext = 0;
+        if (writeNext(gatt))
+            return true;
+        gatt.abortReliableWrite();
+        return false;
+    }
+
+    @Override
+    boolean matches(int type, BluetoothGattCharacteristic characteristic) {
+        if (type == TYPE_RELIABLE_WRITE)
+            return true;
+        // Only the write in flight, which is the last one issued.
+        return type == TYPE_WRITE && mNext > 0 && characteristic != null
+                && mCharacteristics.get(mNext - 1).getUuid().equals(characteristic.getUuid());
+    }
+
+    @Override
+    int advance(BluetoothGatt gatt, int type, BluetoothGattCharacteristic characteristic, int status) {
+        if (type == TYPE_RELIABLE_WRITE)
+            return status;
+
+        int index = mNext - 1;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "advance(): write " + index + " to " + characteristic.getUuid() + " failed: " + status);
+            return fail(gatt, index, status);
+        }
+        if (mNext < mCharacteristics.size()) {
+            if (writeNext(gatt))
+                return STEP_PENDING;
+            return fail(gatt, mNext - 1, BluetoothGatt.GATT_FAILURE);
+        }
+        if (gatt.executeReliableWrite())
+            return STEP_PENDING;
+        return fail(gatt, -1, BluetoothGatt.GATT_FAILURE);
+    }
+
+    @Override
+    void abort(BluetoothGatt gatt) {
+        gatt.abortReliableWrite();
+    }
+
+    @Override
+    void complete(int status) {
+        if (mWriteTypes != null) {
+            // Backwards, so a characteristic written twice gets the type it had before the first.
+            for (int i = mWriteTypes.length - 1; i >= 0; i--)
+                mCharacteristics.get(i).setWriteType(mWriteTypes[i]);
+            mWriteTypes = null;
+        }
+        super.complete(status);
+    }
+
+    private boolean writeNext(BluetoothGatt gatt) {
+        BluetoothGattCharacteristic characteristic = mCharacteristics.get(mNext);
+        characteristic.setValue(mValues.get(mNext));
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        mNext++;
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    private int fail(BluetoothGatt gatt, int index, int status) {
+        mFailedIndex = index;
+        gatt.abortReliableWrite();
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return "reliable write of " + mCharacteristics.size() + " values";
+    }
+}
@@ -0,0 +1,49 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+/**
+ * A byte pipe to the Arduino behind a Bluno's serial port characteristic. Implemented on top of
+ * {@link BluetoothLeService} for real devices and by {@link SimulatedBlunoLink} for running
+ * without hardware.
+ */
+public interface SerialLink {
+
+    interface Listener {
+        /**
+         * Called for every chunk of bytes received from the Arduino. The UART bridge re-chunks
+         * data, so chunk boundaries need not match the sender's writes.
+         */
+        void onReceive(byte[] data);
+    }
+
+    interface SendCallback {
+        void onSendComplete(boolean success);
+    }
+
+    /**
+     * Largest payload that fits a single write with the default ATT MTU.
+     */
+    int MAX_PAYLOAD_SIZE = 20;
+
+    void setListener(Listener listener);
+
+    /**
+     * Queues a write.
+     *
+     * @param data At most {@link #MAX_PAYLOAD_SIZE} bytes.
+     * @param writeType One of the {@code BluetoothGattCharacteristic.WRITE_TYPE_*} constants.
+     * @param callback Notified once the stack has completed the write. May be null.
+     * @return false if the link is not usable.
+     */
+    boolean send(byte[] data, int writeType, SendCallback callback);
+
+    /**
+     * @param priority One of the {@code BluetoothGatt.CONNECTION_PRIORITY_*} constants.
+     * @return false if the request could not be made.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * Stops delivering received data; the link must not be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,314 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures every packet from a {@link BlunoDataPublisher} to a file, in constant memory however
+ * long the session runs.
+ *
+ * Packets are appended to a {@link CaptureChunk} on the publisher's delivery thread; full chunks
+ * (or ones older than {@link #FLUSH_INTERVAL_MILLIS}, checked on a timer as well so a stream that
+ * goes quiet is still written out) are handed to a background writer while the next packets go
+ * into a spare chunk. Only two chunks exist, and packets are only requested from
+ * the publisher while there is room for them, so a slow disk pushes back on the publisher's
+ * buffer rather than on memory.
+ *
+ * Records are timestamped with the time each packet arrived in the GATT callback, not when it
+ * reached the recorder. Marks are held back until the recorder has seen the packets that arrived
+ * before them, so they are filed in time order; they take no part in the requests to the
+ * publisher, and a chunk holds its {@link #RECORDS_PER_CHUNK} packets plus any marks among them.
+ *
+ * File layout: {@code magic, version, start time (ms since the epoch)}, then chunks; see
+ * {@link CaptureExporter} for reading it back.
+ */
+public class SessionRecorder implements Subscriber<BlunoPacket> {
+    private final static String TAG = SessionRecorder.class.getSimpleName();
+
+    static final int FILE_MAGIC = 0x42434150; // "BCAP"
+    static final int FILE_VERSION = 1;
+
+    /** Characteristic that {@link #mark} records appear under in the capture. */
+    public static final UUID MARK_UUID = UUID.fromString("6d61726b-0000-1000-8000-00805f9b34fb");
+
+    public static final int RECORDS_PER_CHUNK = 4096;
+    // Marks waiting for later packets beyond this many are dropped.
+    private static final int MAX_PENDING_MARKS = 256;
+    public static final long FLUSH_INTERVAL_MILLIS = 2000;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final DataOutputStream mOut;
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor();
+    // Converts packet timestamps (elapsed realtime) to wall clock time, fixed at the start so
+    // wall clock changes during the session don't reorder records.
+    private final long mRealtimeToWallMicros = System.currentTimeMillis() * 1000 - SystemClock.elapsedRealtimeNanos() / 1000;
+
+    // Guarded by this.
+    private CaptureChunk mCurrent = new CaptureChunk();
+    private CaptureChunk mSpare = new CaptureChunk();
+    private int mConsumed; // packets received since the last request() that freed their room
+    private int mChunkPackets; // packets, not marks, in the current chunk
+    private final ArrayDeque<Mark> mPendingMarks = new ArrayDeque<Mark>();
+    private long mChunkStartNanos;
+    private Subscription mSubscription;
+    private boolean mStopped;
+
+    private static class Mark {
+        final long mMicros;
+        final byte[] mValue;
+
+        Mark(long micros, byte[] value) {
+            mMicros = micros;
+            mValue = value;
+        }
+    }
+
+    // Hands the current chunk to the writer once it is old enough, if the stream has gone quiet
+    // since its last packet. Runs on the writer thread.
+    private final Runnable mFlushTimer = new Runnable() {
+        @Override
+        public void run() {
+            long nanos = System.nanoTime();
+            CaptureChunk full;
+            int request;
+            synchronized (SessionRecorder.this) {
+                if (mStopped || mCurrent == null || mCurrent.getCount() == 0 || mSpare == null
+                        || nanos - mChunkStartNanos < TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS))
+                    return;
+                full = mCurrent;
+                mCurrent = mSpare;
+                mSpare = null;
+                mChunkPackets = 0;
+                request = mConsumed;
+                mConsumed = 0;
+            }
+            new ChunkWriter(full).run();
+            if (request > 0)
+                mSubscription.request(request);
+        }
+    };
+
+    private volatile IOException mError;
+    private volatile long mRecords;
+    private volatile long mBytes;
+
+    public SessionRecorder(File file) throws IOException {
+        mFile = file;
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), WRITE_BUFFER_SIZE));
+        mOut.writeInt(FILE_MAGIC);
+        mOut.writeInt(FILE_VERSION);
+        mOut.writeLong(System.currentTimeMillis());
+        mWriter.scheduleWithFixedDelay(mFlushTimer, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts capturing every characteristic the publisher delivers.
+     */
+    public void start(BlunoDataPublisher publisher) {
+        publisher.subscribe(this, null, BlunoDataPublisher.OverflowPolicy.BUFFER, RECORDS_PER_CHUNK);
+    }
+
+    /**
+     * Stops capturing, writes out what has been captured and closes the file. Blocks until done.
+     *
+     * @throws IOException If any write failed.
+     */
+    public void stop() throws IOException {
+        Subscription subscription;
+        CaptureChunk last;
+        synchronized (this) {
+            if (mStopped)
+                return;
+            mStopped = true;
+            subscription = mSubscription;
+            last = mCurrent;
+            mCurrent = null;
+            if (!mPendingMarks.isEmpty()) {
+                if (last == null)
+                    last = new CaptureChunk(); // both chunks are still with the writer
+                appendMarks(last, Long.MAX_VALUE);
+            }
+        }
+        if (subscription != null)
+            subscription.cancel();
+        if (last != null && last.getCount() > 0)
+            mWriter.execute(new ChunkWriter(last));
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "stop(): captured " + mRecords + " packets, " + mBytes + " bytes to " + mFile);
+        if (mError != null)
+            throw mError;
+    }
+
+    /**
+     * Records a marker, e.g. that a trigger fired, as a packet on {@link #MARK_UUID} whose value
+     * is the label, so it appears in place among the captured packets and in their export. It is
+     * filed just before the first packet captured at or after its time.
+     *
+     * @param timestampNanos When, in {@code SystemClock.elapsedRealtimeNanos()} time, e.g. the
+     *                       arrival of the packet that fired a trigger.
+     */
+    public void mark(String label, long timestampNanos) {
+        byte[] value = label.getBytes();
+        synchronized (this) {
+            if (mStopped || mPendingMarks.size() >= MAX_PENDING_MARKS) {
+                Log.w(TAG, "mark(): not capturing, or too many marks pending, dropping mark " + label);
+                return;
+            }
+            mPendingMarks.add(new Mark(mRealtimeToWallMicros + timestampNanos / 1000, value));
+        }
+    }
+
+    // Files the pending marks up to the given time. Caller holds the lock.
+    private void appendMarks(CaptureChunk chunk, long beforeMicros) {
+        while (!mPendingMarks.isEmpty() && mPendingMarks.peek().mMicros <= beforeMicros) {
+            Mark mark = mPendingMarks.poll();
+            if (chunk.append(mark.mMicros, MARK_UUID, mark.mValue, 0, mark.mValue.length)) {
+                mRecords++;
+                mBytes += mark.mValue.length;
+            } else {
+                Log.w(TAG, "appendMarks(): too many characteristics, dropping mark");
+            }
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getRecordCount() {
+        return mRecords;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        synchronized (this) {
+            mSubscription = subscription;
+        }
+        subscription.request(RECORDS_PER_CHUNK);
+    }
+
+    @Override
+    public void onNext(BlunoPacket packet) {
+        long nanos = System.nanoTime();
+        CaptureChunk full = null;
+        int request = 0;
+        synchronized (this) {
+            if (mStopped)
+                return;
+            if (mCurrent.getCount() == 0)
+                mChunkStartNanos = nanos;
+            byte[] value = packet.getValue();
+            long micros = mRealtimeToWallMicros + packet.getTimestampNanos() / 1000;
+            appendMarks(mCurrent, micros);
+            if (mCurrent.append(micros, packet.getCharacteristicUuid(), value, 0, value.length)) {
+                mRecords++;
+                mBytes += value.length;
+            } else {
+                Log.w(TAG, "onNext(): too many characteristics, dropping " + packet);
+            }
+            mChunkPackets++;
+            mConsumed++;
+            // Requests never exceed the room left for packets in the current chunk, so once it
+            // holds a chunk's worth nothing more arrives until a chunk is free again; a chunk is
+            // only flushed early if the spare is free.
+            if (mChunkPackets >= RECORDS_PER_CHUNK || (mSpare != null
+                    && nanos - mChunkStartNanos >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS))) {
+                full = mCurrent;
+                mCurrent = mSpare;
+                mSpare = null;
+                mChunkPackets = 0;
+                if (mCurrent != null) {
+                    request = mConsumed;
+                    mConsumed = 0;
+                }
+            }
+        }
+        if (full != null)
+            mWriter.execute(new ChunkWriter(full));
+        if (request > 0)
+            mSubscription.request(request);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        Log.e(TAG, "onError(): capture ended", t);
+    }
+
+    @Override
+    public void onComplete() {
+        Log.i(TAG, "onComplete(): publisher completed");
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "fail(): capture to " + mFile + " failed", e);
+        if (mError == null)
+            mError = e;
+    }
+
+    // Writes a chunk on the writer thread, then hands it back for reuse.
+    private class ChunkWriter implements Runnable {
+        private final CaptureChunk mChunk;
+
+        ChunkWriter(CaptureChunk chunk) {
+            mChunk = chunk;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mError == null) {
+                    mChunk.write(mOut);
+                    mOut.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            mChunk.clear();
+            int request = 0;
+            synchronized (SessionRecorder.this) {
+                if (mStopped)
+                    return;
+                if (mCurrent == null) {
+                    // The delivery side was waiting for room.
+                    mCurrent = mChunk;
+                    request = mConsumed;
+                    mConsumed = 0;
+                } else {
+                    mSpare = mChunk;
+                }
+            }
+            if (request > 0)
+                mSubscription.request(request);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.os.Build;
+import android.os.MemoryFile;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Received packets in a ring buffer in shared memory (ashmem), so that other processes can read
+ * the stream at full rate without a Binder transaction or copy per packet. The service writes it
+ * and hands out descriptors of it through {@link IBlunoFeed}; each reader maps it and keeps its
+ * own position with a {@link Reader}. From API 27 the memory is a {@code SharedMemory} protected
+ * to read-only once the service has mapped it, so readers can't map it writable. Before that it
+ * is a {@link MemoryFile}, whose descriptor can't be restricted from Java: readers are trusted not
+ * to write, as the feed permission already trusts them with the connection.
+ *
+ * Layout, big-endian: a {@link #HEADER_SIZE} byte header of {@code int} magic, version, slot count
+ * and slot size, then the {@code long} count of packets written; then the slots, each a
+ * {@code long} stamp, {@code long} timestamp, UUID as two {@code long}s, {@code short} length,
+ * {@code int} CRC32 and the value. Packet n goes in slot n % slot count. The writer sets the
+ * slot's stamp to -1 before changing it and to n once done, then publishes the count n + 1.
+ *
+ * Nothing orders these accesses between processes: Java offers no barrier for shared memory on
+ * the API levels supported, so a reader may see the count before the slot, or the slot half
+ * written. The CRC, taken over n and the rest of the slot, catches both. A reader whose slot
+ * doesn't yet hold an intact packet n tries again later; one that finds a later packet there has
+ * been lapped.
+ */
+public class SharedPacketRing {
+    private final static String TAG = SharedPacketRing.class.getSimpleName();
+
+    public static final int MAGIC = 0x426c6e6f; // "Blno"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 64;
+    public static final int SLOT_SIZE = 64;
+    /** 512 KB of packets, a few seconds' worth at the fastest connection interval. */
+    public static final int DEFAULT_SLOT_COUNT = 8192;
+
+    private static final int WRITTEN_OFFSET = 16;
+    private static final int LENGTH_OFFSET = 32;
+    private static final int CRC_OFFSET = 34;
+    private static final int SLOT_HEADER_SIZE = 38;
+    /**
+     * Longest value stored whole. Only a raised MTU allows longer ones; they are truncated, with
+     * the length recording the original.
+     */
+    public static final int MAX_VALUE_LENGTH = SLOT_SIZE - SLOT_HEADER_SIZE;
+    private static final long STAMP_BUSY = -1;
+    // SharedMemory and read-only protection arrived in API 27 (Build.VERSION_CODES.O_MR1).
+    private static final int SHARED_MEMORY_SDK = 27;
+
+    private final MemoryFile mMemory; // before API 27
+    private final Object mSharedMemory; // android.os.SharedMemory from API 27
+    private final ByteBuffer mMapping; // the service's read-write mapping of mSharedMemory
+    private final int mSlotCount;
+    // Staging for the writer, so each step is one write into the shared memory.
+    private final byte[] mSlot = new byte[SLOT_SIZE];
+    private final ByteBuffer mLong = ByteBuffer.allocate(8);
+    private final CRC32 mCrc = new CRC32();
+    private long mWritten;
+
+    public SharedPacketRing(int slotCount) throws IOException {
+        mSlotCount = slotCount;
+        int size = HEADER_SIZE + slotCount * SLOT_SIZE;
+        if (Build.VERSION.SDK_INT >= SHARED_MEMORY_SDK) {
+            Class<?> sharedMemoryClass;
+            try {
+                sharedMemoryClass = Class.forName("android.os.SharedMemory");
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unable to create " + TAG, e);
+            }
+            mMemory = null;
+            mSharedMemory = call(sharedMemoryClass, null, "create", new Class<?>[] { String.class, int.class }, TAG, size);
+            mMapping = (ByteBuffer) call(sharedMemoryClass, mSharedMemory, "mapReadWrite", new Class<?>[0]);
+            // Only mappings made from now on, i.e. readers', are restricted.
+            call(sharedMemoryClass, mSharedMemory, "setProtect", new Class<?>[] { int.class }, OsConstants.PROT_READ);
+        } else {
+            mMemory = new MemoryFile(TAG, size);
+            mSharedMemory = null;
+            mMapping = null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(slotCount).putInt(SLOT_SIZE).putLong(0);
+        put(0, header.array(), HEADER_SIZE);
+    }
+
+    // Reflection, as the app is built against an SDK that predates SharedMemory.
+    private static Object call(Class<?> cls, Object target, String name, Class<?>[] types, Object... args) throws IOException {
+        try {
+            return cls.getMethod(name, types).invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw new IOException("SharedMemory." + name + "() failed", e.getCause());
+        } catch (Exception e) {
+            throw new IOException("Unable to call SharedMemory." + name + "()", e);
+        }
+    }
+
+    /**
+     * Appends a packet, overwriting the oldest once the ring is full. Must only be called from
+     * one thread.
+     */
+    public void write(BlunoPacket packet) throws IOException {
+        long n = mWritten;
+        int offset = HEADER_SIZE + (int) (n % mSlotCount) * SLOT_SIZE;
+        byte[] value = packet.getValue();
+        UUID uuid = packet.getCharacteristicUuid();
+        int length = Math.min(value.length, MAX_VALUE_LENGTH);
+        ByteBuffer slot = ByteBuffer.wrap(mSlot);
+        slot.putLong(n);
+        slot.putLong(packet.getTimestampNanos());
+        slot.putLong(uuid == null ? 0 : uuid.getMostSignificantBits());
+        slot.putLong(uuid == null ? 0 : uuid.getLeastSignificantBits());
+        slot.putShort((short) value.length);
+        slot.putInt(0);
+        slot.put(value, 0, length);
+        slot.putInt(CRC_OFFSET, crc(mCrc, mSlot, SLOT_HEADER_SIZE + length));
+
+        writeLong(offset, STAMP_BUSY);
+        put(offset + 8, mSlot, 8, SLOT_HEADER_SIZE + length - 8);
+        writeLong(offset, n);
+        writeLong(WRITTEN_OFFSET, n + 1);
+        mWritten = n + 1;
+    }
+
+    // CRC32 of a slot's contents, the stamp included and the CRC itself left out.
+    static int crc(CRC32 crc, byte[] slot, int length) {
+        crc.reset();
+        crc.update(slot, 0, CRC_OFFSET);
+        crc.update(slot, SLOT_HEADER_SIZE, length - SLOT_HEADER_SIZE);
+        return (int) crc.getValue();
+    }
+
+    private void writeLong(int offset, long value) throws IOException {
+        mLong.clear();
+        mLong.putLong(value);
+        put(offset, mLong.array(), 8);
+    }
+
+    private void put(int offset, byte[] data, int length) throws IOException {
+        put(offset, data, 0, length);
+    }
+
+    private void put(int offset, byte[] data, int from, int length) throws IOException {
+        if (mMapping != null) {
+            mMapping.position(offset);
+            mMapping.put(data, from, length);
+        } else {
+            mMemory.writeBytes(data, from, offset, length);
+        }
+    }
+
+    /**
+     * @return Packets written since the ring was created.
+     */
+    public long getWrittenCount() {
+        return mWritten;
+    }
+
+    /**
+     * @return A new descriptor of the ring, for another process, read-only from API 27. The
+     *         caller owns it.
+     */
+    public ParcelFileDescriptor share() throws IOException {
+        if (mSharedMemory != null) {
+            // SharedMemory hides its descriptor, but parcels it like any other.
+            Parcel parcel = Parcel.obtain();
+            try {
+                call(mSharedMemory.getClass(), mSharedMemory, "writeToParcel", new Class<?>[] { Parcel.class, int.class }, parcel, 0);
+                parcel.setDataPosition(0);
+                return parcel.readFileDescriptor();
+            } finally {
+                parcel.recycle();
+            }
+        }
+        // MemoryFile only exposes its descriptor through a hidden method before API 27.
+        try {
+            Method method = MemoryFile.class.getDeclaredMethod("getFileDescriptor");
+            return ParcelFileDescriptor.dup((FileDescriptor) method.invoke(mMemory));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to share " + TAG, e);
+        }
+    }
+
+    /**
+     * Releases the service's side of the ring. Must be called from the writing thread, or once
+     * it has stopped writing.
+     */
+    public void close() {
+        if (mSharedMemory != null) {
+            try {
+                call(mSharedMemory.getClass(), null, "unmap", new Class<?>[] { ByteBuffer.class }, mMapping);
+                call(mSharedMemory.getClass(), mSharedMemory, "close", new Class<?>[0]);
+            } catch (IOException e) {
+                Log.w(TAG, "close(): " + e.getMessage());
+            }
+        } else {
+            mMemory.close();
+        }
+    }
+
+    /**
+     * One consumer's view of a ring. Readers never block or affect the writer: one that falls
+     * more than a ring's worth behind skips ahead and counts the packets it missed.
+     */
+    public static class Reader {
+        private final ByteBuffer mBuffer;
+        private final int mSlotCount;
+        private final byte[] mSlot = new byte[SLOT_SIZE];
+        private final CRC32 mCrc = new CRC32();
+        private long mNext;
+        private long mLost;
+
+        /**
+         * Maps the ring from a descriptor from {@link IBlunoFeed#getPacketRing}. The mapping
+         * outlives the descriptor, which may be closed afterwards.
+         */
+        public static Reader open(ParcelFileDescriptor descriptor) throws IOException {
+            FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+            try {
+                FileChannel channel = in.getChannel();
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                int slotCount = header.getInt(8);
+                return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + slotCount * SLOT_SIZE));
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Starts reading at the next packet to be written.
+         *
+         * @param buffer The whole ring.
+         */
+        public Reader(ByteBuffer buffer) throws IOException {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(12) != SLOT_SIZE)
+                throw new IOException("Not a version " + VERSION + " packet ring");
+            mBuffer = buffer.duplicate();
+            mSlotCount = buffer.getInt(8);
+            mNext = readWritten();
+        }
+
+        // The count is read until two reads agree, so a count caught mid-update isn't used.
+        private long readWritten() {
+            long written = mBuffer.getLong(WRITTEN_OFFSET);
+            long again;
+            while ((again = mBuffer.getLong(WRITTEN_OFFSET)) != written)
+                written = again;
+            return written;
+        }
+
+        /**
+         * @return The next packet, or null if there is none yet.
+         */
+        public synchronized BlunoPacket next() {
+            while (true) {
+                long written = readWritten();
+                if (mNext >= written)
+                    return null;
+                if (written - mNext > mSlotCount) {
+                    mLost += written - mSlotCount - mNext;
+                    mNext = written - mSlotCount;
+                }
+                mBuffer.position(HEADER_SIZE + (int) (mNext % mSlotCount) * SLOT_SIZE);
+                mBuffer.get(mSlot);
+                ByteBuffer slot = ByteBuffer.wrap(mSlot);
+                long stamp = slot.getLong(0);
+                int length = Math.min(slot.getShort(LENGTH_OFFSET) & 0xFFFF, MAX_VALUE_LENGTH);
+                boolean intact = stamp == mNext && slot.getInt(CRC_OFFSET) == crc(mCrc, mSlot, SLOT_HEADER_SIZE + length);
+                if (!intact) {
+                    if (stamp > mNext || written - mNext >= mSlotCount) {
+                        mNext++;
+                        mLost++; // overwritten before we got to it
+                        continue;
+                    }
+                    return null; // not all of it visible to us yet
+                }
+                mNext++;
+                byte[] value = new byte[length];
+                System.arraycopy(mSlot, SLOT_HEADER_SIZE, value, 0, length);
+                return new BlunoPacket(new UUID(slot.getLong(16), slot.getLong(24)), value, slot.getLong(8));
+            }
+        }
+
+        /**
+         * @return Packets overwritten before this reader got to them.
+         */
+        public synchronized long getLostCount() {
+            return mLost;
+        }
+    }
+}
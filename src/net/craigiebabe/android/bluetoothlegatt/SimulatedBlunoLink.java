@@ -0,0 +1,114 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SerialLink} to an imaginary Bluno running the echo sketch: everything sent is
+ * received back after a simulated link delay. Timing follows a crude model of a BLE connection -
+ * acknowledged writes take a full connection interval, unacknowledged ones a fraction of it - with
+ * optional jitter and packet loss, so features can be exercised (and benchmarked in CI) without
+ * hardware. A fixed seed makes runs reproducible.
+ */
+public class SimulatedBlunoLink implements SerialLink {
+
+    // Connection intervals Android requests for each CONNECTION_PRIORITY_* value.
+    private static final long HIGH_PRIORITY_INTERVAL_MICROS = 7500;
+    private static final long BALANCED_INTERVAL_MICROS = 30000;
+    private static final long LOW_POWER_INTERVAL_MICROS = 100000;
+    // Unacknowledged writes the stack can fit into one connection event.
+    private static final int PACKETS_PER_CONNECTION_EVENT = 4;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Random mRandom;
+    private final double mLossRate;
+    private final long mJitterMicros;
+    private volatile long mIntervalMicros = BALANCED_INTERVAL_MICROS;
+    private volatile Listener mListener;
+    private volatile boolean mClosed;
+    // Time at which the simulated radio is free to take the next write.
+    private long mRadioFreeAtMicros;
+
+    public SimulatedBlunoLink() {
+        this(0, 0, 1);
+    }
+
+    /**
+     * @param lossRate Probability (0..1) that an echoed packet is lost.
+     * @param jitterMicros Maximum random delay added to each echo.
+     * @param seed Seed for loss and jitter.
+     */
+    public SimulatedBlunoLink(double lossRate, long jitterMicros, long seed) {
+        mLossRate = lossRate;
+        mJitterMicros = jitterMicros;
+        mRandom = new Random(seed);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public synchronized boolean send(byte[] data, int writeType, final SendCallback callback) {
+        if (mClosed || data.length > MAX_PAYLOAD_SIZE)
+            return false;
+
+        long nowMicros = System.nanoTime() / 1000;
+        long writeMicros = writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                ? mIntervalMicros / PACKETS_PER_CONNECTION_EVENT : mIntervalMicros;
+        long startMicros = Math.max(nowMicros, mRadioFreeAtMicros);
+        mRadioFreeAtMicros = startMicros + writeMicros;
+        long completeDelay = mRadioFreeAtMicros - nowMicros;
+
+        final byte[] echo = data.clone();
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (callback != null)
+                    callback.onSendComplete(!mClosed);
+            }
+        }, completeDelay, TimeUnit.MICROSECONDS);
+
+        if (mRandom.nextDouble() < mLossRate)
+            return true;
+        // The echo comes back as a notification in a later connection event.
+        long echoDelay = completeDelay + mIntervalMicros
+                + (mJitterMicros > 0 ? (long) (mRandom.nextDouble() * mJitterMicros) : 0);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = mListener;
+                if (!mClosed && listener != null)
+                    listener.onReceive(echo);
+            }
+        }, echoDelay, TimeUnit.MICROSECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                mIntervalMicros = HIGH_PRIORITY_INTERVAL_MICROS;
+                return true;
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                mIntervalMicros = LOW_POWER_INTERVAL_MICROS;
+                return true;
+            default:
+                mIntervalMicros = BALANCED_INTERVAL_MICROS;
+                return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,243 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only map from synonym to canonical command word, precompiled from WordNet at build time
+ * (see {@code tools/synonyms}) into {@code res/raw/synonyms.bin}.
+ *
+ * The index is a minimal perfect hash in the hash-and-displace style: a first hash picks a
+ * bucket, the bucket's stored displacement seeds a second hash that lands every key in its own
+ * slot. A lookup is therefore two hashes and one key comparison, reads straight from the byte
+ * array the file was loaded into, and allocates nothing.
+ *
+ * File layout (big endian): {@code magic, bucketCount, slotCount, canonicalCount,
+ * displacement[bucketCount] (int), slot[slotCount] (int offset of key entry or -1),
+ * canonical[canonicalCount] (int offset of name entry), string pool}; a key entry is
+ * {@code length (1 byte), ASCII bytes, canonical id (2 bytes)}, a name entry
+ * {@code length (1 byte), ASCII bytes}.
+ */
+public final class SynonymIndex {
+
+    public static final int NOT_FOUND = -1;
+
+    private static final int MAGIC = 0x53594e31; // "SYN1"
+    private static final int HEADER_SIZE = 16;
+    private static final int KEYS_PER_BUCKET = 4;
+    private static final int MAX_DISPLACEMENT = 1 << 20;
+
+    private final ByteBuffer mData;
+    private final int mBucketCount;
+    private final int mSlotCount;
+    private final int mSlotsOffset;
+    private final String[] mCanonical;
+
+    private SynonymIndex(byte[] data) throws IOException {
+        mData = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE || mData.getInt(0) != MAGIC)
+            throw new IOException("Not a synonym index");
+        mBucketCount = mData.getInt(4);
+        mSlotCount = mData.getInt(8);
+        int canonicalCount = mData.getInt(12);
+        mSlotsOffset = HEADER_SIZE + 4 * mBucketCount;
+        int canonicalOffset = mSlotsOffset + 4 * mSlotCount;
+
+        // The handful of canonical words are materialised once, so callers get Strings for free.
+        mCanonical = new String[canonicalCount];
+        for (int i = 0; i < canonicalCount; i++) {
+            int entry = mData.getInt(canonicalOffset + 4 * i);
+            int length = data[entry] & 0xFF;
+            mCanonical[i] = new String(data, entry + 1, length, "US-ASCII");
+        }
+    }
+
+    /**
+     * Loads an index with a single read of the whole stream, which is closed.
+     */
+    public static SynonymIndex load(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(in.available(), 4096));
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = in.read(chunk)) > 0)
+                buffer.write(chunk, 0, n);
+            return new SynonymIndex(buffer.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return Id of the canonical word for {@code text[start, end)}, or {@link #NOT_FOUND}.
+     *         The text must already be lower case.
+     */
+    public int lookup(CharSequence text, int start, int end) {
+        int length = end - start;
+        if (length <= 0 || length > 255 || mSlotCount == 0)
+            return NOT_FOUND;
+        int bucket = index(hash(text, start, end, 0), mBucketCount);
+        int displacement = mData.getInt(HEADER_SIZE + 4 * bucket);
+        int entry = mData.getInt(mSlotsOffset + 4 * index(hash(text, start, end, displacement), mSlotCount));
+        if (entry < 0 || (mData.get(entry) & 0xFF) != length)
+            return NOT_FOUND;
+        for (int i = 0; i < length; i++) {
+            if (mData.get(entry + 1 + i) != (byte) text.charAt(start + i))
+                return NOT_FOUND;
+        }
+        return mData.getShort(entry + 1 + length) & 0xFFFF;
+    }
+
+    public int lookup(CharSequence word) {
+        return lookup(word, 0, word.length());
+    }
+
+    /**
+     * @return The canonical word for an id returned by {@link #lookup(CharSequence, int, int)}.
+     */
+    public String getCanonical(int id) {
+        return mCanonical[id];
+    }
+
+    public int getCanonicalCount() {
+        return mCanonical.length;
+    }
+
+    public int size() {
+        return mSlotCount;
+    }
+
+    // FNV-1a, seeded, with a final avalanche so nearby seeds give unrelated hashes.
+    static int hash(CharSequence text, int start, int end, int seed) {
+        int h = 0x811c9dc5 ^ (seed * 0x9e3779b9);
+        for (int i = start; i < end; i++) {
+            h ^= text.charAt(i) & 0xFF;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static int index(int hash, int size) {
+        return (hash & 0x7fffffff) % size;
+    }
+
+    /**
+     * Builds an index. Used by the build-time generator.
+     *
+     * @param synonyms Map from synonym to canonical word; all ASCII, lower case, at most 255 characters.
+     * @param out Receives the index; not closed.
+     */
+    public static void write(Map<String, String> synonyms, OutputStream out) throws IOException {
+        final List<String> keys = new ArrayList<String>(synonyms.keySet());
+        Collections.sort(keys);
+        Map<String, Integer> canonicalIds = new LinkedHashMap<String, Integer>();
+        for (String key : keys) {
+            String canonical = synonyms.get(key);
+            if (!canonicalIds.containsKey(canonical))
+                canonicalIds.put(canonical, canonicalIds.size());
+        }
+
+        int n = keys.size();
+        int bucketCount = Math.max(1, n / KEYS_PER_BUCKET);
+        int slotCount = n;
+        List<List<Integer>> buckets = new ArrayList<List<Integer>>();
+        for (int b = 0; b < bucketCount; b++)
+            buckets.add(new ArrayList<Integer>());
+        for (int k = 0; k < n; k++)
+            buckets.get(index(hash(keys.get(k), 0, keys.get(k).length(), 0), bucketCount)).add(k);
+
+        // Place the biggest buckets first, while the table is still empty.
+        Integer[] order = new Integer[bucketCount];
+        for (int b = 0; b < bucketCount; b++)
+            order[b] = b;
+        final List<List<Integer>> bucketsByIndex = buckets;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return bucketsByIndex.get(b).size() - bucketsByIndex.get(a).size();
+            }
+        });
+
+        int[] displacement = new int[bucketCount];
+        int[] slotKey = new int[slotCount];
+        Arrays.fill(slotKey, -1);
+        for (int b : order) {
+            List<Integer> members = buckets.get(b);
+            if (members.isEmpty())
+                continue;
+            int[] slots = new int[members.size()];
+            int d = 1;
+            for (;; d++) {
+                if (d > MAX_DISPLACEMENT)
+                    throw new IOException("Unable to build perfect hash");
+                boolean ok = true;
+                for (int i = 0; i < slots.length && ok; i++) {
+                    String key = keys.get(members.get(i));
+                    slots[i] = index(hash(key, 0, key.length(), d), slotCount);
+                    if (slotKey[slots[i]] != -1)
+                        ok = false;
+                    for (int j = 0; j < i && ok; j++)
+                        ok = slots[j] != slots[i];
+                }
+                if (ok)
+                    break;
+            }
+            displacement[b] = d;
+            for (int i = 0; i < slots.length; i++)
+                slotKey[slots[i]] = members.get(i);
+        }
+
+        // String pool: canonical names, then keys in sorted order.
+        int poolOffset = HEADER_SIZE + 4 * bucketCount + 4 * slotCount + 4 * canonicalIds.size();
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        int[] canonicalEntry = new int[canonicalIds.size()];
+        for (Map.Entry<String, Integer> canonical : canonicalIds.entrySet()) {
+            canonicalEntry[canonical.getValue()] = poolOffset + pool.size();
+            writeString(pool, canonical.getKey());
+        }
+        int[] keyEntry = new int[n];
+        for (int k = 0; k < n; k++) {
+            keyEntry[k] = poolOffset + pool.size();
+            writeString(pool, keys.get(k));
+            int id = canonicalIds.get(synonyms.get(keys.get(k)));
+            pool.write(id >> 8);
+            pool.write(id);
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(bucketCount);
+        data.writeInt(slotCount);
+        data.writeInt(canonicalIds.size());
+        for (int d : displacement)
+            data.writeInt(d);
+        for (int k : slotKey)
+            data.writeInt(k < 0 ? -1 : keyEntry[k]);
+        for (int entry : canonicalEntry)
+            data.writeInt(entry);
+        pool.writeTo(data);
+        data.flush();
+    }
+
+    private static void writeString(ByteArrayOutputStream pool, String s) throws IOException {
+        byte[] bytes = s.getBytes("US-ASCII");
+        if (bytes.length > 255)
+            throw new IOException("Word too long: " + s);
+        pool.write(bytes.length);
+        pool.write(bytes);
+    }
+}
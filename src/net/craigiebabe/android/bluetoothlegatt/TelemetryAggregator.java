@@ -0,0 +1,460 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Rolling statistics of the numeric fields in the Arduino's serial output, over the last
+ * second, 10 seconds and minute, for dashboards.
+ *
+ * Fields are {@code name=value} or {@code name: value} pairs anywhere in the stream, picked up
+ * as they first appear. Every sample is added to, and later expired from, each window in
+ * constant time, so reading the statistics costs the same however fast samples arrive:
+ * <ul>
+ * <li>minimum and maximum from monotonic deques of the samples still in the window;</li>
+ * <li>mean and standard deviation from Welford's running moments, with samples taken back out
+ *     as they expire;</li>
+ * <li>percentiles from a log-linear histogram of the window's samples (within about 3%), which,
+ *     being counts per bucket, can be merged across fields or devices by adding.</li>
+ * </ul>
+ * Everything is kept in primitive arrays allocated when a field first appears. A field sampled
+ * faster than {@link #MAX_SAMPLES} per minute has its longer windows cut short.
+ */
+public class TelemetryAggregator implements Subscriber<BlunoPacket> {
+    private final static String TAG = TelemetryAggregator.class.getSimpleName();
+
+    public static final int WINDOW_1S = 0;
+    public static final int WINDOW_10S = 1;
+    public static final int WINDOW_60S = 2;
+    private static final long[] WINDOW_NANOS = { 1000000000L, 10000000000L, 60000000000L };
+
+    public static final int MAX_FIELDS = 16;
+    /** Samples held per field; a power of two. */
+    public static final int MAX_SAMPLES = 4096;
+    private static final int MAX_NAME_LENGTH = 16;
+    private static final int MAX_DIGITS = 18;
+
+    // Histogram: 16 buckets per power of two from 2^MIN_EXPONENT to 2^(MAX_EXPONENT + 1), for
+    // each sign, around a bucket for zero (and anything smaller).
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int MIN_EXPONENT = -10;
+    private static final int MAX_EXPONENT = 21;
+    private static final int BUCKETS_PER_SIGN = (MAX_EXPONENT - MIN_EXPONENT + 1) << SUB_BUCKET_BITS;
+    private static final int ZERO_BUCKET = BUCKETS_PER_SIGN;
+    static final int BUCKET_COUNT = 2 * BUCKETS_PER_SIGN + 1;
+
+    /**
+     * A field's statistics over one window.
+     */
+    public static class Stats {
+        public final String field;
+        public final long count;
+        public final double min;
+        public final double max;
+        public final double mean;
+        public final double stdDev;
+        public final double p50;
+        public final double p90;
+        public final double p99;
+
+        Stats(String field, long count, double min, double max, double mean, double stdDev, double p50, double p90, double p99) {
+            this.field = field;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.stdDev = stdDev;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: n %d, min %.4g, max %.4g, mean %.4g, sd %.3g, p50 %.4g, p90 %.4g, p99 %.4g",
+                    field, count, min, max, mean, stdDev, p50, p90, p99);
+        }
+    }
+
+    // One field's statistics over one window. Samples are numbered in order of arrival; the
+    // deques hold their slots in the field's ring.
+    private static class Window {
+        final long mNanos;
+        long mHead; // oldest sample in the window
+        long mCount;
+        double mMean;
+        double mM2;
+        final int[] mMinDeque = new int[MAX_SAMPLES]; // increasing values
+        final int[] mMaxDeque = new int[MAX_SAMPLES]; // decreasing values
+        long mMinFront, mMinBack, mMaxFront, mMaxBack; // front inclusive, back exclusive
+        final int[] mHistogram = new int[BUCKET_COUNT];
+
+        Window(long nanos) {
+            mNanos = nanos;
+        }
+    }
+
+    private static class Field {
+        final String mName;
+        final char[] mChars;
+        final long[] mTimes = new long[MAX_SAMPLES];
+        final double[] mValues = new double[MAX_SAMPLES];
+        long mNext; // sequence number of the next sample
+        final Window[] mWindows = new Window[WINDOW_NANOS.length];
+
+        Field(String name) {
+            mName = name;
+            mChars = name.toCharArray();
+            for (int w = 0; w < mWindows.length; w++)
+                mWindows[w] = new Window(WINDOW_NANOS[w]);
+        }
+
+    }
+
+    private final UUID mCharacteristicUuid;
+    private final List<Field> mFields = new ArrayList<Field>(); // guarded by this
+    private Subscription mSubscription;
+    private long mSampleCount;
+    private long mOverrunCount;
+
+    // Tokenizer state, only touched by the delivering thread.
+    private final char[] mName = new char[MAX_NAME_LENGTH];
+    private int mNameLength;
+    private int mToken; // one of the TOKEN_* constants
+    private boolean mAfterNameChar; // the last character could have been part of a name
+    private boolean mNegative;
+    private boolean mFraction;
+    private boolean mInNumber;
+    private long mMantissa;
+    private int mDigits;
+    private int mFractionDigits;
+
+    private static final int TOKEN_NONE = 0;
+    private static final int TOKEN_NAME = 1;
+    private static final int TOKEN_SEPARATOR = 2;
+    private static final int TOKEN_NUMBER = 3;
+
+    /**
+     * @param characteristicUuid Characteristic carrying the serial output.
+     */
+    public TelemetryAggregator(UUID characteristicUuid) {
+        mCharacteristicUuid = characteristicUuid;
+    }
+
+    /**
+     * Starts aggregating what the publisher delivers from the characteristic.
+     */
+    public void start(BlunoDataPublisher publisher) {
+        publisher.subscribe(this, mCharacteristicUuid, BlunoDataPublisher.OverflowPolicy.DROP_OLDEST,
+                BlunoDataPublisher.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Forgets every field, e.g. on connecting to another device.
+     */
+    public synchronized void reset() {
+        mFields.clear();
+        mSampleCount = 0;
+        mOverrunCount = 0;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        mSubscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(BlunoPacket packet) {
+        record(packet.getValue(), packet.getTimestampNanos());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        Log.e(TAG, "onError(): aggregation ended", t);
+    }
+
+    @Override
+    public void onComplete() {
+        Log.i(TAG, "onComplete(): publisher completed");
+    }
+
+    /**
+     * Picks the fields out of a chunk of serial output. Chunks must be passed in order from one
+     * thread at a time; fields may span chunks.
+     *
+     * @param timestampNanos When the chunk arrived, in {@code SystemClock.elapsedRealtimeNanos()} time.
+     */
+    public void record(byte[] data, long timestampNanos) {
+        for (byte b : data) {
+            char c = (char) (b & 0xFF);
+            // A name only starts after a delimiter, never inside a longer word or a number.
+            boolean delimited = !mAfterNameChar;
+            mAfterNameChar = isNameChar(c);
+            switch (mToken) {
+                case TOKEN_NAME:
+                    if (isNameChar(c)) {
+                        if (mNameLength < MAX_NAME_LENGTH)
+                            mName[mNameLength++] = c;
+                        else
+                            mToken = TOKEN_NONE; // too long to be a field name: skip the rest
+                        continue;
+                    }
+                    if (c == '=' || c == ':') {
+                        mToken = TOKEN_SEPARATOR;
+                        mNegative = mFraction = mInNumber = false;
+                        mMantissa = 0;
+                        mDigits = mFractionDigits = 0;
+                        continue;
+                    }
+                    break;
+                case TOKEN_SEPARATOR:
+                    if (c == ' ')
+                        continue;
+                    if (c == '-' && !mNegative) {
+                        mNegative = true;
+                        continue;
+                    }
+                    if (c >= '0' && c <= '9' || c == '.') {
+                        mToken = TOKEN_NUMBER;
+                        if (scanDigit(c))
+                            continue;
+                    }
+                    break;
+                case TOKEN_NUMBER:
+                    if (scanDigit(c))
+                        continue;
+                    if (mInNumber)
+                        endNumber(timestampNanos);
+                    break;
+            }
+            // Not part of the token in progress: maybe the start of the next one.
+            if (delimited && isNameChar(c) && !(c >= '0' && c <= '9')) {
+                mToken = TOKEN_NAME;
+                mName[0] = c;
+                mNameLength = 1;
+            } else {
+                mToken = TOKEN_NONE;
+            }
+        }
+    }
+
+    private static boolean isNameChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+
+    // Adds a character to the number in progress; false if it doesn't belong to it.
+    private boolean scanDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            mInNumber = true;
+            if (mDigits < MAX_DIGITS) {
+                mMantissa = mMantissa * 10 + (c - '0');
+                mDigits++;
+                if (mFraction)
+                    mFractionDigits++;
+            } else if (!mFraction) {
+                mFractionDigits--; // too long to hold exactly: keep the magnitude
+            }
+            return true;
+        }
+        if (c == '.' && !mFraction) {
+            mFraction = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void endNumber(long timestampNanos) {
+        double value = mMantissa / Math.pow(10, mFractionDigits);
+        add(mName, mNameLength, mNegative && value != 0 ? -value : value, timestampNanos);
+    }
+
+    private synchronized void add(char[] name, int nameLength, double value, long timestampNanos) {
+        Field field = findField(name, nameLength);
+        if (field == null)
+            return;
+        if (field.mNext - field.mWindows[WINDOW_60S].mHead == MAX_SAMPLES) {
+            // Full: the oldest sample leaves every window still holding it.
+            long oldest = field.mNext - MAX_SAMPLES;
+            for (Window window : field.mWindows) {
+                if (window.mHead == oldest)
+                    expireOne(field, window);
+            }
+            mOverrunCount++;
+        }
+        long seq = field.mNext++;
+        int slot = index(seq);
+        field.mTimes[slot] = timestampNanos;
+        field.mValues[slot] = value;
+        int bucket = bucketOf(value);
+        for (Window window : field.mWindows) {
+            expire(field, window, timestampNanos);
+
+            window.mCount++;
+            double delta = value - window.mMean;
+            window.mMean += delta / window.mCount;
+            window.mM2 += delta * (value - window.mMean);
+
+            while (window.mMinBack > window.mMinFront && field.mValues[window.mMinDeque[index(window.mMinBack - 1)]] >= value)
+                window.mMinBack--;
+            window.mMinDeque[index(window.mMinBack++)] = slot;
+            while (window.mMaxBack > window.mMaxFront && field.mValues[window.mMaxDeque[index(window.mMaxBack - 1)]] <= value)
+                window.mMaxBack--;
+            window.mMaxDeque[index(window.mMaxBack++)] = slot;
+
+            window.mHistogram[bucket]++;
+        }
+        mSampleCount++;
+    }
+
+    private Field findField(char[] name, int nameLength) {
+        for (Field field : mFields) {
+            if (field.mChars.length != nameLength)
+                continue;
+            int i = 0;
+            while (i < nameLength && field.mChars[i] == name[i])
+                i++;
+            if (i == nameLength)
+                return field;
+        }
+        if (mFields.size() >= MAX_FIELDS)
+            return null;
+        Field field = new Field(new String(name, 0, nameLength));
+        mFields.add(field);
+        Log.i(TAG, "findField(): new field " + field.mName);
+        return field;
+    }
+
+    private static int index(long position) {
+        return (int) (position & (MAX_SAMPLES - 1));
+    }
+
+    // Takes out every sample older than the window as of now.
+    private static void expire(Field field, Window window, long nowNanos) {
+        while (window.mHead < field.mNext && nowNanos - field.mTimes[index(window.mHead)] > window.mNanos)
+            expireOne(field, window);
+    }
+
+    private static void expireOne(Field field, Window window) {
+        int slot = index(window.mHead++);
+        double value = field.mValues[slot];
+        if (--window.mCount == 0) {
+            window.mMean = 0;
+            window.mM2 = 0;
+        } else {
+            double delta = value - window.mMean;
+            window.mMean -= delta / window.mCount;
+            window.mM2 = Math.max(0, window.mM2 - delta * (value - window.mMean));
+        }
+        if (window.mMinBack > window.mMinFront && window.mMinDeque[index(window.mMinFront)] == slot)
+            window.mMinFront++;
+        if (window.mMaxBack > window.mMaxFront && window.mMaxDeque[index(window.mMaxFront)] == slot)
+            window.mMaxFront++;
+        window.mHistogram[bucketOf(value)]--;
+    }
+
+    static int bucketOf(double value) {
+        double magnitude = Math.abs(value);
+        if (!(magnitude >= Math.scalb(1.0, MIN_EXPONENT)))
+            return ZERO_BUCKET; // also NaN
+        int exponent = Math.getExponent(magnitude);
+        int index;
+        if (exponent > MAX_EXPONENT) {
+            index = BUCKETS_PER_SIGN - 1;
+        } else {
+            int sub = (int) (Double.doubleToRawLongBits(magnitude) >> (52 - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            index = ((exponent - MIN_EXPONENT) << SUB_BUCKET_BITS) + sub;
+        }
+        return value > 0 ? ZERO_BUCKET + 1 + index : ZERO_BUCKET - 1 - index;
+    }
+
+    // The middle of a bucket.
+    static double valueOf(int bucket) {
+        if (bucket == ZERO_BUCKET)
+            return 0;
+        int index = bucket > ZERO_BUCKET ? bucket - ZERO_BUCKET - 1 : ZERO_BUCKET - 1 - bucket;
+        int exponent = (index >> SUB_BUCKET_BITS) + MIN_EXPONENT;
+        int sub = index & ((1 << SUB_BUCKET_BITS) - 1);
+        double magnitude = Math.scalb(1 + (sub + 0.5) / (1 << SUB_BUCKET_BITS), exponent);
+        return bucket > ZERO_BUCKET ? magnitude : -magnitude;
+    }
+
+    private static double percentile(Window window, double percentile, double min, double max) {
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * window.mCount));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += window.mHistogram[bucket];
+            if (seen >= rank)
+                return Math.max(min, Math.min(max, valueOf(bucket)));
+        }
+        return max;
+    }
+
+    /**
+     * @return Names of the fields seen so far, in order of appearance.
+     */
+    public synchronized List<String> getFieldNames() {
+        List<String> names = new ArrayList<String>(mFields.size());
+        for (Field field : mFields)
+            names.add(field.mName);
+        return names;
+    }
+
+    /**
+     * @param window One of the {@code WINDOW_*} constants.
+     * @return The field's statistics over the window up to now, or null if the field hasn't
+     *         been seen. Cheap enough to call every frame.
+     */
+    public synchronized Stats getStats(String name, int window) {
+        for (Field field : mFields) {
+            if (field.mName.equals(name))
+                return getStats(field, window);
+        }
+        return null;
+    }
+
+    private Stats getStats(Field field, int index) {
+        Window window = field.mWindows[index];
+        expire(field, window, SystemClock.elapsedRealtimeNanos());
+        if (window.mCount == 0)
+            return new Stats(field.mName, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        double min = field.mValues[window.mMinDeque[index(window.mMinFront)]];
+        double max = field.mValues[window.mMaxDeque[index(window.mMaxFront)]];
+        double stdDev = window.mCount > 1 ? Math.sqrt(window.mM2 / (window.mCount - 1)) : 0;
+        return new Stats(field.mName, window.mCount, min, max, window.mMean, stdDev,
+                percentile(window, 50, min, max), percentile(window, 90, min, max), percentile(window, 99, min, max));
+    }
+
+    /**
+     * @param window One of the {@code WINDOW_*} constants.
+     * @return Statistics of every field over the window.
+     */
+    public synchronized List<Stats> getAllStats(int window) {
+        List<Stats> stats = new ArrayList<Stats>(mFields.size());
+        for (Field field : mFields)
+            stats.add(getStats(field, window));
+        return stats;
+    }
+
+    /**
+     * @return Samples dropped from the longer windows early because a field came too fast.
+     */
+    public synchronized long getOverrunCount() {
+        return mOverrunCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("telemetry, last 10 s: " + mFields.size() + " fields, " + mSampleCount + " samples");
+        for (Field field : mFields)
+            sb.append("\n").append(getStats(field, WINDOW_10S));
+        return sb.toString();
+    }
+}
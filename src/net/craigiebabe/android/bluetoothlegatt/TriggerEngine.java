@@ -0,0 +1,327 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Watches the serial stream from the Arduino for literal patterns (error strings, state changes)
+ * and for numbers that cross a threshold, and fires an {@link Action} for each match.
+ *
+ * All the triggers are compiled into one Aho-Corasick automaton, expanded into a full transition
+ * table, so each received byte costs one table lookup however many patterns there are, and
+ * matches are found as the byte arrives: no backtracking and no buffering of lines. A numeric
+ * predicate is a key pattern (e.g. {@code "temp="}) followed by a number, which is parsed in the
+ * same pass and compared once it ends; the predicate fires when the comparison becomes true, not
+ * again until it has been false. Patterns match across packet boundaries.
+ *
+ * Triggers may be added while the engine runs; the automaton is rebuilt and matching starts
+ * afresh from the next packet.
+ */
+public class TriggerEngine implements SerialLink.Listener {
+    private final static String TAG = TriggerEngine.class.getSimpleName();
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_DIGITS = 18; // what a long mantissa holds
+
+    public interface Action {
+        /**
+         * Called on the thread delivering serial data, as soon as the match completes, so it
+         * must not block.
+         *
+         * @param trigger Description of the trigger, e.g. {@code "ERROR"} or {@code "temp= > 30.0"}.
+         * @param value The number that satisfied a predicate, or NaN for a literal pattern.
+         * @param timestampNanos When the packet completing the match arrived, in
+         *                       {@code SystemClock.elapsedRealtimeNanos()} time.
+         */
+        void onTrigger(String trigger, double value, long timestampNanos);
+    }
+
+    public enum Comparison {
+        LESS("<"), LESS_OR_EQUAL("<="), GREATER(">"), GREATER_OR_EQUAL(">="), EQUAL("=="), NOT_EQUAL("!=");
+
+        private final String mSymbol;
+
+        Comparison(String symbol) {
+            mSymbol = symbol;
+        }
+
+        public String getSymbol() {
+            return mSymbol;
+        }
+
+        /**
+         * @return The comparison written as symbol, e.g. {@code ">="}, or null.
+         */
+        public static Comparison of(String symbol) {
+            for (Comparison comparison : values()) {
+                if (comparison.mSymbol.equals(symbol))
+                    return comparison;
+            }
+            return null;
+        }
+
+        boolean test(double value, double threshold) {
+            switch (this) {
+                case LESS: return value < threshold;
+                case LESS_OR_EQUAL: return value <= threshold;
+                case GREATER: return value > threshold;
+                case GREATER_OR_EQUAL: return value >= threshold;
+                case EQUAL: return value == threshold;
+                default: return value != threshold;
+            }
+        }
+    }
+
+    // A literal pattern (comparison null) or the key of a numeric predicate.
+    private static class Trigger {
+        final byte[] mPattern;
+        final Comparison mComparison;
+        final double mThreshold;
+        final Action mAction;
+        final String mDescription;
+
+        Trigger(String pattern, Comparison comparison, double threshold, Action action) {
+            mPattern = pattern.getBytes(ASCII);
+            mComparison = comparison;
+            mThreshold = threshold;
+            mAction = action;
+            mDescription = comparison == null ? pattern : pattern + " " + comparison.getSymbol() + " " + threshold;
+        }
+    }
+
+    // The compiled triggers plus the matching state that goes with them. Only used by the
+    // thread delivering serial data once built.
+    private static class Automaton {
+        final Trigger[] mTriggers;
+        final int[] mNext; // state * 256 + byte -> state
+        final int[][] mMatches; // state -> triggers whose pattern ends there
+        final boolean[] mSatisfied; // per predicate: whether it was last true
+        int mState;
+
+        Automaton(List<Trigger> triggers) {
+            mTriggers = triggers.toArray(new Trigger[triggers.size()]);
+            mSatisfied = new boolean[mTriggers.length];
+
+            // Trie of the patterns.
+            List<int[]> children = new ArrayList<int[]>();
+            List<List<Integer>> matches = new ArrayList<List<Integer>>();
+            children.add(newNode());
+            matches.add(new ArrayList<Integer>());
+            for (int t = 0; t < mTriggers.length; t++) {
+                int state = 0;
+                for (byte b : mTriggers[t].mPattern) {
+                    int c = b & 0xFF;
+                    if (children.get(state)[c] < 0) {
+                        children.get(state)[c] = children.size();
+                        children.add(newNode());
+                        matches.add(new ArrayList<Integer>());
+                    }
+                    state = children.get(state)[c];
+                }
+                matches.get(state).add(t);
+            }
+
+            // Breadth first, so each state's failure state is complete before it is used: missing
+            // transitions are taken from the failure state, as are its matches.
+            int states = children.size();
+            mNext = new int[states * 256];
+            int[] fail = new int[states];
+            ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+            for (int c = 0; c < 256; c++) {
+                int child = children.get(0)[c];
+                mNext[c] = Math.max(child, 0);
+                if (child > 0)
+                    queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                matches.get(state).addAll(matches.get(fail[state]));
+                for (int c = 0; c < 256; c++) {
+                    int child = children.get(state)[c];
+                    if (child < 0) {
+                        mNext[state * 256 + c] = mNext[fail[state] * 256 + c];
+                    } else {
+                        fail[child] = mNext[fail[state] * 256 + c];
+                        mNext[state * 256 + c] = child;
+                        queue.add(child);
+                    }
+                }
+            }
+            mMatches = new int[states][];
+            for (int s = 0; s < states; s++) {
+                List<Integer> list = matches.get(s);
+                mMatches[s] = new int[list.size()];
+                for (int i = 0; i < list.size(); i++)
+                    mMatches[s][i] = list.get(i);
+            }
+        }
+
+        private static int[] newNode() {
+            int[] node = new int[256];
+            Arrays.fill(node, -1);
+            return node;
+        }
+    }
+
+    private final List<Trigger> mTriggers = new ArrayList<Trigger>(); // guarded by this
+    private volatile Automaton mAutomaton;
+    private volatile long mMatchCount;
+
+    // Number being parsed after a key; only touched by the thread delivering serial data.
+    private Automaton mKeyAutomaton; // the automaton whose predicates are waiting for it
+    private int mKeyState = -1; // state whose predicates are waiting, or -1
+    private boolean mInNumber;
+    private boolean mNegative;
+    private boolean mFraction;
+    private long mMantissa;
+    private int mDigits;
+    private int mFractionDigits;
+    private long mTimestampNanos; // arrival of the packet being matched
+
+    /**
+     * Fires the action every time the pattern is seen.
+     */
+    public synchronized TriggerEngine addPattern(String pattern, Action action) {
+        return add(new Trigger(pattern, null, 0, action));
+    }
+
+    /**
+     * Fires the action when the number following key comes to satisfy the comparison.
+     *
+     * @param key What precedes the number, e.g. {@code "temp="}; spaces between the two are skipped.
+     */
+    public synchronized TriggerEngine addPredicate(String key, Comparison comparison, double threshold, Action action) {
+        return add(new Trigger(key, comparison, threshold, action));
+    }
+
+    private TriggerEngine add(Trigger trigger) {
+        if (trigger.mPattern.length == 0)
+            throw new IllegalArgumentException("Empty pattern");
+        mTriggers.add(trigger);
+        mAutomaton = new Automaton(mTriggers);
+        return this;
+    }
+
+    public synchronized void clear() {
+        mTriggers.clear();
+        mAutomaton = null;
+    }
+
+    public synchronized int getTriggerCount() {
+        return mTriggers.size();
+    }
+
+    /**
+     * @return Number of times a trigger has fired.
+     */
+    public long getMatchCount() {
+        return mMatchCount;
+    }
+
+    @Override
+    public void onReceive(byte[] data) {
+        onReceive(data, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Matches a packet, passing its arrival time to the actions it fires.
+     *
+     * @param timestampNanos When the packet arrived, in {@code SystemClock.elapsedRealtimeNanos()} time.
+     */
+    public void onReceive(byte[] data, long timestampNanos) {
+        mTimestampNanos = timestampNanos;
+        Automaton automaton = mAutomaton;
+        if (automaton == null)
+            return;
+        if (automaton != mKeyAutomaton)
+            mKeyState = -1; // rebuilt: pending predicates refer to the old triggers
+        int[] next = automaton.mNext;
+        int[][] matches = automaton.mMatches;
+        int state = automaton.mState;
+        for (byte b : data) {
+            if (mKeyState >= 0)
+                scanNumber(automaton, b);
+            state = next[state * 256 + (b & 0xFF)];
+            if (matches[state].length > 0)
+                onMatch(automaton, state);
+        }
+        automaton.mState = state;
+    }
+
+    private void onMatch(Automaton automaton, int state) {
+        boolean key = false;
+        for (int t : automaton.mMatches[state]) {
+            Trigger trigger = automaton.mTriggers[t];
+            if (trigger.mComparison == null)
+                fire(trigger, Double.NaN);
+            else
+                key = true;
+        }
+        if (key) {
+            mKeyAutomaton = automaton;
+            mKeyState = state;
+            mInNumber = mNegative = mFraction = false;
+            mMantissa = 0;
+            mDigits = mFractionDigits = 0;
+        }
+    }
+
+    // Advances the number after a key by one byte, evaluating the key's predicates once it ends.
+    private void scanNumber(Automaton automaton, byte b) {
+        if (b >= '0' && b <= '9') {
+            mInNumber = true;
+            if (mDigits < MAX_DIGITS) {
+                mMantissa = mMantissa * 10 + (b - '0');
+                mDigits++;
+                if (mFraction)
+                    mFractionDigits++;
+            } else if (!mFraction) {
+                mFractionDigits--; // too long to hold exactly: keep the magnitude
+            }
+            return;
+        }
+        if (!mInNumber && !mFraction) {
+            if (b == ' ')
+                return;
+            if (b == '-' && !mNegative) {
+                mNegative = true;
+                return;
+            }
+        }
+        if (b == '.' && !mFraction) {
+            mFraction = true;
+            return;
+        }
+        int keyState = mKeyState;
+        mKeyState = -1;
+        if (!mInNumber)
+            return; // the key wasn't followed by a number after all
+        double value = mMantissa / Math.pow(10, mFractionDigits);
+        if (mNegative)
+            value = -value;
+        for (int t : automaton.mMatches[keyState]) {
+            Trigger trigger = automaton.mTriggers[t];
+            if (trigger.mComparison == null)
+                continue;
+            boolean satisfied = trigger.mComparison.test(value, trigger.mThreshold);
+            if (satisfied && !automaton.mSatisfied[t])
+                fire(trigger, value);
+            automaton.mSatisfied[t] = satisfied;
+        }
+    }
+
+    private void fire(Trigger trigger, double value) {
+        mMatchCount++;
+        try {
+            trigger.mAction.onTrigger(trigger.mDescription, value, mTimestampNanos);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "fire(): action for " + trigger.mDescription + " failed", e);
+        }
+    }
+}
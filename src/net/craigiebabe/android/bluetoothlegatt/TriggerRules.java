@@ -0,0 +1,74 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads triggers for a {@link TriggerEngine} from text, one rule per line:
+ * <pre>
+ * # comment
+ * "ERROR" -&gt; alert
+ * "MODE:AUTO" -&gt; mark
+ * temp= &gt; 30 -&gt; send STOP
+ * </pre>
+ * A condition is either a quoted literal or a key, comparison and number; what follows the
+ * arrow is an action name and an optional argument, turned into an {@link TriggerEngine.Action}
+ * by the caller's {@link ActionFactory}.
+ */
+final class TriggerRules {
+
+    interface ActionFactory {
+        /**
+         * @param argument Rest of the line after the action name, or null.
+         * @return The action, or null if the name is unknown.
+         */
+        TriggerEngine.Action create(String name, String argument);
+    }
+
+    private static final Pattern RULE = Pattern.compile(
+            "\\s*(?:\"(.+)\"|(\\S+)\\s*(<=|>=|==|!=|<|>)\\s*(-?[0-9.]+))\\s*->\\s*(\\w+)(?:\\s+(.+?))?\\s*");
+
+    private TriggerRules() {
+    }
+
+    /**
+     * Adds every rule to the engine.
+     *
+     * @return The number of rules added.
+     * @throws IOException If a line can't be read or parsed.
+     */
+    static int load(Reader reader, TriggerEngine engine, ActionFactory factory) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        int count = 0;
+        int number = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                continue;
+            Matcher matcher = RULE.matcher(line);
+            if (!matcher.matches())
+                throw new IOException("Line " + number + ": not a rule: " + line);
+            TriggerEngine.Action action = factory.create(matcher.group(5), matcher.group(6));
+            if (action == null)
+                throw new IOException("Line " + number + ": unknown action: " + matcher.group(5));
+            if (matcher.group(1) != null) {
+                engine.addPattern(matcher.group(1), action);
+            } else {
+                double threshold;
+                try {
+                    threshold = Double.parseDouble(matcher.group(4));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Line " + number + ": bad number: " + matcher.group(4));
+                }
+                engine.addPredicate(matcher.group(2), TriggerEngine.Comparison.of(matcher.group(3)), threshold, action);
+            }
+            count++;
+        }
+        return count;
+    }
+}
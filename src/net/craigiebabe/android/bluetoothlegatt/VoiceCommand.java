@@ -0,0 +1,105 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A command recognised from speech, ready to be sent to the Bluno: either a line for the Arduino
+ * on the serial port, or an AT command for the Bluno itself.
+ */
+public final class VoiceCommand {
+
+    public enum Target { SERIAL, AT }
+
+    /** Emergency stop, also matched by keyword without consulting the classifier. */
+    public static final VoiceCommand STOP = new VoiceCommand("STOP", Target.SERIAL, "STOP", true);
+
+    private static final Map<String, VoiceCommand> sByCategory = new HashMap<String, VoiceCommand>();
+    private static final Map<String, VoiceCommand> sByKeyword = new HashMap<String, VoiceCommand>();
+
+    static {
+        // Categories of the document categorizer model in res/raw/trainer.bin. Speed changes are
+        // control commands; drills are ordinary serial commands.
+        register(STOP);
+        register(new VoiceCommand("START", Target.SERIAL, "START", true));
+        for (String speed : new String[] { "FASTER", "MUCH_FASTER", "FASTEST", "SLOWER", "MUCH_SLOWER", "SLOWEST" })
+            register(new VoiceCommand(speed, Target.SERIAL, speed, true));
+        for (String drill : new String[] { "FOREHAND_TOPSPIN_DRILL", "FOREHAND_SLICE_DRILL", "BACKHAND_TOPSPIN_DRILL",
+                "BACKHAND_SLICE_DRILL", "GROUNDSTROKE_DRILL", "TOPSPIN_GROUNDSTROKE_DRILL", "SLICE_GROUNDSTROKE_DRILL",
+                "VOLLEY_DRILL", "BACKHAND_VOLLEY_DRILL", "FOREHAND_VOLLEY_DRILL", "LOB_DRILL", "CARDIO_DRILL" })
+            register(new VoiceCommand(drill, Target.SERIAL, drill, false));
+
+        // Words that must work even when the classifier is not ready or too slow.
+        sByKeyword.put("stop", STOP);
+        sByKeyword.put("halt", STOP);
+        sByKeyword.put("freeze", STOP);
+        sByKeyword.put("usb debug on", new VoiceCommand("USB_DEBUG_ON", Target.AT, "AT+USBDEBUG=ON", true));
+        sByKeyword.put("usb debug off", new VoiceCommand("USB_DEBUG_OFF", Target.AT, "AT+USBDEBUG=OFF", true));
+    }
+
+    private static void register(VoiceCommand command) {
+        sByCategory.put(command.mName, command);
+    }
+
+    /**
+     * @return The command for a classifier category, or null if it has none.
+     */
+    public static VoiceCommand forCategory(String category) {
+        return sByCategory.get(category);
+    }
+
+    /**
+     * @param utterance Lower case utterance.
+     * @return The command for a keyword contained in the utterance, or null.
+     */
+    public static VoiceCommand forKeyword(String utterance) {
+        VoiceCommand exact = sByKeyword.get(utterance);
+        if (exact != null)
+            return exact;
+        for (String word : utterance.split("\\s+")) {
+            VoiceCommand command = sByKeyword.get(word);
+            if (command != null)
+                return command;
+        }
+        return null;
+    }
+
+    private final String mName;
+    private final Target mTarget;
+    private final String mText;
+    private final boolean mControl;
+
+    private VoiceCommand(String name, Target target, String text, boolean control) {
+        mName = name;
+        mTarget = target;
+        mText = text;
+        mControl = control;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Target getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * @return The text to send, without line terminator.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return true if the command should jump ahead of queued data.
+     */
+    public boolean isControl() {
+        return mControl;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,270 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import opennlp.tools.doccat.DoccatModel;
+import opennlp.tools.doccat.DocumentCategorizerME;
+import opennlp.tools.tokenize.SimpleTokenizer;
+
+/**
+ * Turns recognised speech into {@link VoiceCommand}s, off the main thread and within a hard
+ * latency budget.
+ *
+ * Utterances are first normalized: lower cased, with each word that has an entry in the synonym
+ * index ({@code res/raw/synonyms.bin}, see {@link SynonymIndex}) replaced by its canonical word,
+ * so "cease" is treated as "stop" and "quicker" as "faster".
+ *
+ * For each utterance the engine then tries, in order: an LRU cache of earlier results, a keyword
+ * table (so "stop" never depends on the classifier), then tokenization and the OpenNLP document
+ * categorizer trained in {@code res/raw/trainer.bin}, as loaded by {@link DoccatModelLoader}
+ * (until the model is ready only cached results and keywords are recognised). If classification
+ * has not finished when the budget runs out the listener is told there is no command rather than
+ * being kept waiting; a late result still goes into the cache for next time.
+ */
+public class VoiceCommandEngine {
+    private final static String TAG = VoiceCommandEngine.class.getSimpleName();
+
+    /**
+     * Exactly one of the methods is called per {@link #process(List, Listener)} call, always on
+     * the engine's delivery thread: a single background thread, the same whether the result came
+     * from the cache, a keyword or the classifier.
+     */
+    public interface Listener {
+        void onCommand(VoiceCommand command, String utterance, long latencyMillis);
+
+        void onNoCommand(List<String> utterances, long latencyMillis);
+    }
+
+    public static final long DEFAULT_LATENCY_BUDGET_MILLIS = 250;
+    private static final int CACHE_SIZE = 64;
+    // Below this probability the categorizer is guessing (it spreads 1/n over unknown words).
+    private static final double MIN_CONFIDENCE = 0.5;
+
+    // Marks utterances that are known not to map to any command.
+    private static final VoiceCommand NO_COMMAND = null;
+
+    private final Future<DoccatModel> mModel;
+    private final long mBudgetMillis;
+    private final ExecutorService mClassifier = Executors.newSingleThreadExecutor();
+    // Also the delivery thread.
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, VoiceCommand> mCache = new LinkedHashMap<String, VoiceCommand>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VoiceCommand> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private DocumentCategorizerME mCategorizer; // only used on the classifier thread
+    private volatile SynonymIndex mSynonyms; // null until loaded
+
+    public VoiceCommandEngine(Context context) {
+        this(context, DEFAULT_LATENCY_BUDGET_MILLIS);
+    }
+
+    public VoiceCommandEngine(Context context, long budgetMillis) {
+        mBudgetMillis = budgetMillis;
+        // Start loading ahead of the first utterance.
+        mModel = DoccatModelLoader.getInstance(context).getModel();
+        final Resources resources = context.getResources();
+        mClassifier.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadSynonyms(resources);
+            }
+        });
+    }
+
+    /**
+     * @param utterances Candidate transcriptions, most likely first, as returned by the speech recognizer.
+     */
+    public void process(final List<String> utterances, final Listener listener) {
+        final long startNanos = System.nanoTime();
+        final AtomicBoolean delivered = new AtomicBoolean();
+
+        // Fast paths, looked up on the caller's thread: cached results and keywords.
+        for (String utterance : utterances) {
+            String key = normalize(utterance);
+            VoiceCommand command;
+            boolean cached;
+            synchronized (mCache) {
+                cached = mCache.containsKey(key);
+                command = mCache.get(key);
+            }
+            if (command == null)
+                command = VoiceCommand.forKeyword(key);
+            if (command != null) {
+                deliverCommand(listener, command, utterance, startNanos);
+                return;
+            }
+            if (cached && utterances.size() == 1) {
+                deliverNoCommand(listener, utterances, startNanos);
+                return;
+            }
+        }
+
+        mClassifier.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String utterance : utterances) {
+                    if (delivered.get())
+                        return;
+                    VoiceCommand command = classify(normalize(utterance));
+                    if (command != null) {
+                        if (delivered.compareAndSet(false, true))
+                            deliverCommand(listener, command, utterance, startNanos);
+                        return;
+                    }
+                }
+                if (delivered.compareAndSet(false, true))
+                    deliverNoCommand(listener, utterances, startNanos);
+            }
+        });
+
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (delivered.compareAndSet(false, true)) {
+                    Log.w(TAG, "process(): latency budget of " + mBudgetMillis + " ms exceeded for " + utterances);
+                    listener.onNoCommand(utterances, elapsedMillis(startNanos));
+                }
+            }
+        }, mBudgetMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        mClassifier.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    private void deliverCommand(final Listener listener, final VoiceCommand command, final String utterance,
+                                final long startNanos) {
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCommand(command, utterance, elapsedMillis(startNanos));
+            }
+        });
+    }
+
+    private void deliverNoCommand(final Listener listener, final List<String> utterances, final long startNanos) {
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                listener.onNoCommand(utterances, elapsedMillis(startNanos));
+            }
+        });
+    }
+
+    private void deliver(Runnable callback) {
+        try {
+            mTimer.execute(callback);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "deliver(): engine already closed");
+        }
+    }
+
+    // Runs on the classifier thread.
+    private VoiceCommand classify(String utterance) {
+        if (mCategorizer == null && !createCategorizer())
+            return NO_COMMAND;
+
+        String[] tokens = SimpleTokenizer.INSTANCE.tokenize(utterance);
+        double[] outcomes = mCategorizer.categorize(tokens);
+        int best = 0;
+        for (int i = 1; i < outcomes.length; i++) {
+            if (outcomes[i] > outcomes[best])
+                best = i;
+        }
+        VoiceCommand command = outcomes[best] >= MIN_CONFIDENCE
+                ? VoiceCommand.forCategory(mCategorizer.getCategory(best)) : NO_COMMAND;
+        Log.d(TAG, "classify(): '" + utterance + "' -> " + mCategorizer.getCategory(best) + " (" + outcomes[best] + ")");
+
+        synchronized (mCache) {
+            mCache.put(utterance, command);
+        }
+        return command;
+    }
+
+    private void loadSynonyms(Resources resources) {
+        long startNanos = System.nanoTime();
+        try {
+            mSynonyms = SynonymIndex.load(resources.openRawResource(R.raw.synonyms));
+            Log.i(TAG, "loadSynonyms(): " + mSynonyms.size() + " synonyms loaded in " + elapsedMillis(startNanos) + " ms");
+        } catch (IOException e) {
+            Log.e(TAG, "loadSynonyms(): synonyms will not be recognised", e);
+        }
+    }
+
+    // Never waits for the model: while it loads, utterances are left to the keyword table.
+    private boolean createCategorizer() {
+        if (!mModel.isDone())
+            return false;
+        try {
+            mCategorizer = new DocumentCategorizerME(mModel.get());
+            return true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "createCategorizer(): model failed to load, only keywords will be recognised", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private String normalize(String utterance) {
+        String text = utterance.trim().toLowerCase(Locale.US);
+        SynonymIndex synonyms = mSynonyms;
+        if (synonyms == null)
+            return text;
+
+        // Only utterances that actually contain a synonym are copied.
+        StringBuilder result = null;
+        int copied = 0;
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            if (!isLetter(text.charAt(start))) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while (end < length && isLetter(text.charAt(end)))
+                end++;
+            int id = synonyms.lookup(text, start, end);
+            if (id != SynonymIndex.NOT_FOUND) {
+                String canonical = synonyms.getCanonical(id);
+                if (canonical.length() != end - start || !text.regionMatches(start, canonical, 0, end - start)) {
+                    if (result == null)
+                        result = new StringBuilder(length + 16);
+                    result.append(text, copied, start).append(canonical);
+                    copied = end;
+                }
+            }
+            start = end;
+        }
+        return result == null ? text : result.append(text, copied, length).toString();
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z';
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+}
@@ -0,0 +1,177 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs two {@link ArqLink}s against each other over a simulated raw link that delays, drops and
+ * re-chunks what is written, as the Bluno's UART bridge may. Each end answers its own RESET, as
+ * the sketch would.
+ */
+public class ArqLinkTest {
+
+    private static final byte MAGIC_RESET = (byte) 0xC8;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private final ScheduledExecutorService mAir = Executors.newSingleThreadScheduledExecutor();
+
+    /** One end of the simulated raw link. */
+    private class LossyLink implements SerialLink {
+        private final Random mRandom;
+        private final double mLossRate;
+        private LossyLink mPeer;
+        private volatile Listener mListener;
+
+        LossyLink(double lossRate, long seed) {
+            mLossRate = lossRate;
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public synchronized boolean send(byte[] data, int writeType, SendCallback callback) {
+            final LossyLink to = data[0] == MAGIC_RESET ? this : mPeer;
+            if (mRandom.nextDouble() >= mLossRate) {
+                // Split into random pieces, delivered in order.
+                int offset = 0;
+                while (offset < data.length) {
+                    int length = Math.min(1 + mRandom.nextInt(data.length), data.length - offset);
+                    final byte[] piece = Arrays.copyOfRange(data, offset, offset + length);
+                    offset += length;
+                    mAir.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            Listener listener = to.mListener;
+                            if (listener != null)
+                                listener.onReceive(piece);
+                        }
+                    }, 5, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (callback != null)
+                callback.onSendComplete(true);
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Collects what one end delivers. */
+    private static class Receiver implements SerialLink.Listener {
+        final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void onReceive(byte[] data) {
+            mReceived.write(data, 0, data.length);
+        }
+
+        synchronized byte[] getReceived() {
+            return mReceived.toByteArray();
+        }
+    }
+
+    /** Waits for a send to be acknowledged. */
+    private static class Completion implements SerialLink.SendCallback {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicBoolean mSuccess = new AtomicBoolean();
+
+        @Override
+        public void onSendComplete(boolean success) {
+            mSuccess.set(success);
+            mDone.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            assertTrue("send did not complete", mDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            return mSuccess.get();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mAir.shutdownNow();
+    }
+
+    @Test
+    public void deliversInOrderWithoutLoss() throws InterruptedException {
+        exchange(0, 3000, 1000);
+    }
+
+    @Test
+    public void deliversEverythingDespiteLoss() throws InterruptedException {
+        ArqLink[] links = exchange(0.1, 8000, 2000);
+        assertTrue(links[0].getRetransmitCount() > 0);
+    }
+
+    @Test
+    public void closeFailsUnacknowledgedSends() throws InterruptedException {
+        LossyLink raw = new LossyLink(1, 1); // the reset is never answered
+        ArqLink link = new ArqLink(raw, null);
+        Completion completion = new Completion();
+        assertTrue(link.send(new byte[100], 0, completion));
+        link.close();
+        assertFalse(completion.await());
+        assertFalse(link.send(new byte[1], 0, null));
+    }
+
+    // Sends each way at once and checks both arrive intact. Returns the two ends, closed.
+    private ArqLink[] exchange(double lossRate, int lengthA, int lengthB) throws InterruptedException {
+        LossyLink rawA = new LossyLink(lossRate, 1);
+        LossyLink rawB = new LossyLink(lossRate, 2);
+        rawA.mPeer = rawB;
+        rawB.mPeer = rawA;
+        ArqLink a = new ArqLink(rawA, null);
+        ArqLink b = new ArqLink(rawB, null);
+        Receiver receivedByA = new Receiver();
+        Receiver receivedByB = new Receiver();
+        a.setListener(receivedByA);
+        b.setListener(receivedByB);
+
+        byte[] fromA = pattern(lengthA, 7);
+        byte[] fromB = pattern(lengthB, 13);
+        Completion sentA = new Completion();
+        Completion sentB = new Completion();
+        a.send(fromA, 0, sentA);
+        b.send(fromB, 0, sentB);
+        assertTrue(sentA.await());
+        assertTrue(sentB.await());
+        a.close();
+        b.close();
+
+        // A send completes once acknowledged, so everything has been delivered by then.
+        assertArrayEquals(fromA, receivedByB.getReceived());
+        assertArrayEquals(fromB, receivedByA.getReceived());
+        return new ArqLink[] { a, b };
+    }
+
+    private static byte[] pattern(int length, int step) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * step + i / 251);
+        return data;
+    }
+}
@@ -0,0 +1,127 @@
+package net.craigiebabe.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the benchmark against {@link SimulatedBlunoLink}, so it needs no hardware.
+ */
+public class BlunoBenchmarkTest {
+
+    private static final int[] SIZES = { 8, SerialLink.MAX_PAYLOAD_SIZE };
+    private static final int[] NO_RESPONSE = { BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE };
+    private static final int[] HIGH = { BluetoothGatt.CONNECTION_PRIORITY_HIGH };
+
+    @Test
+    public void losslessLinkEchoesEveryFrame() throws InterruptedException {
+        SimulatedBlunoLink link = new SimulatedBlunoLink(0, 2000, 1);
+        List<BlunoBenchmark.Result> results = run(new BlunoBenchmark(link, SIZES, NO_RESPONSE, HIGH, 50));
+        link.close();
+
+        assertEquals(SIZES.length, results.size());
+        for (BlunoBenchmark.Result result : results) {
+            assertEquals(50, result.sent);
+            assertEquals(0, result.sendFailures);
+            assertEquals(50, result.received);
+            assertEquals(0, result.corrupt);
+            assertEquals(0, result.duplicates);
+            // An echo takes at least a connection interval of the simulated high priority link.
+            assertTrue(result.rtt.getMin() >= 7500);
+            assertTrue(result.getTxBytesPerSecond() > 0);
+            assertTrue(result.getRxBytesPerSecond() > 0);
+        }
+    }
+
+    @Test
+    public void lossIsCountedNotMistakenForCorruption() throws InterruptedException {
+        SimulatedBlunoLink link = new SimulatedBlunoLink(0.2, 0, 7);
+        List<BlunoBenchmark.Result> results = run(new BlunoBenchmark(link,
+                new int[] { SerialLink.MAX_PAYLOAD_SIZE }, NO_RESPONSE, HIGH, 200));
+        link.close();
+
+        BlunoBenchmark.Result result = results.get(0);
+        assertEquals(200, result.sent);
+        assertTrue("lost " + result.getLost(), result.getLost() > 10 && result.getLost() < 80);
+        assertEquals(0, result.corrupt);
+    }
+
+    @Test
+    public void lateCompletionOfTimedOutSendIsIgnored() throws InterruptedException {
+        // The first write never completes in time; its completion arrives while the second is
+        // in progress, and the second then fails. Neither may be counted as sent.
+        SerialLink link = new SerialLink() {
+            private SendCallback mFirst;
+
+            @Override
+            public void setListener(Listener listener) {
+            }
+
+            @Override
+            public boolean send(byte[] data, int writeType, final SendCallback callback) {
+                if (mFirst == null) {
+                    mFirst = callback;
+                    return true;
+                }
+                mFirst.onSendComplete(true);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        callback.onSendComplete(false);
+                    }
+                }).start();
+                return true;
+            }
+
+            @Override
+            public boolean requestConnectionPriority(int priority) {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        List<BlunoBenchmark.Result> results = run(new BlunoBenchmark(link, new int[] { 8 }, NO_RESPONSE, HIGH, 2));
+
+        BlunoBenchmark.Result result = results.get(0);
+        assertEquals(0, result.sent);
+        assertEquals(2, result.sendFailures);
+    }
+
+    private static List<BlunoBenchmark.Result> run(BlunoBenchmark benchmark) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final Object[] outcome = new Object[2];
+        benchmark.start(new BlunoBenchmark.Listener() {
+            @Override
+            public void onProgress(int runsCompleted, int runsTotal, BlunoBenchmark.Result lastResult) {
+            }
+
+            @Override
+            public void onFinished(List<BlunoBenchmark.Result> results, boolean cancelled) {
+                outcome[0] = results;
+                outcome[1] = cancelled;
+                finished.countDown();
+            }
+        });
+        assertTrue("benchmark did not finish", finished.await(30, TimeUnit.SECONDS));
+        assertFalse((Boolean) outcome[1]);
+        @SuppressWarnings("unchecked")
+        List<BlunoBenchmark.Result> results = (List<BlunoBenchmark.Result>) outcome[0];
+        return results;
+    }
+}
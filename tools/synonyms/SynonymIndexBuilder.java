@@ -0,0 +1,118 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.craigiebabe.android.bluetoothlegatt.SynonymIndex;
+import net.didion.jwnl.JWNL;
+import net.didion.jwnl.JWNLException;
+import net.didion.jwnl.data.IndexWord;
+import net.didion.jwnl.data.POS;
+import net.didion.jwnl.data.Synset;
+import net.didion.jwnl.data.Word;
+import net.didion.jwnl.dictionary.Dictionary;
+
+/**
+ * Build-time generator for {@code res/raw/synonyms.bin}: looks up the command vocabulary in a
+ * local WordNet dictionary and writes the synonyms it finds as a {@link SynonymIndex}, so the app
+ * never has to ship or query WordNet itself.
+ *
+ * Usage: {@code SynonymIndexBuilder <wordnet dict dir> <vocabulary.txt> <synonyms.bin>}
+ *
+ * Each vocabulary line is {@code canonical pos senses}, e.g. {@code faster adv 1}, taking the
+ * lemmas of the listed WordNet senses (1 based) as synonyms of the canonical word, or
+ * {@code canonical = word...} to add synonyms by hand. Every canonical word maps to itself; where
+ * two canonical words claim the same synonym the one listed first keeps it.
+ */
+public class SynonymIndexBuilder {
+
+    private static final String PROPERTIES =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<jwnl_properties language=\"en\">"
+            + "<version publisher=\"Princeton\" number=\"3.0\" language=\"en\"/>"
+            + "<dictionary class=\"net.didion.jwnl.dictionary.FileBackedDictionary\">"
+            + "<param name=\"dictionary_element_factory\" value=\"net.didion.jwnl.princeton.data.PrincetonWN17FileDictionaryElementFactory\"/>"
+            + "<param name=\"file_manager\" value=\"net.didion.jwnl.dictionary.file_manager.FileManagerImpl\">"
+            + "<param name=\"file_type\" value=\"net.didion.jwnl.princeton.file.PrincetonRandomAccessDictionaryFile\"/>"
+            + "<param name=\"dictionary_path\" value=\"%s\"/>"
+            + "</param>"
+            + "</dictionary>"
+            + "<resource class=\"PrincetonResource\"/>"
+            + "</jwnl_properties>";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("usage: SynonymIndexBuilder <wordnet dict dir> <vocabulary.txt> <synonyms.bin>");
+            System.exit(2);
+        }
+        String properties = String.format(PROPERTIES, new File(args[0]).getAbsolutePath());
+        JWNL.initialize(new ByteArrayInputStream(properties.getBytes("UTF-8")));
+
+        Map<String, String> synonyms = new TreeMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[1]), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.replaceAll("#.*", "").trim();
+                if (line.length() == 0)
+                    continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length < 3)
+                    throw new IOException(args[1] + ":" + lineNumber + ": expected 'canonical pos senses' or 'canonical = words'");
+                String canonical = fields[0];
+                add(synonyms, canonical, canonical);
+                if (fields[1].equals("=")) {
+                    for (int i = 2; i < fields.length; i++)
+                        add(synonyms, fields[i], canonical);
+                } else {
+                    addSenses(synonyms, canonical, POS.getPOSForLabel(fields[1]), fields[2]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        OutputStream out = new FileOutputStream(args[2]);
+        try {
+            SynonymIndex.write(synonyms, out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + synonyms.size() + " synonyms to " + args[2]);
+    }
+
+    private static void addSenses(Map<String, String> synonyms, String canonical, POS pos, String senses)
+            throws JWNLException, IOException {
+        if (pos == null)
+            throw new IOException("unknown part of speech for " + canonical);
+        IndexWord indexWord = Dictionary.getInstance().getIndexWord(pos, canonical);
+        if (indexWord == null)
+            throw new IOException("'" + canonical + "' is not a WordNet " + pos.getLabel());
+        Synset[] synsets = indexWord.getSenses();
+        for (String sense : senses.split(",")) {
+            int index = Integer.parseInt(sense) - 1;
+            if (index < 0 || index >= synsets.length)
+                throw new IOException("'" + canonical + "' has no " + pos.getLabel() + " sense " + sense);
+            for (Word word : synsets[index].getWords())
+                add(synonyms, word.getLemma(), canonical);
+        }
+    }
+
+    // The app matches single lower case tokens, so multi-word lemmas ("pull_up") are skipped.
+    private static void add(Map<String, String> synonyms, String word, String canonical) {
+        word = word.toLowerCase(Locale.US);
+        if (word.indexOf('_') >= 0 || word.indexOf(' ') >= 0 || !word.matches("[a-z]+"))
+            return;
+        if (!synonyms.containsKey(word))
+            synonyms.put(word, canonical);
+    }
+}